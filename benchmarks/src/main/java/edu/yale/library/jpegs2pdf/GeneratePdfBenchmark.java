@@ -0,0 +1,65 @@
+package edu.yale.library.jpegs2pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.yale.library.jpegs2pdf.model.JpegPdfPage;
+
+/**
+ * Whole documents from synthetic manifests of local images.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class GeneratePdfBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int pages;
+
+	@Param({"true", "false"})
+	public boolean jpegPassthrough;
+
+	private File directory;
+	private List<JpegPdfPage> jpegPdfPages;
+	private File destination;
+
+	@Setup(Level.Trial)
+	public void createManifest() throws IOException {
+		directory = SyntheticManifest.createTempDirectory();
+		jpegPdfPages = SyntheticManifest.pages(directory, pages, 700, 1000);
+		destination = new File(directory, "benchmark.pdf");
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() {
+		SyntheticManifest.delete(directory);
+	}
+
+	@Benchmark
+	public long generatePdf() throws IOException {
+		JpegPdfConcatImpl jpegPdfConcat = new JpegPdfConcatImpl();
+		jpegPdfConcat.setJpegPassthrough(jpegPassthrough);
+		jpegPdfConcat.generatePdf("Yale University Library Digital Collections", "Benchmark",
+				SyntheticManifest.documentProperties(), null, jpegPdfPages, destination, null);
+		return destination.length();
+	}
+}
@@ -0,0 +1,90 @@
+package edu.yale.library.jpegs2pdf;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.yale.library.jpegs2pdf.image.EncodedImage;
+import edu.yale.library.jpegs2pdf.image.JpegEncoder;
+import edu.yale.library.jpegs2pdf.image.JpegHeader;
+
+/**
+ * Decoding page images and encoding them for the PDF at several resolutions (the long side in pixels).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Thread)
+public class ImageBenchmark {
+
+	@Param({"1000", "3000", "6000"})
+	public int size;
+
+	private File directory;
+	private byte[] jpegBytes;
+	private BufferedImage decoded;
+	private PDDocument document;
+
+	@Setup(Level.Trial)
+	public void createImage() throws IOException {
+		directory = SyntheticManifest.createTempDirectory();
+		File jpeg = SyntheticManifest.writeJpeg(directory, size * 3 / 4, size, 1);
+		jpegBytes = Files.readAllBytes(jpeg.toPath());
+		decoded = ImageIO.read(jpeg);
+		document = new PDDocument();
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		document.close();
+		SyntheticManifest.delete(directory);
+	}
+
+	@Benchmark
+	public BufferedImage decode() throws IOException {
+		return ImageIO.read(new ByteArrayInputStream(jpegBytes));
+	}
+
+	@Benchmark
+	public EncodedImage encode() throws IOException {
+		return JpegEncoder.encode(decoded);
+	}
+
+	@Benchmark
+	public Object jpegFactoryEncode() throws IOException {
+		return JPEGFactory.createFromImage(document, decoded);
+	}
+
+	@Benchmark
+	public EncodedImage decodeAndEncode() throws IOException {
+		return JpegEncoder.encode(ImageIO.read(new ByteArrayInputStream(jpegBytes)));
+	}
+
+	@Benchmark
+	public JpegHeader passthroughHeader() {
+		return JpegHeader.parse(jpegBytes);
+	}
+}
@@ -0,0 +1,102 @@
+package edu.yale.library.jpegs2pdf;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import edu.yale.library.jpegs2pdf.model.JpegPdfPage;
+import edu.yale.library.jpegs2pdf.model.Property;
+
+/**
+ * Test data for the benchmarks: images written to a temporary directory and pages and properties that look like
+ * the ones in sample-json.
+ */
+class SyntheticManifest {
+
+	static final String RIGHTS = "The use of this image may be subject to the copyright law of the United States (Title 17, United States Code) "
+			+ "or to site license or other rights management terms and conditions. The person using the image is liable for any infringement.";
+
+	static final String ARABIC = "شمس المعارف ولطائف العوارف، تأليف أحمد بن علي البوني";
+
+	private SyntheticManifest() {
+	}
+
+	static List<Property> documentProperties() {
+		return new ArrayList<>(Arrays.asList(
+				new Property("Title:", "Bird Chief. Arapahoe Chief"),
+				new Property("Date:", "1867"),
+				new Property("Call Number:", "WA Photos 27"),
+				new Property("Rights:", RIGHTS),
+				new Property("Generated:", "October 22, 2020"),
+				new Property("Terms of Use:", "https://guides.library.yale.edu/about/policies/use-of-materials"),
+				new Property("Link:", "http://hdl.handle.net/10079/digcoll/3318985")));
+	}
+
+	static List<Property> pageProperties(int page) {
+		return new ArrayList<>(Arrays.asList(
+				new Property("Image ID:", Integer.toString(1004949 + page)),
+				new Property("Title:", page % 5 == 0 ? ARABIC : "Folio " + page + " recto"),
+				new Property("Rights:", RIGHTS)));
+	}
+
+	/**
+	 * Writes a noisy JPEG, which compresses about as well as a photographed page.
+	 */
+	static File writeJpeg(File directory, int width, int height, long seed) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		Random random = new Random(seed);
+		graphics.setColor(new Color(230, 220, 200));
+		graphics.fillRect(0, 0, width, height);
+		for (int i = 0; i < 2000; i++) {
+			graphics.setColor(new Color(random.nextInt(120), random.nextInt(120), random.nextInt(120)));
+			graphics.fillRect(random.nextInt(width), random.nextInt(height), 2 + random.nextInt(width / 20 + 1), 2 + random.nextInt(3));
+		}
+		graphics.dispose();
+		File file = new File(directory, "image-" + width + "x" + height + "-" + seed + ".jpg");
+		ImageIO.write(image, "jpg", file);
+		return file;
+	}
+
+	/**
+	 * Pages for the local images, cycling through a handful of distinct images.
+	 */
+	static List<JpegPdfPage> pages(File directory, int count, int width, int height) throws IOException {
+		List<File> images = new ArrayList<>();
+		for (int i = 0; i < Math.min(count, 8); i++) {
+			images.add(writeJpeg(directory, width, height, i));
+		}
+		List<JpegPdfPage> pages = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			JpegPdfPage page = new JpegPdfPage();
+			page.setJpegSource(images.get(i % images.size()).getAbsolutePath());
+			page.setCaption("Image " + (i + 1));
+			page.setProperties(pageProperties(i));
+			pages.add(page);
+		}
+		return pages;
+	}
+
+	static File createTempDirectory() throws IOException {
+		return Files.createTempDirectory("jpegs2pdf-bench").toFile();
+	}
+
+	static void delete(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+}
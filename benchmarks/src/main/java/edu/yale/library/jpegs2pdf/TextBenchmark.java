@@ -0,0 +1,115 @@
+package edu.yale.library.jpegs2pdf;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.documentinterchange.taggedpdf.StandardStructureTypes;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.yale.library.jpegs2pdf.model.Property;
+import edu.yale.library.jpegs2pdf.text.TextLayout;
+
+/**
+ * Font selection, text clean up and wrapping, and laying out a page's property block.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TextBenchmark {
+
+	private PDDocument fontDocument;
+	private PDFont[] fonts;
+	private JpegPdfConcatImpl jpegPdfConcat;
+
+	private PDDocument document;
+	private JpegPdfConcatImpl pageConcat;
+	private List<Property> pageProperties;
+
+	@Setup(Level.Trial)
+	public void loadFonts() throws IOException {
+		fontDocument = new PDDocument();
+		fonts = new PDFont[] {
+				PDType0Font.load(fontDocument, getClass().getResourceAsStream("/FreeSans.ttf")),
+				PDType0Font.load(fontDocument, getClass().getResourceAsStream("/NotoNaskhArabic-Regular.ttf"))};
+		jpegPdfConcat = new JpegPdfConcatImpl();
+		pageProperties = SyntheticManifest.pageProperties(5);
+	}
+
+	@TearDown(Level.Trial)
+	public void closeFonts() throws IOException {
+		fontDocument.close();
+	}
+
+	// the structure tree grows with every page laid out, so start a new document for each iteration
+	@Setup(Level.Iteration)
+	public void startDocument() throws IOException {
+		pageConcat = new JpegPdfConcatImpl();
+		document = pageConcat.startDocument("Yale University Library Digital Collections", "Benchmark",
+				SyntheticManifest.documentProperties(), null);
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeDocument() throws IOException {
+		document.close();
+	}
+
+	@Benchmark
+	public Object pickFontAndTextLatin() throws IOException {
+		return jpegPdfConcat.pickFontAndText(SyntheticManifest.RIGHTS, fonts);
+	}
+
+	@Benchmark
+	public Object pickFontAndTextArabic() throws IOException {
+		return jpegPdfConcat.pickFontAndText(SyntheticManifest.ARABIC, fonts);
+	}
+
+	@Benchmark
+	public Object pickFontAndTextUnrenderable() throws IOException {
+		return jpegPdfConcat.pickFontAndText(SyntheticManifest.ARABIC, new PDFont[] {fonts[0]});
+	}
+
+	@Benchmark
+	public String fixText() {
+		return JpegPdfConcatImpl.fixText("Rights:\t" + SyntheticManifest.RIGHTS + "\r\n");
+	}
+
+	@Benchmark
+	public int[] possibleWrapPoints() {
+		return TextLayout.possibleWrapPoints(SyntheticManifest.RIGHTS);
+	}
+
+	@Benchmark
+	public Object layoutParagraph() throws IOException {
+		return TextLayout.layout(SyntheticManifest.RIGHTS, fonts, 9, 400);
+	}
+
+	@Benchmark
+	public float drawPropertiesToContentStream() throws IOException {
+		PDPage page = new PDPage(PDRectangle.LETTER);
+		try (PDPageContentStream contentStream = new PDPageContentStream(document, page, PDPageContentStream.AppendMode.OVERWRITE, true)) {
+			return pageConcat.drawPropertiesToContentStream(document, page, contentStream, "Image 5", pageProperties,
+					12, 9, 50, null, null, StandardStructureTypes.H1);
+		}
+	}
+}
@@ -1,16 +1,44 @@
 package edu.yale.library.jpegs2pdf;
 
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
-import javax.json.Json;
-import javax.json.JsonReader;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 
+import edu.yale.library.jpegs2pdf.cache.DiskCache;
+import edu.yale.library.jpegs2pdf.cache.EncodedImageCache;
+import edu.yale.library.jpegs2pdf.cache.HttpImageCache;
+import edu.yale.library.jpegs2pdf.http.HttpFetcher;
+import edu.yale.library.jpegs2pdf.image.ExternalImageConverter;
+import edu.yale.library.jpegs2pdf.image.MemoryGovernor;
+import edu.yale.library.jpegs2pdf.metrics.GenerationMetrics;
+import edu.yale.library.jpegs2pdf.metrics.JobMetrics;
+import edu.yale.library.jpegs2pdf.metrics.Stage;
+import edu.yale.library.jpegs2pdf.pdf.OutputProfile;
+import edu.yale.library.jpegs2pdf.processor.BatchPdfProcessor;
 import edu.yale.library.jpegs2pdf.processor.JpegPdfConcat;
+import edu.yale.library.jpegs2pdf.processor.JsonManifestReader;
 import edu.yale.library.jpegs2pdf.processor.JsonToPdfProcessorImpl;
 import edu.yale.library.jpegs2pdf.processor.PdfProcessor;
+import edu.yale.library.jpegs2pdf.server.PdfServer;
 
 public class App {
 
+	private static HttpImageCache imageCache;
+	private static EncodedImageCache encodedImageCache;
+	private static boolean httpFetcherConfigured = false;
+	private static boolean imageConverterConfigured = false;
+	private static boolean memoryGovernorConfigured = false;
+
 	public static void main(String[] args) throws Exception {
 		try {
 			run(args);
@@ -23,6 +51,18 @@ public class App {
 
 
 	public static void run(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("--batch")) {
+			runBatch(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("--serve")) {
+			runServer(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("--compare-profiles")) {
+			runProfileComparison(args);
+			return;
+		}
 		if (args.length < 2) {
 			throw new IOException("You must provide the json file and output file as arguments.");
 		}
@@ -30,10 +70,272 @@ public class App {
 		String pdfContentFilepath = args[0];
 		String destinationFilepath = args[1];
 
-		JpegPdfConcat jpegPdfConcat = new JpegPdfConcatImpl();
-		JsonReader jsonReader = Json.createReader(new FileReader(pdfContentFilepath));
+		JpegPdfConcat jpegPdfConcat = createJpegPdfConcat();
+		JsonManifestReader manifestReader = new JsonManifestReader(JsonManifestReader.fromFile(new File(pdfContentFilepath)));
 
-		PdfProcessor pdfProcessor = new JsonToPdfProcessorImpl(jsonReader, jpegPdfConcat);
+		PdfProcessor pdfProcessor = new JsonToPdfProcessorImpl(manifestReader, jpegPdfConcat);
 		pdfProcessor.generatePdf(destinationFilepath);
 	}
+
+	/**
+	 * Generates many PDFs in this JVM:
+	 * --batch &lt;directory of JSON files or list file&gt; [--concurrency n] [--output-dir dir] [--summary file]
+	 * @param args
+	 * @throws Exception if any job failed, after all jobs have run and the summary is written
+	 */
+	public static void runBatch(String[] args) throws Exception {
+		if (args.length < 2) {
+			throw new IOException("You must provide a directory of json files or a list file after --batch.");
+		}
+		File source = new File(args[1]);
+		Map<String, String> options = parseOptions(args, 2, "--concurrency", "--output-dir", "--summary");
+		File outputDirectory = options.containsKey("--output-dir") ? new File(options.get("--output-dir")) : null;
+		File summaryFile = options.containsKey("--summary") ? new File(options.get("--summary")) : null;
+		int concurrency = Integer.parseInt(options.getOrDefault("--concurrency", "1"));
+
+		List<BatchPdfProcessor.Job> jobs = BatchPdfProcessor.readJobs(source, outputDirectory);
+		GenerationMetrics.getInstance().register();
+		// documents share one page worker pool so the thread count doesn't grow with the document concurrency
+		ExecutorService pageExecutor = JpegPdfConcatImpl.createPageExecutor(createJpegPdfConcat().getPageWorkers());
+		List<BatchPdfProcessor.JobResult> results;
+		try {
+			BatchPdfProcessor batchPdfProcessor = new BatchPdfProcessor(() -> {
+				JpegPdfConcatImpl jpegPdfConcat = createJpegPdfConcat();
+				jpegPdfConcat.setPageExecutor(pageExecutor);
+				return jpegPdfConcat;
+			});
+			batchPdfProcessor.setConcurrency(concurrency);
+			results = batchPdfProcessor.process(jobs);
+		} finally {
+			pageExecutor.shutdownNow();
+		}
+
+		if (summaryFile != null) {
+			BatchPdfProcessor.writeSummary(results, summaryFile);
+		} else {
+			StringWriter summary = new StringWriter();
+			BatchPdfProcessor.writeSummary(results, summary);
+			System.out.println(summary);
+		}
+		List<BatchPdfProcessor.JobResult> failures = BatchPdfProcessor.failures(results);
+		if (!failures.isEmpty()) {
+			throw new IOException(failures.size() + " of " + results.size() + " jobs failed");
+		}
+	}
+
+	/**
+	 * Runs the PDF generation HTTP service until the process is stopped:
+	 * --serve [--port 8080] [--bind 127.0.0.1] [--max-jobs n] [--queue n] [--output-root dir] [--input-root dir]
+	 * [--allow-commands true] [--max-request-megabytes 16]
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void runServer(String[] args) throws Exception {
+		Map<String, String> options = parseOptions(args, 1, "--port", "--bind", "--max-jobs", "--queue", "--output-root", "--input-root", "--allow-commands",
+				"--max-request-megabytes");
+		int port = Integer.parseInt(options.getOrDefault("--port", "8080"));
+		String bind = options.getOrDefault("--bind", "127.0.0.1");
+		int maxJobs = Integer.parseInt(options.getOrDefault("--max-jobs", "2"));
+		int queue = Integer.parseInt(options.getOrDefault("--queue", "16"));
+
+		GenerationMetrics.getInstance().register();
+		ExecutorService pageExecutor = JpegPdfConcatImpl.createPageExecutor(createJpegPdfConcat().getPageWorkers());
+		PdfServer pdfServer = new PdfServer(new InetSocketAddress(bind, port), () -> {
+			JpegPdfConcatImpl jpegPdfConcat = createJpegPdfConcat();
+			jpegPdfConcat.setPageExecutor(pageExecutor);
+			return jpegPdfConcat;
+		}, maxJobs, queue);
+		String outputRoot = options.get("--output-root");
+		pdfServer.setOutputRoot(outputRoot != null ? new File(outputRoot) : null);
+		String inputRoot = options.get("--input-root");
+		pdfServer.setInputRoot(inputRoot != null ? new File(inputRoot) : null);
+		pdfServer.setAllowImageProcessingCommands(Boolean.parseBoolean(options.getOrDefault("--allow-commands", "false")));
+		pdfServer.setMaxRequestBytes(Long.parseLong(options.getOrDefault("--max-request-megabytes", "16")) * 1024 * 1024);
+		CountDownLatch stopped = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			pdfServer.stop();
+			pageExecutor.shutdownNow();
+			stopped.countDown();
+		}));
+		pdfServer.start();
+		System.out.println("Listening on " + bind + ":" + pdfServer.getPort());
+		stopped.await();
+	}
+
+	/**
+	 * Generates one manifest's PDF with each output profile and prints the size and time of each:
+	 * --compare-profiles &lt;json file&gt; [--output-dir dir]
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void runProfileComparison(String[] args) throws Exception {
+		if (args.length < 2) {
+			throw new IOException("You must provide a json file after --compare-profiles.");
+		}
+		File manifest = new File(args[1]);
+		Map<String, String> options = parseOptions(args, 2, "--output-dir");
+		File outputDirectory = new File(options.getOrDefault("--output-dir", "."));
+		Files.createDirectories(outputDirectory.toPath());
+		String name = manifest.getName().replaceFirst("\\.json$", "");
+
+		List<JobMetrics> results = new ArrayList<>();
+		for (OutputProfile profile : OutputProfile.values()) {
+			JpegPdfConcatImpl jpegPdfConcat = createJpegPdfConcat();
+			jpegPdfConcat.setOutputProfile(profile);
+			File destination = new File(outputDirectory, name + "-" + profile.getName() + ".pdf");
+			try (JsonManifestReader manifestReader = new JsonManifestReader(JsonManifestReader.fromFile(manifest))) {
+				new JsonToPdfProcessorImpl(manifestReader, jpegPdfConcat).generatePdf(destination.getPath());
+			}
+			results.add(jpegPdfConcat.getJobMetrics());
+		}
+		System.out.println(profileReport(Arrays.asList(OutputProfile.values()), results));
+	}
+
+	/**
+	 * @return a table of the output size, total time and encoding time for each profile
+	 */
+	static String profileReport(List<OutputProfile> profiles, List<JobMetrics> results) {
+		StringBuilder report = new StringBuilder(String.format(Locale.US, "%-8s %6s %14s %9s %9s%n", "profile", "pages", "bytes", "seconds", "encode"));
+		for (int i = 0; i < profiles.size(); i++) {
+			JobMetrics metrics = results.get(i);
+			report.append(String.format(Locale.US, "%-8s %6d %14d %9.2f %9.2f%n", profiles.get(i).getName(), metrics.getPageCount(),
+					metrics.getOutputBytes(), metrics.getTotalNanos() / 1e9, metrics.getNanos(Stage.ENCODE) / 1e9));
+		}
+		return report.toString();
+	}
+
+	private static Map<String, String> parseOptions(String[] args, int start, String... names) throws IOException {
+		Map<String, String> options = new HashMap<>();
+		List<String> allowed = Arrays.asList(names);
+		for (int i = start; i < args.length; i += 2) {
+			if (!allowed.contains(args[i])) {
+				throw new IOException("Unknown option: " + args[i]);
+			}
+			if (i + 1 >= args.length) {
+				throw new IOException("Missing value for " + args[i]);
+			}
+			options.put(args[i], args[i + 1]);
+		}
+		return options;
+	}
+
+	/**
+	 * Creates the PDF generator, applying any tuning options passed as system properties (-Djpegs2pdf.*).
+	 * @return
+	 */
+	public static JpegPdfConcatImpl createJpegPdfConcat() {
+		JpegPdfConcatImpl jpegPdfConcat = new JpegPdfConcatImpl();
+		jpegPdfConcat.setPageWorkers(Integer.getInteger("jpegs2pdf.pageWorkers", jpegPdfConcat.getPageWorkers()));
+		jpegPdfConcat.setPageLookAhead(Integer.getInteger("jpegs2pdf.pageLookAhead", 0));
+		String outputProfile = System.getProperty("jpegs2pdf.outputProfile");
+		if (outputProfile != null) {
+			jpegPdfConcat.setOutputProfile(OutputProfile.fromName(outputProfile));
+		}
+		jpegPdfConcat.setJpegPassthrough(Boolean.parseBoolean(System.getProperty("jpegs2pdf.jpegPassthrough", Boolean.toString(jpegPdfConcat.isJpegPassthrough()))));
+		jpegPdfConcat.setJpegQuality(Float.parseFloat(System.getProperty("jpegs2pdf.jpegQuality", Float.toString(jpegPdfConcat.getJpegQuality()))));
+		jpegPdfConcat.setChromaSubsampling(Boolean.parseBoolean(System.getProperty("jpegs2pdf.chromaSubsampling", Boolean.toString(jpegPdfConcat.isChromaSubsampling()))));
+		jpegPdfConcat.setObjectStreams(Boolean.parseBoolean(System.getProperty("jpegs2pdf.objectStreams", Boolean.toString(jpegPdfConcat.isObjectStreams()))));
+		jpegPdfConcat.setFlateLevel(Integer.getInteger("jpegs2pdf.flateLevel", jpegPdfConcat.getFlateLevel()));
+		jpegPdfConcat.setTargetDpi(Float.parseFloat(System.getProperty("jpegs2pdf.targetDpi", "0")));
+		jpegPdfConcat.setStreamingOutput(Boolean.getBoolean("jpegs2pdf.streamingOutput"));
+		jpegPdfConcat.setChunkPages(Integer.getInteger("jpegs2pdf.chunkPages", 0));
+		jpegPdfConcat.setChunkWorkers(Integer.getInteger("jpegs2pdf.chunkWorkers", jpegPdfConcat.getChunkWorkers()));
+		jpegPdfConcat.setImageCache(getImageCache());
+		jpegPdfConcat.setEncodedImageCache(getEncodedImageCache());
+		jpegPdfConcat.setIiifSizing(Boolean.parseBoolean(System.getProperty("jpegs2pdf.iiifSizing", "true")));
+		jpegPdfConcat.setIiifInfo(Boolean.getBoolean("jpegs2pdf.iiifInfo"));
+		jpegPdfConcat.setLinearizedOutput(Boolean.getBoolean("jpegs2pdf.linearizedOutput"));
+		jpegPdfConcat.setImageDeduplication(Boolean.parseBoolean(System.getProperty("jpegs2pdf.imageDeduplication", "true")));
+		jpegPdfConcat.setMetricsReport(Boolean.getBoolean("jpegs2pdf.metricsReport"));
+		String prometheusFile = System.getProperty("jpegs2pdf.metricsPrometheusFile");
+		jpegPdfConcat.setMetricsPrometheusFile(prometheusFile != null ? new File(prometheusFile) : null);
+		configureHttpFetcher();
+		configureImageConverter();
+		configureMemoryGovernor();
+		return jpegPdfConcat;
+	}
+
+	/**
+	 * Applies -Djpegs2pdf.http* options to the fetcher shared by every document generated by this JVM.
+	 */
+	static synchronized void configureHttpFetcher() {
+		if (httpFetcherConfigured) {
+			return;
+		}
+		HttpFetcher httpFetcher = HttpFetcher.getDefault();
+		httpFetcher.setConnectTimeout(Integer.getInteger("jpegs2pdf.httpConnectTimeout", httpFetcher.getConnectTimeout()));
+		httpFetcher.setReadTimeout(Integer.getInteger("jpegs2pdf.httpReadTimeout", httpFetcher.getReadTimeout()));
+		httpFetcher.setTotalTimeout(Long.getLong("jpegs2pdf.httpTotalTimeout", httpFetcher.getTotalTimeout()));
+		httpFetcher.setMaxRetries(Integer.getInteger("jpegs2pdf.httpMaxRetries", httpFetcher.getMaxRetries()));
+		httpFetcher.setMaxRequestsPerHost(Integer.getInteger("jpegs2pdf.httpMaxRequestsPerHost", httpFetcher.getMaxRequestsPerHost()));
+		httpFetcherConfigured = true;
+	}
+
+	/**
+	 * Applies -Djpegs2pdf.converter* options to the image converter shared by every document generated by this JVM.
+	 */
+	static synchronized void configureImageConverter() {
+		if (imageConverterConfigured) {
+			return;
+		}
+		ExternalImageConverter imageConverter = ExternalImageConverter.getDefault();
+		imageConverter.setMaxConcurrent(Integer.getInteger("jpegs2pdf.converterConcurrency", imageConverter.getMaxConcurrent()));
+		imageConverter.setTimeout(Long.getLong("jpegs2pdf.converterTimeout", imageConverter.getTimeout()));
+		imageConverter.setMaxRetries(Integer.getInteger("jpegs2pdf.converterMaxRetries", imageConverter.getMaxRetries()));
+		imageConverter.setPipes(Boolean.getBoolean("jpegs2pdf.converterPipes"));
+		imageConverterConfigured = true;
+	}
+
+	/**
+	 * Applies -Djpegs2pdf.memoryBudgetMegabytes to the memory governor shared by every document generated by this JVM.
+	 */
+	static synchronized void configureMemoryGovernor() {
+		if (memoryGovernorConfigured) {
+			return;
+		}
+		MemoryGovernor memoryGovernor = MemoryGovernor.getDefault();
+		memoryGovernor.setBudget(Long.getLong("jpegs2pdf.memoryBudgetMegabytes", memoryGovernor.getBudget() / (1024 * 1024)) * 1024 * 1024);
+		memoryGovernorConfigured = true;
+	}
+
+	/**
+	 * The image cache configured with -Djpegs2pdf.imageCacheDir, shared by every document generated by this JVM.
+	 * @return the cache, or null if none is configured or it can't be created
+	 */
+	static synchronized HttpImageCache getImageCache() {
+		String directory = System.getProperty("jpegs2pdf.imageCacheDir");
+		if (imageCache == null && directory != null) {
+			long maxBytes = Long.getLong("jpegs2pdf.imageCacheMaxMegabytes", 10240) * 1024 * 1024;
+			try {
+				configureHttpFetcher();
+				imageCache = new HttpImageCache(new DiskCache(new File(directory), maxBytes), HttpFetcher.getDefault());
+				GenerationMetrics.getInstance().setImageCache(imageCache);
+			} catch (IOException e) {
+				System.err.println("Error creating image cache in " + directory + ", images will not be cached");
+				e.printStackTrace();
+			}
+		}
+		return imageCache;
+	}
+
+	/**
+	 * The encoded image cache configured with -Djpegs2pdf.encodedCacheDir, shared by every document generated by this
+	 * JVM.
+	 * @return the cache, or null if none is configured or it can't be created
+	 */
+	static synchronized EncodedImageCache getEncodedImageCache() {
+		String directory = System.getProperty("jpegs2pdf.encodedCacheDir");
+		if (encodedImageCache == null && directory != null) {
+			long maxBytes = Long.getLong("jpegs2pdf.encodedCacheMaxMegabytes", 10240) * 1024 * 1024;
+			try {
+				encodedImageCache = new EncodedImageCache(new DiskCache(new File(directory), maxBytes));
+				encodedImageCache.setRemoteMaxAge(Long.getLong("jpegs2pdf.encodedCacheRemoteMaxAgeHours", 168) * 60 * 60 * 1000);
+				GenerationMetrics.getInstance().setEncodedImageCache(encodedImageCache);
+			} catch (IOException e) {
+				System.err.println("Error creating encoded image cache in " + directory + ", encoded images will not be cached");
+				e.printStackTrace();
+			}
+		}
+		return encodedImageCache;
+	}
 }
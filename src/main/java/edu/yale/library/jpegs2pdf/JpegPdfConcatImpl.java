@@ -1,20 +1,38 @@
 package edu.yale.library.jpegs2pdf;
 
 import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.imageio.ImageIO;
 
+import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
 import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
@@ -30,21 +48,51 @@ import org.apache.pdfbox.pdmodel.documentinterchange.markedcontent.PDMarkedConte
 import org.apache.pdfbox.pdmodel.documentinterchange.markedcontent.PDPropertyList;
 import org.apache.pdfbox.pdmodel.documentinterchange.taggedpdf.StandardStructureTypes;
 import org.apache.pdfbox.pdmodel.font.PDFont;
-import org.apache.pdfbox.pdmodel.font.PDType0Font;
-import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
-import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.pdmodel.interactive.viewerpreferences.PDViewerPreferences;
 
+import edu.yale.library.jpegs2pdf.cache.EncodedImageCache;
+import edu.yale.library.jpegs2pdf.cache.HttpImageCache;
+import edu.yale.library.jpegs2pdf.http.HttpFetcher;
+import edu.yale.library.jpegs2pdf.image.EncodedImage;
+import edu.yale.library.jpegs2pdf.image.IiifSizer;
+import edu.yale.library.jpegs2pdf.image.ImagePlacement;
+import edu.yale.library.jpegs2pdf.image.JpegEncoder;
+import edu.yale.library.jpegs2pdf.image.PageImageLoader;
+import edu.yale.library.jpegs2pdf.metrics.GenerationMetrics;
+import edu.yale.library.jpegs2pdf.metrics.JobMetrics;
+import edu.yale.library.jpegs2pdf.metrics.PageMetrics;
+import edu.yale.library.jpegs2pdf.metrics.Stage;
 import edu.yale.library.jpegs2pdf.model.JpegPdfPage;
 import edu.yale.library.jpegs2pdf.model.Property;
+import edu.yale.library.jpegs2pdf.pdf.OutputProfile;
+import edu.yale.library.jpegs2pdf.pdf.PdfLinearizer;
+import edu.yale.library.jpegs2pdf.pdf.ReusableImage;
+import edu.yale.library.jpegs2pdf.pdf.StreamingPdfWriter;
 import edu.yale.library.jpegs2pdf.processor.JpegPdfConcat;
+import edu.yale.library.jpegs2pdf.text.FontCache;
+import edu.yale.library.jpegs2pdf.text.GlyphCoverage;
+import edu.yale.library.jpegs2pdf.text.GlyphWidths;
+import edu.yale.library.jpegs2pdf.text.TextLayout;
 
 
 
 public class JpegPdfConcatImpl implements JpegPdfConcat {
 
-	private List<JpegPdfPage> pages;
+	/**
+	 * Stream buffers kept in memory before spilling to a scratch file when writing with streaming output.  Page
+	 * streams are released as soon as their page is written, so this only needs to hold a page or two and the fonts.
+	 */
+	private static final long STREAMING_MAIN_MEMORY = 32L * 1024 * 1024;
+
+	private static final String ARABIC_FONT = "/NotoNaskhArabic-Regular.ttf";
+	private static final String LATIN_BOLD_FONT = "/FreeSansBold.ttf";
+	private static final String LATIN_FONT = "/arialunicodems.ttf";
+
+	private static ReusableImage logo;
+
+	private Iterator<JpegPdfPage> pages;
+	private int pageCount;
 	private List<Property> properties;
 	private List<Property> addressLines;
 	private String header;
@@ -56,44 +104,690 @@ public class JpegPdfConcatImpl implements JpegPdfConcat {
 	private PDStructureElement currentSection;
 	private int mcid = 1;
 	private String imageProcessingCommand;
+	private int pageWorkers = Runtime.getRuntime().availableProcessors();
+	private int pageLookAhead = 0;
+	private boolean jpegPassthrough = true;
+	private float targetDpi = 0;
+	private HttpImageCache imageCache;
+	private EncodedImageCache encodedImageCache;
+	private boolean iiifSizing = true;
+	private boolean iiifInfo = false;
+	private ExecutorService pageExecutor;
+	private PageImageLoader pageImageLoader;
+	private boolean streamingOutput = false;
+	private StreamingPdfWriter pdfWriter;
+	private boolean metricsReport = false;
+	private File metricsPrometheusFile;
+	private JobMetrics jobMetrics = new JobMetrics("");
+	private boolean imageDeduplication = true;
+	private boolean linearizedOutput = false;
+	private float jpegQuality = JpegEncoder.DEFAULT_QUALITY;
+	private boolean chromaSubsampling = true;
+	private boolean objectStreams = false;
+	private int flateLevel = -1;
+	private int chunkPages = 0;
+	private int chunkWorkers = Runtime.getRuntime().availableProcessors();
+	private final List<PDDocument> chunkDocuments = new ArrayList<>();
+	private Map<String, PDImageXObject> imageXObjects;
+	private Set<String> embeddedImages;
 
 	private PDDocument document;
 
-	private static final String UNRENDERABLE_CHARACTER = "□"; //U+25A1
-
 	public void generatePdf(String header, String documentTitle, List<Property> documentProperties, List<Property> documentAddressLines, List<JpegPdfPage> jpegPdfPages, File destinationFile, String imageProcessingCommand)
 			throws IOException {
+		generatePdf(header, documentTitle, documentProperties, documentAddressLines,
+				jpegPdfPages != null ? jpegPdfPages.iterator() : Collections.emptyIterator(), destinationFile, imageProcessingCommand);
+	}
+
+	/**
+	 * Pages are taken from the iterator as the look ahead window allows, so they can still be being read when the
+	 * first pages are added.
+	 */
+	@Override
+	public void generatePdf(String header, String documentTitle, List<Property> documentProperties, List<Property> documentAddressLines, Iterator<JpegPdfPage> jpegPdfPages, File destinationFile, String imageProcessingCommand)
+			throws IOException {
+		this.pages = jpegPdfPages;
+		this.pageCount = 0;
+		this.imageProcessingCommand = imageProcessingCommand;
+		this.pageImageLoader = new PageImageLoader(imageProcessingCommand);
+		this.pageImageLoader.setJpegPassthrough(jpegPassthrough);
+		this.pageImageLoader.setTargetDpi(targetDpi);
+		this.pageImageLoader.setJpegQuality(jpegQuality);
+		this.pageImageLoader.setChromaSubsampling(chromaSubsampling);
+		this.pageImageLoader.setImageCache(imageCache);
+		this.pageImageLoader.setEncodedImageCache(encodedImageCache);
+		this.imageXObjects = new ConcurrentHashMap<>();
+		this.embeddedImages = imageDeduplication ? ConcurrentHashMap.newKeySet() : null;
+		this.pageImageLoader.setEmbeddedImages(embeddedImages);
+		if (iiifSizing) {
+			this.pageImageLoader.setIiifSizer(new IiifSizer(HttpFetcher.getDefault(), iiifInfo));
+		}
+		this.jobMetrics = new JobMetrics(destinationFile.getPath());
+		long start = System.currentTimeMillis();
+		// a linearized file is rewritten from the finished one
+		File outputFile = linearizedOutput ? File.createTempFile("unlinearized", ".pdf") : destinationFile;
+		try {
+			if (streamingOutput) {
+				generateStreamingPdf(header, documentTitle, documentProperties, documentAddressLines, outputFile);
+			} else {
+				startDocument(header, documentTitle, documentProperties, documentAddressLines);
+				addPages();
+				long saveStart = System.nanoTime();
+				if (objectStreams) {
+					saveWithObjectStreams(outputFile);
+				} else {
+					document.save(outputFile);
+				}
+				jobMetrics.addSince(Stage.SAVE, saveStart);
+				document.close();
+			}
+			if (linearizedOutput) {
+				long saveStart = System.nanoTime();
+				PdfLinearizer.linearize(outputFile, destinationFile);
+				jobMetrics.addSince(Stage.SAVE, saveStart);
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			recordMetrics(null, e);
+			throw e;
+		} finally {
+			closeChunkDocuments();
+			if (outputFile != destinationFile) {
+				outputFile.delete();
+			}
+		}
+		recordMetrics(destinationFile, null);
+
+		long time = System.currentTimeMillis() - start;
+		System.out.println("Generated: " + pageCount + " in " + time + (pageCount>0?(" at " + (time / pageCount)):""));
+	}
+
+	/**
+	 * Adds the job to the JVM totals and writes the reports that are enabled.  A report that can't be written is
+	 * logged rather than failing the PDF.
+	 */
+	private void recordMetrics(File destinationFile, Throwable failure) {
+		jobMetrics.finish(destinationFile, failure);
+		GenerationMetrics.getInstance().record(jobMetrics);
+		try {
+			if (metricsReport && destinationFile != null) {
+				jobMetrics.writeJson(new File(destinationFile.getPath() + ".metrics.json"));
+			}
+			if (metricsPrometheusFile != null) {
+				GenerationMetrics.getInstance().writePrometheus(metricsPrometheusFile, jobMetrics);
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to write metrics for " + jobMetrics.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes each page to the destination as soon as it is finished, keeping only the page tree, fonts and structure
+	 * tree in memory until the end.
+	 * @throws IOException
+	 */
+	private void generateStreamingPdf(String header, String documentTitle, List<Property> documentProperties, List<Property> documentAddressLines, File destinationFile)
+			throws IOException {
+		try (OutputStream out = new FileOutputStream(destinationFile)) {
+			pdfWriter = new StreamingPdfWriter(out, objectStreams ? 1.5f : 1.4f);
+			pdfWriter.setObjectStreams(objectStreams, flateLevel);
+			try {
+				startDocument(header, documentTitle, documentProperties, documentAddressLines);
+				addPages();
+				subsetFonts();
+				long saveStart = System.nanoTime();
+				pdfWriter.finish(document.getDocumentCatalog().getCOSObject(), document.getDocumentInformation().getCOSObject());
+				pdfWriter.close();
+				jobMetrics.addSince(Stage.SAVE, saveStart);
+			} finally {
+				pdfWriter = null;
+				document.close();
+			}
+		}
+	}
+
+	/**
+	 * Saves the finished document with StreamingPdfWriter, since PDFBox can't write object streams.
+	 */
+	private void saveWithObjectStreams(File destinationFile) throws IOException {
+		subsetFonts();
+		try (OutputStream out = new FileOutputStream(destinationFile);
+				StreamingPdfWriter writer = new StreamingPdfWriter(out, 1.5f)) {
+			writer.setObjectStreams(true, flateLevel);
+			writer.finish(document.getDocumentCatalog().getCOSObject(), document.getDocumentInformation().getCOSObject());
+		}
+	}
+
+	/**
+	 * Subsets the fonts now rather than when the document is saved, for pages that are written some other way.
+	 * @throws IOException
+	 */
+	private void subsetFonts() throws IOException {
+		for (PDFont font : new PDFont[] {arabicRegFont, latinBoldFont, latinRegFont}) {
+			if (font != null && font.willBeSubset()) {
+				font.subset();
+			}
+		}
+	}
+
+	/**
+	 * Creates the document with its fonts and cover page, ready for the image pages to be added.
+	 * Package visible so the benchmarks can lay out pages without generating a whole PDF.
+	 * @return the document
+	 * @throws IOException
+	 */
+	PDDocument startDocument(String header, String documentTitle, List<Property> documentProperties, List<Property> documentAddressLines) throws IOException {
 		this.header = header;
 		this.documentTitle = documentTitle;
 		this.properties = documentProperties;
 		this.addressLines = documentAddressLines;
-		this.pages = jpegPdfPages;
-		this.imageProcessingCommand = imageProcessingCommand;
-		long start = System.currentTimeMillis();
 		createDocument();
 		loadFonts();
 		addPart();
+		long start = System.nanoTime();
 		addCoverPageToDocument();
+		jobMetrics.addSince(Stage.LAYOUT, start);
 		addPart();
-		addJpegPages();
-		document.save(destinationFile);
-		document.close();
+		return document;
+	}
 
-		long time = System.currentTimeMillis() - start;
-		System.out.println("Generated: " + pages.size() + " in " + time + (pages.size()>0?(" at " + (time / pages.size())):""));
+	/**
+	 * Number of threads used to fetch, convert, decode and encode page images.
+	 * @param pageWorkers
+	 */
+	public void setPageWorkers(int pageWorkers) {
+		this.pageWorkers = Math.max(1, pageWorkers);
+	}
+
+	public int getPageWorkers() {
+		return pageWorkers;
+	}
+
+	/**
+	 * Maximum number of pages whose images are being prepared, or are waiting to be added, ahead of the page being
+	 * written.  Bounds the memory held by prepared images.  Zero or less uses twice the number of page workers.
+	 * @param pageLookAhead
+	 */
+	public void setPageLookAhead(int pageLookAhead) {
+		this.pageLookAhead = pageLookAhead;
+	}
+
+	public int getPageLookAhead() {
+		return pageLookAhead > 0 ? pageLookAhead : pageWorkers * 2;
+	}
+
+	/**
+	 * Use a page worker pool shared with other documents instead of creating one for this document.
+	 * The pool is not shut down when the document is finished.
+	 * @param pageExecutor
+	 */
+	public void setPageExecutor(ExecutorService pageExecutor) {
+		this.pageExecutor = pageExecutor;
+	}
+
+	/**
+	 * Creates a page worker pool that can be shared by several documents with setPageExecutor.
+	 * @param pageWorkers
+	 * @return
+	 */
+	public static ExecutorService createPageExecutor(int pageWorkers) {
+		return Executors.newFixedThreadPool(Math.max(1, pageWorkers), new WorkerThreadFactory("pdf-page-worker-"));
+	}
+
+	/**
+	 * Build the image pages in sub-documents of this many pages, several at once, and move each one's pages and
+	 * structure elements into the document in order.  Spreads the page drawing, content stream compression and font
+	 * subsetting over more cores for long documents.  Zero or less builds the pages in the document itself.
+	 * @param chunkPages
+	 */
+	public void setChunkPages(int chunkPages) {
+		this.chunkPages = chunkPages;
+	}
+
+	public int getChunkPages() {
+		return chunkPages;
+	}
+
+	/**
+	 * Number of sub-documents built at the same time with setChunkPages.  They share the page workers and the look
+	 * ahead.
+	 * @param chunkWorkers
+	 */
+	public void setChunkWorkers(int chunkWorkers) {
+		this.chunkWorkers = Math.max(1, chunkWorkers);
+	}
+
+	public int getChunkWorkers() {
+		return chunkWorkers;
+	}
+
+	/**
+	 * Embed JPEG sources without decoding and re-encoding them when no image processing command is used.
+	 * @param jpegPassthrough
+	 */
+	public void setJpegPassthrough(boolean jpegPassthrough) {
+		this.jpegPassthrough = jpegPassthrough;
+	}
+
+	public boolean isJpegPassthrough() {
+		return jpegPassthrough;
+	}
+
+	/**
+	 * Applies the profile's image quality, compression and passthrough settings, which can then be changed one at a
+	 * time with their own setters.
+	 * @param outputProfile
+	 */
+	public void setOutputProfile(OutputProfile outputProfile) {
+		this.jpegQuality = outputProfile.getJpegQuality();
+		this.chromaSubsampling = outputProfile.isChromaSubsampling();
+		this.jpegPassthrough = outputProfile.isJpegPassthrough();
+		this.objectStreams = outputProfile.isObjectStreams();
+		this.flateLevel = outputProfile.getFlateLevel();
+	}
+
+	/**
+	 * Quality page images are encoded at, from 0 to 1.  JPEG sources that are passed through keep their own.
+	 * @param jpegQuality
+	 */
+	public void setJpegQuality(float jpegQuality) {
+		this.jpegQuality = Math.max(0, Math.min(1, jpegQuality));
+	}
+
+	public float getJpegQuality() {
+		return jpegQuality;
+	}
+
+	/**
+	 * Encode the color of page images at half resolution (4:2:0), the JPEG default.  Turn off for sharper colored
+	 * text and lines at the cost of larger images.
+	 * @param chromaSubsampling
+	 */
+	public void setChromaSubsampling(boolean chromaSubsampling) {
+		this.chromaSubsampling = chromaSubsampling;
+	}
+
+	public boolean isChromaSubsampling() {
+		return chromaSubsampling;
+	}
+
+	/**
+	 * Pack the structure tree, pages and other dictionaries into compressed object streams, with a cross reference
+	 * stream, in a PDF 1.5 file.  Linearized output is written with a cross reference table, so doesn't use them.
+	 * @param objectStreams
+	 */
+	public void setObjectStreams(boolean objectStreams) {
+		this.objectStreams = objectStreams;
+	}
+
+	public boolean isObjectStreams() {
+		return objectStreams;
+	}
+
+	/**
+	 * Deflate level, 0 to 9, for page content streams and object streams.  -1 leaves content streams to PDFBox.
+	 * @param flateLevel
+	 */
+	public void setFlateLevel(int flateLevel) {
+		this.flateLevel = Math.max(-1, Math.min(9, flateLevel));
+	}
+
+	public int getFlateLevel() {
+		return flateLevel;
+	}
+
+	/**
+	 * Downscale page images to this effective resolution for the size they are drawn at on the page.  Images that are
+	 * already small enough are left alone.  Zero or less keeps the source resolution.
+	 * @param targetDpi
+	 */
+	public void setTargetDpi(float targetDpi) {
+		this.targetDpi = targetDpi;
+	}
+
+	public float getTargetDpi() {
+		return targetDpi;
+	}
+
+	/**
+	 * Fetch http(s) page images through a local disk cache.  The cache can be shared by several documents.
+	 * @param imageCache
+	 */
+	public void setImageCache(HttpImageCache imageCache) {
+		this.imageCache = imageCache;
+	}
+
+	public HttpImageCache getImageCache() {
+		return imageCache;
+	}
+
+	/**
+	 * Keep finished page images in a local disk cache, so regenerating a document whose images haven't changed only
+	 * lays out and writes the pages.  The cache can be shared by several documents.
+	 * @param encodedImageCache
+	 */
+	public void setEncodedImageCache(EncodedImageCache encodedImageCache) {
+		this.encodedImageCache = encodedImageCache;
+	}
+
+	public EncodedImageCache getEncodedImageCache() {
+		return encodedImageCache;
+	}
+
+	/**
+	 * Request IIIF images at the size they are drawn at, for the target resolution, instead of the size in the
+	 * manifest.  Has no effect without a target resolution.
+	 * @param iiifSizing
+	 */
+	public void setIiifSizing(boolean iiifSizing) {
+		this.iiifSizing = iiifSizing;
+	}
+
+	public boolean isIiifSizing() {
+		return iiifSizing;
+	}
+
+	/**
+	 * Read each IIIF image's info.json before requesting it, to request an exact width and never more than the full
+	 * image.  Costs an extra request per image.
+	 * @param iiifInfo
+	 */
+	public void setIiifInfo(boolean iiifInfo) {
+		this.iiifInfo = iiifInfo;
+	}
+
+	public boolean isIiifInfo() {
+		return iiifInfo;
+	}
+
+	/**
+	 * Write each page to the destination file as soon as it is finished instead of saving the whole document at the
+	 * end, so memory and scratch file use stay flat regardless of the number of pages.
+	 * @param streamingOutput
+	 */
+	public void setStreamingOutput(boolean streamingOutput) {
+		this.streamingOutput = streamingOutput;
+	}
+
+	public boolean isStreamingOutput() {
+		return streamingOutput;
+	}
+
+	/**
+	 * Embed an image used on several pages once, with every page drawing the same XObject.  Sources are hashed as
+	 * they are read, and a repeated image is not encoded again.
+	 * @param imageDeduplication
+	 */
+	public void setImageDeduplication(boolean imageDeduplication) {
+		this.imageDeduplication = imageDeduplication;
+	}
+
+	public boolean isImageDeduplication() {
+		return imageDeduplication;
+	}
+
+	/**
+	 * Write linearized ("fast web view") PDFs, which a browser reading them with range requests can show from the
+	 * first page before the whole file has downloaded.  The finished PDF is rewritten, so this takes a temporary copy
+	 * of the output.
+	 * @param linearizedOutput
+	 */
+	public void setLinearizedOutput(boolean linearizedOutput) {
+		this.linearizedOutput = linearizedOutput;
+	}
+
+	public boolean isLinearizedOutput() {
+		return linearizedOutput;
+	}
+
+	/**
+	 * Write a JSON report of the time spent in each stage, the sizes and the peak heap next to each PDF, as
+	 * &lt;pdf&gt;.metrics.json.
+	 * @param metricsReport
+	 */
+	public void setMetricsReport(boolean metricsReport) {
+		this.metricsReport = metricsReport;
+	}
+
+	public boolean isMetricsReport() {
+		return metricsReport;
+	}
+
+	/**
+	 * File the JVM's generation totals are written to in the Prometheus text format after each PDF.
+	 * @param metricsPrometheusFile null for none
+	 */
+	public void setMetricsPrometheusFile(File metricsPrometheusFile) {
+		this.metricsPrometheusFile = metricsPrometheusFile;
+	}
+
+	public File getMetricsPrometheusFile() {
+		return metricsPrometheusFile;
+	}
+
+	/**
+	 * @return metrics for the last PDF generated
+	 */
+	public JobMetrics getJobMetrics() {
+		return jobMetrics;
+	}
+
+	/**
+	 * Prepares page images on a pool of workers, bounded by the look ahead window, and adds the finished pages to
+	 * the document in manifest order on this thread, since PDDocument is not thread safe.
+	 * The page text is laid out before the image is submitted so the worker knows the size the image is drawn at.
+	 * @throws IOException
+	 */
+	private void addPages() throws IOException {
+		if (chunkPages > 0) {
+			addChunkedPages();
+		} else {
+			addJpegPages();
+		}
+	}
+
+	/**
+	 * Builds the pages in chunks, each in its own document on a chunk worker, and adds the chunks to the document in
+	 * manifest order as they finish.  Each chunk's Sect elements are moved under the document's Part.  Marked content
+	 * ids only have to be unique within a page, so the chunks' content streams are used unchanged.
+	 * @throws IOException
+	 */
+	private void addChunkedPages() throws IOException {
+		if ( pages == null || !pages.hasNext() ) {
+			return;
+		}
+		ExecutorService executor = pageExecutor != null ? pageExecutor : createPageExecutor(pageWorkers);
+		ExecutorService chunkExecutor = Executors.newFixedThreadPool(chunkWorkers, new WorkerThreadFactory("pdf-chunk-worker-"));
+		Deque<Future<JpegPdfConcatImpl>> pending = new ArrayDeque<>();
+		try {
+			int firstPage = 1;
+			while (pages.hasNext() || !pending.isEmpty()) {
+				while (pages.hasNext() && pending.size() < chunkWorkers) {
+					List<JpegPdfPage> chunk = new ArrayList<>();
+					while (pages.hasNext() && chunk.size() < chunkPages) {
+						chunk.add(pages.next());
+					}
+					JpegPdfConcatImpl builder = createChunkBuilder(executor, firstPage);
+					firstPage += chunk.size();
+					pending.add(chunkExecutor.submit(() -> builder.buildChunk(chunk)));
+				}
+				long start = System.nanoTime();
+				JpegPdfConcatImpl builder = awaitChunk(pending.poll());
+				jobMetrics.add(Stage.WAIT, System.nanoTime() - start);
+				start = System.nanoTime();
+				addChunk(builder);
+				jobMetrics.addSince(Stage.WRITE, start);
+				jobMetrics.sampleHeap();
+			}
+		} finally {
+			for (Future<JpegPdfConcatImpl> future : pending) {
+				future.cancel(true);
+				closeChunk(future);
+			}
+			chunkExecutor.shutdownNow();
+			if (executor != pageExecutor) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * @return a builder for the pages from firstPage on, sharing this document's image loading and deduplication
+	 */
+	private JpegPdfConcatImpl createChunkBuilder(ExecutorService executor, int firstPage) {
+		JpegPdfConcatImpl builder = new JpegPdfConcatImpl();
+		builder.pageWorkers = pageWorkers;
+		builder.pageLookAhead = Math.max(1, getPageLookAhead() / chunkWorkers);
+		builder.pageExecutor = executor;
+		builder.pageImageLoader = pageImageLoader;
+		builder.imageProcessingCommand = imageProcessingCommand;
+		builder.flateLevel = flateLevel;
+		builder.imageXObjects = imageXObjects;
+		builder.embeddedImages = embeddedImages;
+		builder.jobMetrics = new JobMetrics(jobMetrics.getName(), firstPage);
+		return builder;
+	}
+
+	/**
+	 * Runs on a chunk worker.  The chunk's fonts are subset here, as its document is never saved.
+	 * @return this builder, holding the finished chunk document
+	 */
+	private JpegPdfConcatImpl buildChunk(List<JpegPdfPage> chunk) throws IOException {
+		this.pages = chunk.iterator();
+		createDocument();
+		try {
+			loadFonts();
+			addPart();
+			addJpegPages();
+			subsetFonts();
+		} catch (IOException | RuntimeException | Error e) {
+			document.close();
+			throw e;
+		}
+		return this;
+	}
+
+	private void addChunk(JpegPdfConcatImpl builder) throws IOException {
+		try {
+			List<PDPage> chunkPages = new ArrayList<>();
+			for (PDPage page : builder.document.getPages()) {
+				chunkPages.add(page);
+			}
+			for (PDPage page : chunkPages) {
+				document.addPage(page);
+			}
+			for (Object kid : builder.currentPart.getKids()) {
+				if (kid instanceof PDStructureElement) {
+					currentPart.appendKid((PDStructureElement) kid);
+				}
+			}
+			for (PDPage page : chunkPages) {
+				writePage(page);
+			}
+			pageCount += builder.pageCount;
+			jobMetrics.addChunk(builder.jobMetrics);
+		} finally {
+			if (pdfWriter != null) {
+				// every page of the chunk has been written
+				builder.document.close();
+			} else {
+				// saving the document reads the chunk's streams
+				chunkDocuments.add(builder.document);
+			}
+		}
+	}
+
+	private JpegPdfConcatImpl awaitChunk(Future<JpegPdfConcatImpl> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for pages", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Closes the document of a chunk that was not added, waiting for it to stop.
+	 */
+	private static void closeChunk(Future<JpegPdfConcatImpl> future) {
+		try {
+			future.get().document.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | CancellationException | IOException e) {
+			// the chunk failed or was cancelled, and closed its own document
+		}
+	}
+
+	private void closeChunkDocuments() {
+		for (PDDocument chunkDocument : chunkDocuments) {
+			try {
+				chunkDocument.close();
+			} catch (IOException e) {
+				System.err.println("Unable to close page chunk: " + e.getMessage());
+			}
+		}
+		chunkDocuments.clear();
 	}
 
 	private void addJpegPages() throws IOException {
-		int ix = 1;
-		if ( pages != null ) {
-			for (JpegPdfPage page : pages) {
-				addJpegPageToDocument(page);
+		if ( pages == null || !pages.hasNext() ) {
+			return;
+		}
+		ExecutorService executor = pageExecutor != null ? pageExecutor : createPageExecutor(pageWorkers);
+		Deque<Future<EncodedImage>> pending = new ArrayDeque<>();
+		Deque<PageLayout> pendingPages = new ArrayDeque<>();
+		try {
+			Iterator<JpegPdfPage> iterator = pages;
+			int lookAhead = getPageLookAhead();
+			while (iterator.hasNext() || !pending.isEmpty()) {
+				while (iterator.hasNext() && pending.size() < lookAhead) {
+					PageLayout layout = layoutJpegPage(iterator.next());
+					pendingPages.add(layout);
+					pending.add(executor.submit(() -> pageImageLoader.load(layout.jpegPdfPage, layout.imagePlacement, layout.metrics)));
+				}
+				PageLayout layout = pendingPages.poll();
+				long start = System.nanoTime();
+				EncodedImage encodedImage = awaitImage(pending.poll());
+				layout.metrics.addSince(Stage.WAIT, start);
+				start = System.nanoTime();
+				addJpegPageToDocument(layout, encodedImage);
+				layout.metrics.addSince(Stage.WRITE, start);
+				jobMetrics.sampleHeap();
+				pageCount++;
+			}
+		} finally {
+			for (Future<EncodedImage> future : pending) {
+				future.cancel(true);
+			}
+			if (executor != pageExecutor) {
+				executor.shutdownNow();
 			}
 		}
 	}
 
+	private EncodedImage awaitImage(Future<EncodedImage> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for page image", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
 	private void createDocument() {
-		MemoryUsageSetting memoryUsageSetting = MemoryUsageSetting.setupTempFileOnly();
+		MemoryUsageSetting memoryUsageSetting = pdfWriter != null ? MemoryUsageSetting.setupMixed(STREAMING_MAIN_MEMORY) : MemoryUsageSetting.setupTempFileOnly();
 		try {
 			File tempDir = Files.createTempDirectory("PDFGen").toFile();
 			tempDir.deleteOnExit();
@@ -138,10 +832,50 @@ public class JpegPdfConcatImpl implements JpegPdfConcat {
 		return null;
 	}
 
+	/**
+	 * Loads the fonts every document uses.  The Arabic font is only loaded once some text needs it, see
+	 * getValueFonts.  The font files are parsed once per JVM by FontCache.
+	 * @throws IOException
+	 */
 	private void loadFonts() throws IOException {
-		arabicRegFont = PDType0Font.load(document, this.getClass().getResourceAsStream("/NotoNaskhArabic-Regular.ttf"));
-		latinBoldFont = PDType0Font.load(document, this.getClass().getResourceAsStream("/FreeSansBold.ttf"));
-		latinRegFont = PDType0Font.load(document, this.getClass().getResourceAsStream("/arialunicodems.ttf"));
+		arabicRegFont = null;
+		latinBoldFont = FontCache.load(document, LATIN_BOLD_FONT);
+		latinRegFont = FontCache.load(document, LATIN_FONT);
+		if (pdfWriter != null) {
+			// fonts are subset, and so written, only once every page has been drawn
+			pdfWriter.reserve(document.getPages().getCOSObject());
+			pdfWriter.reserve(latinBoldFont.getCOSObject());
+			pdfWriter.reserve(latinRegFont.getCOSObject());
+		}
+	}
+
+	private PDFont getArabicFont() throws IOException {
+		if (arabicRegFont == null) {
+			arabicRegFont = FontCache.load(document, ARABIC_FONT);
+			if (pdfWriter != null) {
+				pdfWriter.reserve(arabicRegFont.getCOSObject());
+			}
+		}
+		return arabicRegFont;
+	}
+
+	/**
+	 * The fonts for caption and property values in order of preference.  The Arabic font is only added when the
+	 * regular font can't render all of the text, which is the only time it would be picked.
+	 * @param caption
+	 * @param properties
+	 * @return
+	 * @throws IOException
+	 */
+	private PDFont[] getValueFonts(String caption, List<Property> properties) throws IOException {
+		GlyphCoverage coverage = GlyphCoverage.forFont(latinRegFont);
+		boolean covered = coverage.coversAll(caption) && coverage.coversAll(fixText(caption));
+		if (properties != null) {
+			for (Property property : properties) {
+				covered = covered && coverage.coversAll(fixText(property.getValue()));
+			}
+		}
+		return covered ? new PDFont[] {latinRegFont} : new PDFont[] {latinRegFont, getArabicFont()};
 	}
 
 	/**
@@ -150,31 +884,15 @@ public class JpegPdfConcatImpl implements JpegPdfConcat {
 	 * text and the font that worked.
 	 * If the no font works for the entire string, it uses the first font and replaces all the un-renderable characters
 	 * with an emtpy box and returns the altered text and the font.
+	 * See TextLayout.pickFont, which uses GlyphCoverage so no exceptions are thrown to find out which font can encode the text.
 	 * @param text
 	 * @param fonts
 	 * @return
 	 * @throws IOException
 	 */
 	public FontAndText pickFontAndText(String text, PDFont[] fonts) throws IOException {
-		for (PDFont font : fonts) {
-			try {
-				font.encode(text);
-				return new FontAndText(font, text); // found a font that works for the text
-			} catch(Exception e) {
-				// can't encode, try the next font
-			}
-		}
-		// nothing worked, so change the text to get it to render based on the first font:
-		StringBuilder sb = new StringBuilder();
-		for (char c : text.toCharArray()) {
-			try {
-				fonts[0].encode(String.valueOf(c));
-				sb.append(c);
-			} catch (Exception e) {
-				sb.append(UNRENDERABLE_CHARACTER);
-			}
-		}
-		return new FontAndText(fonts[0], sb.toString());
+		TextLayout.Run run = TextLayout.pickFont(text, fonts);
+		return new FontAndText(run.getFont(), run.getText());
 	}
 
 	private void addCoverPageToDocument() throws IOException {
@@ -184,23 +902,17 @@ public class JpegPdfConcatImpl implements JpegPdfConcat {
 		addSection( currentPart);
 		PDPageContentStream contentStream = new PDPageContentStream( document, page, AppendMode.OVERWRITE, false);
 		// hard code the image and alt text for the image for now.
-		BufferedImage bimg = null;
-		InputStream in = this.getClass().getResourceAsStream("/logo.png");
-		try {
-			bimg = ImageIO.read(in);
-		} finally {
-			in.close();
-		}
+		ReusableImage logo = getLogo();
 		int margin = 50;
-		float width = bimg.getWidth();
-		float height = bimg.getHeight();
+		float width = logo.getWidth();
+		float height = logo.getHeight();
 		float imageAspect = width / height;
 		float x, y, w, h;
 		x = margin;
 		h = 75;
 		y = PDRectangle.LETTER.getHeight() - margin - h;
 		w = h * imageAspect;
-		PDImageXObject pdImageXObject = LosslessFactory.createFromImage(document, bimg);
+		PDImageXObject pdImageXObject = logo.createXObject(document);
 		COSDictionary cosDictionary = beginMarkedConent(contentStream, COSName.IMAGE);
 		contentStream.drawImage(pdImageXObject, x, y, w, h);
 		contentStream.endMarkedContent();
@@ -223,74 +935,89 @@ public class JpegPdfConcatImpl implements JpegPdfConcat {
 
 
 		contentStream.close();
+		compressContents(page);
+		writePage(page);
 	}
 
-	private float drawWithWidth(PDPageContentStream content, String text, float paragraphWidth, PDFont[] fonts,
-			int fontSize) throws IOException {
-		text = fixText(text);
-		int start = 0;
-		int end = 0;
-		float fontHeight = 0;
-		// get the max height of all possible fonts.
-		for (PDFont font : fonts) {
-			fontHeight = Math.max((font.getFontDescriptor().getCapHeight()) / 1000 * fontSize * (float) 1.5, fontHeight);
-		}
-		float height = 0;
-		float width = 0;
-		for (int i : possibleWrapPoints(text)) {
-			String textSnippet = text.substring(start, i);
-			FontAndText fontAndText = pickFontAndText(textSnippet, fonts);
-			PDFont font = fontAndText.font;
-			textSnippet = fontAndText.text;
-			width += font.getStringWidth(textSnippet) / 1000 * fontSize;
-			content.setFont(font, fontSize);
-			content.showText(textSnippet);
-			if (width > paragraphWidth) {
-				content.newLineAtOffset(0, -fontHeight);
-				height += fontHeight;
-				width = 0;
-			}
-			start = i;
-		}
-		String lastSnippet = text.substring(start);
-		FontAndText fontAndText = pickFontAndText(lastSnippet, fonts);
-		PDFont font = fontAndText.font;
-		lastSnippet = fontAndText.text;
-		content.setFont(font, fontSize);
-		content.showText(lastSnippet);
-		return height;
+	/**
+	 * Leading for the tallest of the value fonts, including the Arabic font whether or not it has been loaded, so
+	 * the layout doesn't depend on it.
+	 */
+	private float lineLeading(int fontSize) throws IOException {
+		float capHeight = Math.max(latinRegFont.getFontDescriptor().getCapHeight(), FontCache.getCapHeight(ARABIC_FONT));
+		return capHeight / 1000 * fontSize * (float) 1.5;
 	}
 
-	private int[] possibleWrapPoints(String text) {
-		String[] split = text.split("(?<=\\W)");
-		int[] ret = new int[split.length];
-		ret[0] = split[0].length();
-		for (int i = 1; i < split.length; i++)
-			ret[i] = ret[i - 1] + split[i].length();
-		return ret;
+	/**
+	 * The cover page logo, compressed once per JVM.
+	 */
+	private static synchronized ReusableImage getLogo() throws IOException {
+		if (logo == null) {
+			try (InputStream in = JpegPdfConcatImpl.class.getResourceAsStream("/logo.png")) {
+				logo = ReusableImage.encode(ImageIO.read(in));
+			}
+		}
+		return logo;
 	}
 
 
-	private float drawPropertiesToContentStream(PDDocument document, PDPage page, PDPageContentStream contentStream,
+	float drawPropertiesToContentStream(PDDocument document, PDPage page, PDPageContentStream contentStream,
 			String caption,
 			List<Property> properties, int titleFontSize, int fontSize,
 			float yPos,
 			Color titleColor, Color linkColor, String headingStructureType )
 			throws IOException {
-		float margin = 50;
+		PropertyBlock block = layoutProperties(caption, properties, titleFontSize, fontSize);
+		return drawPropertiesToContentStream(page, contentStream, block, yPos, titleColor, linkColor, headingStructureType);
+	}
 
-		PDFont labelFont = latinBoldFont;
-		PDFont[] valueFonts = new PDFont[] {latinRegFont, arabicRegFont};
+	/**
+	 * Picks the fonts and wraps the caption and property values without drawing anything, so the height of the
+	 * block is known before it is drawn.
+	 * @return
+	 * @throws IOException
+	 */
+	PropertyBlock layoutProperties(String caption, List<Property> properties, int titleFontSize, int fontSize) throws IOException {
+		float margin = 50;
+		PDFont[] valueFonts = getValueFonts(caption, properties);
 		FontAndText titleFontAndText = pickFontAndText(caption, valueFonts);
-		PDFont titleFont = titleFontAndText.font;
-		caption = titleFontAndText.text;
+		PropertyBlock block = new PropertyBlock();
+		block.labelFont = latinBoldFont;
+		block.titleFont = titleFontAndText.font;
+		block.titleFontSize = titleFontSize;
+		block.fontSize = fontSize;
+		block.titleFontHeight = (block.titleFont.getFontDescriptor().getCapHeight()) / 1000 * titleFontSize;
+		block.fontHeight = (block.titleFont.getFontDescriptor().getCapHeight()) / 1000 * fontSize;
+		block.captionLeading = lineLeading(titleFontSize);
+		block.captionParagraph = TextLayout.layout(fixText(titleFontAndText.text), valueFonts, titleFontSize, PDRectangle.LETTER.getWidth() - 2 * margin);
+		block.valueLeading = lineLeading(fontSize);
+		block.properties = properties;
+		if (properties != null) {
+			for (Property property : properties) {
+				block.maxTitleWidth = Math.max(GlyphWidths.forFont(block.labelFont).getStringWidth(fixText(property.getTitle())) / 1000 * fontSize + 10, block.maxTitleWidth);
+			}
+			float paraWidth = PDRectangle.LETTER.getWidth() - 2 * margin - block.maxTitleWidth;
+			for (Property property : properties) {
+				block.valueParagraphs.add(TextLayout.layout(fixText(property.getValue()), valueFonts, fontSize, paraWidth));
+			}
+		}
+		return block;
+	}
+
+	float drawPropertiesToContentStream(PDPage page, PDPageContentStream contentStream, PropertyBlock block,
+			float yPos,
+			Color titleColor, Color linkColor, String headingStructureType )
+			throws IOException {
+		float margin = 50;
 
-		float titleFontHeight = (titleFont.getFontDescriptor().getCapHeight()) / 1000 * titleFontSize;
-		float fontHeight = (titleFont.getFontDescriptor().getCapHeight()) / 1000 * fontSize;
+		PDFont labelFont = block.labelFont;
+		PDFont titleFont = block.titleFont;
+		int fontSize = block.fontSize;
+		float fontHeight = block.fontHeight;
 		COSDictionary dictionary = beginMarkedConent(contentStream, COSName.P);
 		contentStream.beginText();
-		contentStream.setFont(titleFont, titleFontSize);
-		float titleLeading = titleFontHeight * 2;
+		contentStream.setFont(titleFont, block.titleFontSize);
+		float titleLeading = block.titleFontHeight * 2;
 		float leading = fontHeight * 2;
 		contentStream.setLeading(titleLeading);
 		contentStream.newLineAtOffset(margin, PDRectangle.LETTER.getHeight() - yPos - fontHeight);
@@ -300,7 +1027,7 @@ public class JpegPdfConcatImpl implements JpegPdfConcat {
 			contentStream.setNonStrokingColor(titleColor);
 		}
 
-		yPos += drawWithWidth(contentStream, caption, PDRectangle.LETTER.getWidth() - 2 * margin, valueFonts, titleFontSize);
+		yPos += TextLayout.draw(contentStream, block.captionParagraph, block.titleFontSize, block.captionLeading);
 
 		if ( titleColor != null ) {
 			contentStream.setNonStrokingColor(0,0,0);
@@ -314,13 +1041,10 @@ public class JpegPdfConcatImpl implements JpegPdfConcat {
 		contentStream.setFont(labelFont, fontSize);
 		contentStream.setLeading(leading);
 		yPos += leading;
-		if (properties != null) {
-			float maxTitleWidth = 0;
-			for (Property property : properties) {
-				maxTitleWidth = Math.max(labelFont.getStringWidth(fixText(property.getTitle())) / 1000 * fontSize + 10, maxTitleWidth);
-			}
-			float paraWidth = PDRectangle.LETTER.getWidth() - 2 * margin - maxTitleWidth;
-			for (Property property: properties ) {
+		if (block.properties != null) {
+			float maxTitleWidth = block.maxTitleWidth;
+			for (int i = 0; i < block.properties.size(); i++) {
+				Property property = block.properties.get(i);
 				contentStream.setFont(labelFont, fontSize);
 				dictionary = beginMarkedConent(contentStream, COSName.P);
 				contentStream.showText(fixText(property.getTitle()) + " ");
@@ -330,7 +1054,7 @@ public class JpegPdfConcatImpl implements JpegPdfConcat {
 				if ( link ) {
 					contentStream.setNonStrokingColor(linkColor);
 				}
-				yPos += drawWithWidth(contentStream, fixText(property.getValue()), paraWidth, valueFonts, fontSize);
+				yPos += TextLayout.draw(contentStream, block.valueParagraphs.get(i), fontSize, block.valueLeading);
 				if ( link ) {
 					contentStream.setNonStrokingColor(Color.BLACK);
 				}
@@ -347,13 +1071,7 @@ public class JpegPdfConcatImpl implements JpegPdfConcat {
 	}
 
 	public static String fixText(String text ) {
-		return text.replace("\u00a0", " ")
-				.replace('\n', ' ')
-				.replace('\r', ' ')
-				.replace('\t', ' ')
-				.replaceAll("\\p{Cc}", "")
-                                .replace("\u202A", "")
-                                .replace("\u200F", "");
+		return TextLayout.fixText(text);
 	}
 
 	public static final Pattern VALID_EMAIL_ADDRESS_REGEX = Pattern.compile("^[A-Z0-9._%+-]+@[A-Z0-9.-]+\\.[A-Z]{2,6}$",
@@ -371,120 +1089,110 @@ public class JpegPdfConcatImpl implements JpegPdfConcat {
 		return false;
 	}
 
-	private void addJpegPageToDocument(JpegPdfPage jpegPdfPage) throws IOException {
+	/**
+	 * Lays out the text of a page, which fixes where its image goes.
+	 * @param jpegPdfPage
+	 * @return
+	 * @throws IOException
+	 */
+	private PageLayout layoutJpegPage(JpegPdfPage jpegPdfPage) throws IOException {
+		long start = System.nanoTime();
+		PageMetrics metrics = jobMetrics.newPage(jpegPdfPage.getJpegSource());
 		float margin = 50;
+		float top = 50;
+		PropertyBlock properties = layoutProperties(jpegPdfPage.getCaption(), jpegPdfPage.getProperties(), 12, 9);
+		ImagePlacement imagePlacement = new ImagePlacement(PDRectangle.LETTER, top + properties.getHeight() - 40, margin);
+		metrics.addSince(Stage.LAYOUT, start);
+		return new PageLayout(jpegPdfPage, properties, top, imagePlacement, metrics);
+	}
+
+	private void addJpegPageToDocument(PageLayout layout, EncodedImage encodedImage) throws IOException {
 		PDPage page = new PDPage(PDRectangle.LETTER);
 		page.getCOSObject().setItem(COSName.getPDFName("Tabs"), COSName.S);
 		document.addPage(page);
-		PDPageContentStream contentStream = new PDPageContentStream(document, page, AppendMode.OVERWRITE, true);
+		PDPageContentStream contentStream = new PDPageContentStream(document, page, AppendMode.OVERWRITE, flateLevel < 0);
 		addSection( currentPart);
-		float yPos = drawPropertiesToContentStream(document, page, contentStream, jpegPdfPage.getCaption(), jpegPdfPage.getProperties(), 12, 9, 50, null, null, StandardStructureTypes.H1);
-		yPos -= 40;
-		drawImageOnPage(jpegPdfPage, page, contentStream, yPos, margin);
+		drawPropertiesToContentStream(page, contentStream, layout.properties, layout.top, null, null, StandardStructureTypes.H1);
+		drawImageOnPage(layout.jpegPdfPage, encodedImage, page, contentStream, layout.imagePlacement);
 		contentStream.close();
+		compressContents(page);
+		writePage(page);
+	}
+
+	/**
+	 * With a flate level set, compresses the page's uncompressed content stream at that level.  PDFBox only takes
+	 * its level from a JVM wide system property.
+	 * @param page
+	 * @throws IOException
+	 */
+	private void compressContents(PDPage page) throws IOException {
+		COSBase contents = page.getCOSObject().getDictionaryObject(COSName.CONTENTS);
+		if (flateLevel < 0 || !(contents instanceof COSStream) || ((COSStream) contents).getFilters() != null) {
+			return;
+		}
+		COSStream stream = (COSStream) contents;
+		byte[] data;
+		try (InputStream in = stream.createRawInputStream()) {
+			data = IOUtils.toByteArray(in);
+		}
+		Deflater deflater = new Deflater(flateLevel);
+		try (OutputStream out = new DeflaterOutputStream(stream.createRawOutputStream(), deflater)) {
+			out.write(data);
+		} finally {
+			deflater.end();
+		}
+		stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
 	}
 
-	private void drawImageOnPage(JpegPdfPage jpegPdfPage, PDPage page, PDPageContentStream contentStream, float yPos,
-			float margin) throws IOException {
-		InputStream in = jpegPdfPage.createInputStream();
+	/**
+	 * With streaming output, writes the finished page and everything it uses except fonts, then empties the page
+	 * dictionary.  The empty dictionary stays in the page tree and structure tree to stand in for the written page.
+	 * @param page
+	 * @throws IOException
+	 */
+	private void writePage(PDPage page) throws IOException {
+		if (pdfWriter == null) {
+			return;
+		}
+		pdfWriter.writeObject(page.getCOSObject());
+		page.getCOSObject().clear();
+	}
 
-		BufferedImage bimg = getBufferedImage(in, jpegPdfPage.getJpegSource());
-		float width = bimg.getWidth();
-		float height = bimg.getHeight();
-		float pageAspect = PDRectangle.LETTER.getWidth() / (PDRectangle.LETTER.getHeight() - yPos);
-		float imageAspect = width / height;
-		float x, y, w, h;
-		if (pageAspect > imageAspect) {
-			y = margin;
-			h = PDRectangle.LETTER.getHeight() - yPos - 2 * margin;
-			w = h * imageAspect;
-			x = (PDRectangle.LETTER.getWidth() - w) / 2;
-		} else {
-			x = margin;
-			w = PDRectangle.LETTER.getWidth() - 2 * margin;
-			h = w / imageAspect;
-			y = (PDRectangle.LETTER.getHeight() - yPos - h) / 2;
-		}
-//		if ( imageAspect > 1 ) {
-//			bimg = resizeImage(bimg, 2000, (int)(2000.0 / imageAspect));
-//		} else {
-//			bimg = resizeImage(bimg, (int)(2000.0 * imageAspect), 2000);
-//		}
-		PDImageXObject pdImageXObject = JPEGFactory.createFromImage(document, bimg);
+	private void drawImageOnPage(JpegPdfPage jpegPdfPage, EncodedImage encodedImage, PDPage page, PDPageContentStream contentStream,
+			ImagePlacement imagePlacement) throws IOException {
+		PDRectangle rectangle = imagePlacement.place(encodedImage.getWidth(), encodedImage.getHeight());
+		PDImageXObject pdImageXObject = getImageXObject(encodedImage);
 		COSDictionary cosDictionary = beginMarkedConent(contentStream, COSName.IMAGE);
-		contentStream.drawImage(pdImageXObject, x, y, w, h);
+		contentStream.drawImage(pdImageXObject, rectangle.getLowerLeftX(), rectangle.getLowerLeftY(), rectangle.getWidth(), rectangle.getHeight());
 		contentStream.endMarkedContent();
 		addImageToStructure( page, currentSection, pdImageXObject, jpegPdfPage.getCaption(), cosDictionary);
 	}
 
-	private BufferedImage getBufferedImage(InputStream in, String source) throws IOException {
-		BufferedImage bimg;
-		File processingInputFile = null;
-		File processingOutputFile = null;
-		if (imageProcessingCommand != null) {
-			processingInputFile = File.createTempFile("pdfPageOriginal", "img");
-			java.nio.file.Files.copy(
-					in,
-					processingInputFile.toPath(),
-					StandardCopyOption.REPLACE_EXISTING);
-			in.close();
-			processingOutputFile = File.createTempFile("pdfPageConverted", ".jpg");
-			processingOutputFile.delete();
-			int errorCount = 0;
-			boolean successful = false;
-			while (!successful) {
-				try {
-					Process process;
-					String cmd = String.format(imageProcessingCommand, processingInputFile.getAbsolutePath(), processingOutputFile.getAbsolutePath());
-					process = new ProcessBuilder(cmd.split("\\s+")).inheritIO().start();
-					int exitCode = 0;
-					try {
-						exitCode = process.waitFor();
-					} catch (InterruptedException e) {
-						throw new IOException("Interrupted: " + source, e);
-					}
-					if (exitCode == 0 && processingOutputFile.exists()) {
-						in = new FileInputStream(processingOutputFile);
-						successful = true;
-					} else {
-						throw new IOException("Preprocessing failed for (" + source + "): " + cmd);
-					}
-				} catch (IOException e) {
-					errorCount++;
-					if (errorCount > 5) throw e;
-					else try {Thread.sleep(100);} catch (InterruptedException intErr){}
+
+	/**
+	 * Pages showing the same image share its XObject.  The key is only published to the page workers once the
+	 * XObject exists, so a reference from a worker always finds it.
+	 * @param encodedImage
+	 * @return
+	 * @throws IOException
+	 */
+	private PDImageXObject getImageXObject(EncodedImage encodedImage) throws IOException {
+		String contentKey = encodedImage.getContentKey();
+		PDImageXObject pdImageXObject = contentKey != null ? imageXObjects.get(contentKey) : null;
+		if (pdImageXObject == null) {
+			pdImageXObject = encodedImage.createXObject(document);
+			if (contentKey != null && embeddedImages != null) {
+				// chunks built at the same time can both embed an image; the first one added is shared
+				PDImageXObject existing = imageXObjects.putIfAbsent(contentKey, pdImageXObject);
+				if (existing != null) {
+					pdImageXObject = existing;
 				}
+				embeddedImages.add(contentKey);
 			}
 		}
-		try {
-			bimg = ImageIO.read(in);
-		} catch (IOException e) {
-			throw new IOException("Error reading image after convert for (" + source + ")", e);
-		} finally {
-			in.close();
-		}
-		if (processingInputFile != null) {
-			processingInputFile.delete();
-		}
-		if (processingOutputFile != null) {
-			processingOutputFile.delete();
-		}
-		return bimg;
-	}
-
-	private BufferedImage resizeImage( BufferedImage image, int width, int height ) {
-		if ( image.getWidth() < width ) {
-			width = image.getWidth();
-			height = image.getHeight();
-		}
-		BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-		Graphics2D graphics2D = newImage.createGraphics();
-		graphics2D.drawImage(image, 0, 0, width, height, null);
-		graphics2D.dispose();
-		return newImage;
+		return pdImageXObject;
 	}
 
-
 	private COSDictionary beginMarkedConent(PDPageContentStream contentStream, COSName name ) throws IOException {
 		COSDictionary cosDictionary = new COSDictionary();
 		cosDictionary.setInt(COSName.MCID, mcid);
@@ -535,6 +1243,71 @@ public class JpegPdfConcatImpl implements JpegPdfConcat {
 
 	}
 
+	/**
+	 * Caption and properties laid out into lines, ready to draw.
+	 */
+	static class PropertyBlock {
+		private PDFont labelFont;
+		private PDFont titleFont;
+		private int titleFontSize;
+		private int fontSize;
+		private float titleFontHeight;
+		private float fontHeight;
+		private TextLayout.Paragraph captionParagraph;
+		private float captionLeading;
+		private List<Property> properties;
+		private final List<TextLayout.Paragraph> valueParagraphs = new ArrayList<>();
+		private float valueLeading;
+		private float maxTitleWidth;
+
+		/**
+		 * @return how far down the page drawing the block moves
+		 */
+		float getHeight() {
+			float height = paragraphHeight(captionParagraph, captionLeading) + fontHeight * 2;
+			for (TextLayout.Paragraph paragraph : valueParagraphs) {
+				height += paragraphHeight(paragraph, valueLeading) + fontHeight * (float) 2.2;
+			}
+			return height;
+		}
+
+		private static float paragraphHeight(TextLayout.Paragraph paragraph, float leading) {
+			return Math.max(0, paragraph.getLineCount() - 1) * leading;
+		}
+	}
+
+	private static class PageLayout {
+		private final JpegPdfPage jpegPdfPage;
+		private final PropertyBlock properties;
+		private final float top;
+		private final ImagePlacement imagePlacement;
+		private final PageMetrics metrics;
+
+		PageLayout(JpegPdfPage jpegPdfPage, PropertyBlock properties, float top, ImagePlacement imagePlacement, PageMetrics metrics) {
+			this.jpegPdfPage = jpegPdfPage;
+			this.properties = properties;
+			this.top = top;
+			this.imagePlacement = imagePlacement;
+			this.metrics = metrics;
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private static final AtomicInteger threadCount = new AtomicInteger();
+		private final String prefix;
+
+		WorkerThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 	private static class StreamGobbler implements Runnable {
 		private InputStream inputStream;
 		private Consumer<String> consumer;
@@ -0,0 +1,311 @@
+package edu.yale.library.jpegs2pdf.cache;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.pdfbox.io.IOUtils;
+
+/**
+ * A size capped cache of files on local disk, shared safely by several threads and several JVMs.
+ * <p>
+ * Entries are stored in a file named after the SHA-256 digest of their key, holding a small metadata header followed
+ * by the data.  Entries are written to a temporary file and renamed into place, so readers only ever see whole
+ * entries, and the last writer wins when two processes store the same key.  Reading an entry updates its modified
+ * time, and when the cache grows past its size cap the least recently used entries are deleted.
+ */
+public class DiskCache {
+
+	private static final String ENTRY_SUFFIX = ".entry";
+	private static final String PART_SUFFIX = ".part";
+	private static final long STALE_PART_MILLIS = 60 * 60 * 1000;
+
+	private final Path directory;
+	private final long maxBytes;
+	private final AtomicLong size = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param directory created if it does not exist
+	 * @param maxBytes size the cache is trimmed back to when it grows past it
+	 * @throws IOException
+	 */
+	public DiskCache(File directory, long maxBytes) throws IOException {
+		this.directory = directory.toPath();
+		this.maxBytes = maxBytes;
+		Files.createDirectories(this.directory);
+		size.set(scan().stream().mapToLong(file -> file.size).sum());
+	}
+
+	/**
+	 * @param key
+	 * @return the entry, or null if it is not in the cache
+	 */
+	public Entry get(String key) {
+		Path path = pathFor(key);
+		try {
+			Map<String, String> metadata;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 8192))) {
+				metadata = readMetadata(in);
+			}
+			touch(path);
+			hits.incrementAndGet();
+			return new Entry(path, metadata);
+		} catch (NoSuchFileException e) {
+			misses.incrementAndGet();
+			return null;
+		} catch (IOException e) {
+			// a corrupt or unreadable entry is a miss, and is replaced by the next put
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Stores an entry, replacing any existing entry with the same key.
+	 * @param key
+	 * @param data read to the end but not closed
+	 * @param metadata small values stored with the entry
+	 * @return the stored entry
+	 * @throws IOException
+	 */
+	public Entry put(String key, InputStream data, Map<String, String> metadata) throws IOException {
+		Path path = pathFor(key);
+		Files.createDirectories(path.getParent());
+		Path part = Files.createTempFile(directory, "cache", PART_SUFFIX);
+		try {
+			try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(part))) {
+				writeMetadata(out, metadata);
+				IOUtils.copy(data, out);
+			}
+			long length = Files.size(part);
+			try {
+				Files.move(part, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(part, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (size.addAndGet(length) > maxBytes) {
+				trim(path);
+			}
+			return new Entry(path, new LinkedHashMap<>(metadata));
+		} finally {
+			Files.deleteIfExists(part);
+		}
+	}
+
+	/**
+	 * Marks an entry as recently used.
+	 * @param entry
+	 */
+	public void touch(Entry entry) {
+		try {
+			touch(entry.path);
+		} catch (IOException e) {
+			// evicted in the meantime, which only affects its place in the eviction order
+		}
+	}
+
+	public void remove(String key) throws IOException {
+		Files.deleteIfExists(pathFor(key));
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache is below its size cap.  The directory is rescanned, so
+	 * entries stored by other processes are counted too.
+	 * @throws IOException
+	 */
+	public void trim() throws IOException {
+		trim(null);
+	}
+
+	/**
+	 * @param keep an entry that is not evicted, so a caller can read the entry it has just stored
+	 */
+	private synchronized void trim(Path keep) throws IOException {
+		List<CachedFile> files = scan();
+		long total = files.stream().mapToLong(file -> file.size).sum();
+		Collections.sort(files, Comparator.comparingLong(file -> file.lastModified));
+		for (CachedFile file : files) {
+			if (total <= maxBytes) {
+				break;
+			}
+			if (file.path.equals(keep)) {
+				continue;
+			}
+			if (Files.deleteIfExists(file.path)) {
+				evictions.incrementAndGet();
+			}
+			total -= file.size;
+		}
+		size.set(total);
+	}
+
+	public long getSize() {
+		return size.get();
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	private Path pathFor(String key) {
+		String digest = sha256(key);
+		return directory.resolve(digest.substring(0, 2)).resolve(digest + ENTRY_SUFFIX);
+	}
+
+	private static void touch(Path path) throws IOException {
+		Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Lists the entries, deleting temporary files left behind by writers that died.
+	 */
+	private List<CachedFile> scan() throws IOException {
+		List<CachedFile> files = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+			for (Path child : children) {
+				if (Files.isDirectory(child)) {
+					try (DirectoryStream<Path> entries = Files.newDirectoryStream(child, "*" + ENTRY_SUFFIX)) {
+						for (Path entry : entries) {
+							try {
+								BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+								files.add(new CachedFile(entry, attributes.size(), attributes.lastModifiedTime().toMillis()));
+							} catch (NoSuchFileException e) {
+								// removed by another process
+							}
+						}
+					}
+				} else if (child.getFileName().toString().endsWith(PART_SUFFIX)) {
+					try {
+						if (now - Files.getLastModifiedTime(child).toMillis() > STALE_PART_MILLIS) {
+							Files.deleteIfExists(child);
+						}
+					} catch (NoSuchFileException e) {
+						// finished by its writer
+					}
+				}
+			}
+		}
+		return files;
+	}
+
+	private static void writeMetadata(DataOutputStream out, Map<String, String> metadata) throws IOException {
+		out.writeInt(metadata.size());
+		for (Map.Entry<String, String> item : metadata.entrySet()) {
+			out.writeUTF(item.getKey());
+			out.writeUTF(item.getValue());
+		}
+	}
+
+	private static Map<String, String> readMetadata(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > 1000) {
+			throw new IOException("Corrupt cache entry");
+		}
+		Map<String, String> metadata = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			metadata.put(in.readUTF(), in.readUTF());
+		}
+		return metadata;
+	}
+
+	static String sha256(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A cached item.  The data stays readable through streams opened before the entry is evicted or replaced.
+	 */
+	public static class Entry {
+		private final Path path;
+		private final Map<String, String> metadata;
+
+		Entry(Path path, Map<String, String> metadata) {
+			this.path = path;
+			this.metadata = Collections.unmodifiableMap(metadata);
+		}
+
+		public Map<String, String> getMetadata() {
+			return metadata;
+		}
+
+		/**
+		 * @return the entry data, without the metadata
+		 * @throws IOException if the entry has been evicted
+		 */
+		public InputStream openStream() throws IOException {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024));
+			try {
+				readMetadata(in);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			return in;
+		}
+
+		/**
+		 * @return the file holding the entry, metadata header included
+		 */
+		public File getFile() {
+			return path.toFile();
+		}
+	}
+
+	private static class CachedFile {
+		private final Path path;
+		private final long size;
+		private final long lastModified;
+
+		CachedFile(Path path, long size, long lastModified) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package edu.yale.library.jpegs2pdf.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceCMYK;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+
+import edu.yale.library.jpegs2pdf.image.EncodedImage;
+
+/**
+ * Keeps finished page images, as they are embedded in the PDF, in a DiskCache.  Regenerating a document whose images
+ * haven't changed, e.g. after a title or rights statement is corrected, then skips fetching, converting, decoding and
+ * encoding them.
+ * <p>
+ * The key is made by the caller from the source and every setting that affects the encoded image.  Local files can
+ * be fingerprinted by their size and modified time, but a remote image can change at the same URL, so entries for
+ * remote sources are only used until they reach the maximum age.
+ */
+public class EncodedImageCache {
+
+	static final String STORED = "stored";
+	static final String FILTER = "filter";
+	static final String WIDTH = "width";
+	static final String HEIGHT = "height";
+	static final String BITS_PER_COMPONENT = "bpc";
+	static final String COLOR_SPACE = "colorspace";
+	static final String LENGTH = "length";
+	static final String CONTENT_KEY = "contentkey";
+	static final String MASK = "mask.";
+
+	private final DiskCache diskCache;
+	private long remoteMaxAge = 7L * 24 * 60 * 60 * 1000;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public EncodedImageCache(DiskCache diskCache) {
+		this.diskCache = diskCache;
+	}
+
+	/**
+	 * @param key
+	 * @param remote whether the source is remote, so the entry expires
+	 * @return the image, or null if it is not in the cache or has expired
+	 */
+	public EncodedImage get(String key, boolean remote) {
+		DiskCache.Entry entry = diskCache.get(key);
+		try {
+			if (entry != null && !(remote && isExpired(entry))) {
+				Map<String, String> metadata = entry.getMetadata();
+				try (DataInputStream in = new DataInputStream(entry.openStream())) {
+					EncodedImage softMask = metadata.containsKey(MASK + WIDTH) ? readImage(in, metadata, MASK, null) : null;
+					EncodedImage image = readImage(in, metadata, "", softMask);
+					hits.incrementAndGet();
+					return image.withContentKey(metadata.get(CONTENT_KEY));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// evicted since it was looked up, or corrupt, and replaced by the next put
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Stores an image, replacing any entry with the same key.  The soft mask, if there is one, is stored before the
+	 * image.  Images that can't be stored are left out, as the cache is only an optimization.
+	 * @param key
+	 * @param image a whole image, not a reference
+	 */
+	public void put(String key, EncodedImage image) {
+		Map<String, String> metadata = new LinkedHashMap<>();
+		metadata.put(STORED, Long.toString(System.currentTimeMillis()));
+		if (image.getContentKey() != null) {
+			metadata.put(CONTENT_KEY, image.getContentKey());
+		}
+		try {
+			InputStream data = new ByteArrayInputStream(image.getData());
+			if (image.getSoftMask() != null) {
+				describe(metadata, MASK, image.getSoftMask());
+				data = new SequenceInputStream(new ByteArrayInputStream(image.getSoftMask().getData()), data);
+			}
+			describe(metadata, "", image);
+			diskCache.put(key, data, metadata);
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println("Unable to cache encoded image: " + e.getMessage());
+		}
+	}
+
+	private boolean isExpired(DiskCache.Entry entry) {
+		String stored = entry.getMetadata().get(STORED);
+		return stored == null || System.currentTimeMillis() - Long.parseLong(stored) > remoteMaxAge;
+	}
+
+	private static void describe(Map<String, String> metadata, String prefix, EncodedImage image) {
+		if (image.getSoftMask() != null && !prefix.isEmpty()) {
+			throw new IllegalArgumentException("Soft mask with a soft mask");
+		}
+		metadata.put(prefix + FILTER, image.getFilter().getName());
+		metadata.put(prefix + WIDTH, Integer.toString(image.getWidth()));
+		metadata.put(prefix + HEIGHT, Integer.toString(image.getHeight()));
+		metadata.put(prefix + BITS_PER_COMPONENT, Integer.toString(image.getBitsPerComponent()));
+		metadata.put(prefix + COLOR_SPACE, colorSpaceName(image.getColorSpace()));
+		metadata.put(prefix + LENGTH, Integer.toString(image.getData().length));
+	}
+
+	private static EncodedImage readImage(DataInputStream in, Map<String, String> metadata, String prefix, EncodedImage softMask) throws IOException {
+		byte[] data = new byte[Integer.parseInt(metadata.get(prefix + LENGTH))];
+		in.readFully(data);
+		return new EncodedImage(data, COSName.getPDFName(metadata.get(prefix + FILTER)),
+				Integer.parseInt(metadata.get(prefix + WIDTH)), Integer.parseInt(metadata.get(prefix + HEIGHT)),
+				Integer.parseInt(metadata.get(prefix + BITS_PER_COMPONENT)), colorSpace(metadata.get(prefix + COLOR_SPACE)), softMask);
+	}
+
+	/**
+	 * Page images only use the device color spaces, which are stored by name.
+	 */
+	private static String colorSpaceName(PDColorSpace colorSpace) {
+		if (colorSpace instanceof PDDeviceGray || colorSpace instanceof PDDeviceRGB || colorSpace instanceof PDDeviceCMYK) {
+			return colorSpace.getName();
+		}
+		throw new IllegalArgumentException("Color space can't be cached: " + colorSpace);
+	}
+
+	private static PDColorSpace colorSpace(String name) throws IOException {
+		if (COSName.DEVICEGRAY.getName().equals(name)) {
+			return PDDeviceGray.INSTANCE;
+		} else if (COSName.DEVICERGB.getName().equals(name)) {
+			return PDDeviceRGB.INSTANCE;
+		} else if (COSName.DEVICECMYK.getName().equals(name)) {
+			return PDDeviceCMYK.INSTANCE;
+		}
+		throw new IOException("Unknown color space in cache entry: " + name);
+	}
+
+	/**
+	 * @param remoteMaxAge milliseconds an image from a remote source is used for before it is fetched again
+	 */
+	public void setRemoteMaxAge(long remoteMaxAge) {
+		this.remoteMaxAge = remoteMaxAge;
+	}
+
+	public long getRemoteMaxAge() {
+		return remoteMaxAge;
+	}
+
+	public DiskCache getDiskCache() {
+		return diskCache;
+	}
+
+	/**
+	 * @return number of images read from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of images looked up that were missing or expired
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,107 @@
+package edu.yale.library.jpegs2pdf.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.file.NoSuchFileException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.yale.library.jpegs2pdf.http.HttpFetcher;
+import edu.yale.library.jpegs2pdf.http.HttpStatusException;
+
+/**
+ * Fetches remote page images through a DiskCache keyed by URL.
+ * <p>
+ * Cached images are revalidated with a conditional request using the ETag and Last-Modified headers the server
+ * sent, so an unchanged image costs a request without a body.  If the server sends neither header the image is
+ * downloaded again.
+ */
+public class HttpImageCache {
+
+	static final String SOURCE_URL = "url";
+	static final String ETAG = "etag";
+	static final String LAST_MODIFIED = "last-modified";
+
+	private final DiskCache diskCache;
+	private final HttpFetcher httpFetcher;
+	private final AtomicLong revalidated = new AtomicLong();
+	private final AtomicLong downloaded = new AtomicLong();
+
+	public HttpImageCache(DiskCache diskCache) {
+		this(diskCache, HttpFetcher.getDefault());
+	}
+
+	public HttpImageCache(DiskCache diskCache, HttpFetcher httpFetcher) {
+		this.diskCache = diskCache;
+		this.httpFetcher = httpFetcher;
+	}
+
+	/**
+	 * @param address
+	 * @return the image data, from the cache if it is still current
+	 * @throws IOException
+	 */
+	public InputStream open(String address) throws IOException {
+		DiskCache.Entry entry = diskCache.get(address);
+		while (true) {
+			Map<String, String> headers = new LinkedHashMap<>();
+			if (entry != null) {
+				String etag = entry.getMetadata().get(ETAG);
+				String lastModified = entry.getMetadata().get(LAST_MODIFIED);
+				if (etag != null) {
+					headers.put("If-None-Match", etag);
+				}
+				if (lastModified != null) {
+					headers.put("If-Modified-Since", lastModified);
+				}
+			}
+			try (HttpFetcher.Response response = httpFetcher.fetch(address, headers)) {
+				if (response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+					try {
+						InputStream in = entry.openStream();
+						revalidated.incrementAndGet();
+						return in;
+					} catch (NoSuchFileException e) {
+						// evicted since it was looked up, so fetch it unconditionally
+						entry = null;
+						continue;
+					}
+				}
+				if (response.getStatus() != HttpURLConnection.HTTP_OK) {
+					throw new HttpStatusException(address, response.getStatus());
+				}
+				Map<String, String> metadata = new LinkedHashMap<>();
+				metadata.put(SOURCE_URL, address);
+				if (response.getHeader("ETag") != null) {
+					metadata.put(ETAG, response.getHeader("ETag"));
+				}
+				if (response.getHeader("Last-Modified") != null) {
+					metadata.put(LAST_MODIFIED, response.getHeader("Last-Modified"));
+				}
+				DiskCache.Entry stored = diskCache.put(address, response.getInputStream(), metadata);
+				downloaded.incrementAndGet();
+				return stored.openStream();
+			}
+		}
+	}
+
+	public DiskCache getDiskCache() {
+		return diskCache;
+	}
+
+	/**
+	 * @return number of cached images confirmed unchanged by the server
+	 */
+	public long getRevalidated() {
+		return revalidated.get();
+	}
+
+	/**
+	 * @return number of images downloaded and stored
+	 */
+	public long getDownloaded() {
+		return downloaded.get();
+	}
+}
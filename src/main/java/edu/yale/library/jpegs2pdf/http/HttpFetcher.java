@@ -0,0 +1,408 @@
+package edu.yale.library.jpegs2pdf.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches page images over HTTP.
+ * <p>
+ * Connections are kept alive and reused: response bodies are read to the end and closed rather than disconnected.
+ * Requests have connect and read timeouts, and a total timeout covering retries and reading the body.  Only
+ * timeouts, connection failures and 408, 429 and 5xx responses are retried, with exponential backoff and jitter,
+ * honouring Retry-After.  The number of requests in flight to one host is capped, with the permit held until the
+ * response body is closed.  One fetcher is meant to be shared by every document in the JVM.
+ */
+public class HttpFetcher {
+
+	private static HttpFetcher defaultFetcher;
+
+	private int connectTimeout = 10000;
+	private int readTimeout = 30000;
+	private long totalTimeout = 300000;
+	private int maxRetries = 5;
+	private long initialBackoff = 250;
+	private long maxBackoff = 10000;
+	private int maxRequestsPerHost = 8;
+
+	private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong latencyNanos = new AtomicLong();
+	private final AtomicLong fetchNanos = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	/**
+	 * @return a fetcher with the default settings, shared by callers that are not given one
+	 */
+	public static synchronized HttpFetcher getDefault() {
+		if (defaultFetcher == null) {
+			defaultFetcher = new HttpFetcher();
+		}
+		return defaultFetcher;
+	}
+
+	/**
+	 * GETs the address, failing unless the response is 200.
+	 * @param address
+	 * @return the response body, which must be closed
+	 * @throws IOException
+	 */
+	public InputStream open(String address) throws IOException {
+		Response response = fetch(address, Collections.emptyMap());
+		if (response.getStatus() != HttpURLConnection.HTTP_OK) {
+			response.close();
+			throw new HttpStatusException(address, response.getStatus());
+		}
+		return response.getInputStream();
+	}
+
+	/**
+	 * GETs the address with the request headers, retrying failures that may be temporary.
+	 * @param address
+	 * @param headers
+	 * @return the response, which must be closed, for 2xx and 304 statuses
+	 * @throws HttpStatusException for other statuses, once any retries are used up
+	 * @throws IOException
+	 */
+	public Response fetch(String address, Map<String, String> headers) throws IOException {
+		URL url = new URL(address);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(totalTimeout);
+		Semaphore permits = hostPermits.computeIfAbsent(url.getHost() + ":" + url.getPort(), host -> new Semaphore(maxRequestsPerHost, true));
+		int attempt = 0;
+		while (true) {
+			long retryAfter = -1;
+			IOException failure;
+			acquire(permits, address, deadline);
+			boolean released = false;
+			try {
+				long start = System.nanoTime();
+				requests.incrementAndGet();
+				HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+				connection.setConnectTimeout(connectTimeout);
+				connection.setReadTimeout((int) Math.max(1, Math.min(readTimeout, remainingMillis(deadline))));
+				for (Map.Entry<String, String> header : headers.entrySet()) {
+					connection.setRequestProperty(header.getKey(), header.getValue());
+				}
+				int status = connection.getResponseCode();
+				latencyNanos.addAndGet(System.nanoTime() - start);
+				if ((status >= 200 && status < 300) || status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					Response response = new Response(status, connection, permits, start, deadline);
+					released = true;
+					return response;
+				}
+				discard(connection);
+				failure = new HttpStatusException(address, status);
+				if (!isRetryable(status)) {
+					throw failure;
+				}
+				retryAfter = parseRetryAfter(connection.getHeaderField("Retry-After"));
+			} catch (HttpStatusException | UnknownHostException e) {
+				failures.incrementAndGet();
+				throw e;
+			} catch (InterruptedIOException e) {
+				if (!(e instanceof SocketTimeoutException)) {
+					failures.incrementAndGet();
+					throw e;
+				}
+				failure = e;
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				if (!released) {
+					permits.release();
+				}
+			}
+			attempt++;
+			long backoff = retryAfter >= 0 ? Math.min(retryAfter, maxBackoff) : backoff(attempt);
+			if (attempt > maxRetries || remainingMillis(deadline) <= backoff) {
+				failures.incrementAndGet();
+				throw failure;
+			}
+			retries.incrementAndGet();
+			sleep(backoff, address);
+		}
+	}
+
+	static boolean isRetryable(int status) {
+		return status == 408 || status == 429 || status >= 500;
+	}
+
+	/**
+	 * @return a random delay between half and all of the limit for the attempt, which doubles with each attempt
+	 */
+	long backoff(int attempt) {
+		long limit = Math.min(maxBackoff, initialBackoff << Math.min(attempt - 1, 20));
+		return ThreadLocalRandom.current().nextLong(limit / 2, limit + 1);
+	}
+
+	private static long parseRetryAfter(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+		} catch (NumberFormatException e) {
+			// HTTP dates are not worth honouring for image servers; use the normal backoff
+			return -1;
+		}
+	}
+
+	private void acquire(Semaphore permits, String address, long deadline) throws IOException {
+		long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(remainingMillis(deadline), TimeUnit.MILLISECONDS)) {
+				failures.incrementAndGet();
+				throw new SocketTimeoutException("Timed out waiting for a connection to fetch " + address);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted fetching " + address);
+		} finally {
+			waitNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	private static void sleep(long millis, String address) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted fetching " + address);
+		}
+	}
+
+	private static long remainingMillis(long deadline) {
+		return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+	}
+
+	/**
+	 * Reads and closes an error response so its connection can be reused.
+	 */
+	private static void discard(HttpURLConnection connection) {
+		try (InputStream in = connection.getErrorStream()) {
+			if (in != null) {
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer) >= 0) {
+					// drain
+				}
+			}
+		} catch (IOException e) {
+			connection.disconnect();
+		}
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Time allowed for a fetch from the first attempt to the end of the response body, retries included.
+	 * @param totalTimeout milliseconds
+	 */
+	public void setTotalTimeout(long totalTimeout) {
+		this.totalTimeout = totalTimeout;
+	}
+
+	public long getTotalTimeout() {
+		return totalTimeout;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param initialBackoff milliseconds before the first retry, doubling for each one after
+	 * @param maxBackoff
+	 */
+	public void setBackoff(long initialBackoff, long maxBackoff) {
+		this.initialBackoff = Math.max(1, initialBackoff);
+		this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+	}
+
+	/**
+	 * Set before the first request; hosts already fetched from keep their limit.
+	 * @param maxRequestsPerHost
+	 */
+	public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+		this.maxRequestsPerHost = Math.max(1, maxRequestsPerHost);
+	}
+
+	public int getMaxRequestsPerHost() {
+		return maxRequestsPerHost;
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * @return total time from sending requests to receiving the response headers
+	 */
+	public long getLatencyMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(latencyNanos.get());
+	}
+
+	/**
+	 * @return total time from sending successful requests to closing their response bodies
+	 */
+	public long getFetchMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(fetchNanos.get());
+	}
+
+	/**
+	 * @return total time spent waiting for the per host limit
+	 */
+	public long getHostWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+	}
+
+	/**
+	 * A successful response.  Closing it, or its input stream, makes the connection available for reuse.
+	 */
+	public class Response implements java.io.Closeable {
+		private final int status;
+		private final HttpURLConnection connection;
+		private final InputStream body;
+
+		Response(int status, HttpURLConnection connection, Semaphore permits, long start, long deadline) throws IOException {
+			this.status = status;
+			this.connection = connection;
+			InputStream in = status == HttpURLConnection.HTTP_NOT_MODIFIED ? null : connection.getInputStream();
+			this.body = new Body(in, connection, permits, start, deadline);
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getHeader(String name) {
+			return connection.getHeaderField(name);
+		}
+
+		/**
+		 * @return the response body, empty for 304 responses
+		 */
+		public InputStream getInputStream() {
+			return body;
+		}
+
+		@Override
+		public void close() throws IOException {
+			body.close();
+		}
+	}
+
+	/**
+	 * Counts the bytes read, enforces the total timeout and gives back the host permit when closed.
+	 */
+	private class Body extends FilterInputStream {
+		private final HttpURLConnection connection;
+		private final Semaphore permits;
+		private final long start;
+		private final long deadline;
+		private boolean closed = false;
+
+		Body(InputStream in, HttpURLConnection connection, Semaphore permits, long start, long deadline) {
+			super(in);
+			this.connection = connection;
+			this.permits = permits;
+			this.start = start;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (in == null) {
+				return -1;
+			}
+			checkDeadline();
+			int b = in.read();
+			if (b >= 0) {
+				bytesRead.incrementAndGet();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (in == null) {
+				return -1;
+			}
+			checkDeadline();
+			int count = in.read(buffer, offset, length);
+			if (count > 0) {
+				bytesRead.addAndGet(count);
+			}
+			return count;
+		}
+
+		private void checkDeadline() throws IOException {
+			if (System.nanoTime() > deadline) {
+				failures.incrementAndGet();
+				connection.disconnect();
+				throw new SocketTimeoutException("Total timeout reading " + connection.getURL());
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} finally {
+				fetchNanos.addAndGet(System.nanoTime() - start);
+				permits.release();
+			}
+		}
+	}
+}
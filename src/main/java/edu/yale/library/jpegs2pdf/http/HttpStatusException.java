@@ -0,0 +1,22 @@
+package edu.yale.library.jpegs2pdf.http;
+
+import java.io.IOException;
+
+/**
+ * An HTTP response with a status that is not a success.
+ */
+public class HttpStatusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+
+	public HttpStatusException(String address, int status) {
+		super("HTTP " + status + " fetching " + address);
+		this.status = status;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+}
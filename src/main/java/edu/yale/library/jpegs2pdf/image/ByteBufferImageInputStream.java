@@ -0,0 +1,58 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * Random access to an image held in a buffer, such as a memory-mapped file.  ImageIO would otherwise copy a stream
+ * into a cache file or memory before the reader could seek in it.
+ */
+class ByteBufferImageInputStream extends ImageInputStreamImpl {
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param buffer read from its position to its limit, which are not changed
+	 */
+	ByteBufferImageInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.slice();
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (streamPos >= buffer.limit()) {
+			return -1;
+		}
+		return buffer.get((int) streamPos++) & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		bitOffset = 0;
+		if (len == 0) {
+			return 0;
+		}
+		if (streamPos >= buffer.limit()) {
+			return -1;
+		}
+		int count = (int) Math.min(len, buffer.limit() - streamPos);
+		ByteBuffer view = buffer.duplicate();
+		view.position((int) streamPos);
+		view.get(b, off, count);
+		streamPos += count;
+		return count;
+	}
+
+	@Override
+	public long length() {
+		return buffer.limit();
+	}
+}
@@ -0,0 +1,121 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * A page image that has already been fetched, decoded and compressed, ready to be embedded into a document.
+ * Instances are immutable so they can be handed from the page workers to the thread writing the document.
+ * <p>
+ * An image may carry a content key identifying its source and size, so pages showing the same image can share one
+ * XObject.  A reference has only the key and size, and stands for an image already embedded in the document.
+ */
+public class EncodedImage {
+
+	private final byte[] data;
+	private final COSName filter;
+	private final int width;
+	private final int height;
+	private final int bitsPerComponent;
+	private final PDColorSpace colorSpace;
+	private final EncodedImage softMask;
+	private final String contentKey;
+
+	public EncodedImage(byte[] data, COSName filter, int width, int height, int bitsPerComponent, PDColorSpace colorSpace, EncodedImage softMask) {
+		this(data, filter, width, height, bitsPerComponent, colorSpace, softMask, null);
+	}
+
+	private EncodedImage(byte[] data, COSName filter, int width, int height, int bitsPerComponent, PDColorSpace colorSpace, EncodedImage softMask,
+			String contentKey) {
+		this.data = data;
+		this.filter = filter;
+		this.width = width;
+		this.height = height;
+		this.bitsPerComponent = bitsPerComponent;
+		this.colorSpace = colorSpace;
+		this.softMask = softMask;
+		this.contentKey = contentKey;
+	}
+
+	/**
+	 * @param contentKey
+	 * @param width
+	 * @param height
+	 * @return a stand in for an image with the content key that is already embedded in the document
+	 */
+	public static EncodedImage reference(String contentKey, int width, int height) {
+		return new EncodedImage(null, null, width, height, 0, null, null, contentKey);
+	}
+
+	/**
+	 * @param contentKey
+	 * @return this image with the content key
+	 */
+	public EncodedImage withContentKey(String contentKey) {
+		return new EncodedImage(data, filter, width, height, bitsPerComponent, colorSpace, softMask, contentKey);
+	}
+
+	/**
+	 * @return the key identifying the source and size of the image, or null
+	 */
+	public String getContentKey() {
+		return contentKey;
+	}
+
+	/**
+	 * @return whether this only refers to an image already embedded in the document
+	 */
+	public boolean isReference() {
+		return data == null;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public COSName getFilter() {
+		return filter;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getBitsPerComponent() {
+		return bitsPerComponent;
+	}
+
+	public PDColorSpace getColorSpace() {
+		return colorSpace;
+	}
+
+	public EncodedImage getSoftMask() {
+		return softMask;
+	}
+
+	/**
+	 * Creates the image XObject in the document.  This must be called from the thread that owns the document.
+	 * @param document
+	 * @return
+	 * @throws IOException
+	 */
+	public PDImageXObject createXObject(PDDocument document) throws IOException {
+		if (isReference()) {
+			throw new IllegalStateException("Image " + contentKey + " has not been embedded");
+		}
+		PDImageXObject pdImageXObject = new PDImageXObject(document, new ByteArrayInputStream(data), filter, width, height, bitsPerComponent, colorSpace);
+		if (softMask != null) {
+			pdImageXObject.getCOSObject().setItem(COSName.SMASK, softMask.createXObject(document));
+		}
+		return pdImageXObject;
+	}
+}
@@ -0,0 +1,384 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.pdfbox.io.IOUtils;
+
+/**
+ * Runs the manifest's image processing command on page images.
+ * <p>
+ * The command is a format string for the input and output files, e.g. "convert %s -resize 2000x2000 %s".  With pipes
+ * enabled, or when the command has no %s placeholders, the image is written to the command's stdin and the
+ * converted image read from its stdout, with "-" in place of the placeholders, so no temp files are used.  Local
+ * files are given to the command by path, or streamed to its stdin straight from the file channel.  The
+ * number of conversions running at once is capped, a conversion that takes longer than the timeout is killed, and
+ * stderr is captured for the error message.  One converter is meant to be shared by every document in the JVM.
+ */
+public class ExternalImageConverter {
+
+	private static final int MAX_ERROR_OUTPUT = 4096;
+
+	private static ExternalImageConverter defaultConverter;
+
+	private int maxConcurrent = Runtime.getRuntime().availableProcessors();
+	private long timeout = 120000;
+	private int maxRetries = 2;
+	private long retryBackoff = 500;
+	private boolean pipes = false;
+
+	private Semaphore permits;
+	private final ExecutorService pumps = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "image-converter-io");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicLong conversions = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong conversionNanos = new AtomicLong();
+
+	/**
+	 * @return a converter with the default settings, shared by callers that are not given one
+	 */
+	public static synchronized ExternalImageConverter getDefault() {
+		if (defaultConverter == null) {
+			defaultConverter = new ExternalImageConverter();
+		}
+		return defaultConverter;
+	}
+
+	/**
+	 * @param command
+	 * @param in the source image, closed by this method
+	 * @param source name of the image for error messages
+	 * @return the converted image
+	 * @throws IOException if the command fails after any retries, or times out
+	 */
+	public InputStream convert(String command, InputStream in, String source) throws IOException {
+		boolean piped = isPiped(command);
+		byte[] data;
+		File inputFile = null;
+		try {
+			if (piped) {
+				data = IOUtils.toByteArray(in);
+			} else {
+				data = null;
+				inputFile = File.createTempFile("pdfPageOriginal", "img");
+				Files.copy(in, inputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			in.close();
+		}
+		try {
+			return run(command, piped, data, inputFile, source);
+		} finally {
+			if (inputFile != null) {
+				inputFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Converts a local file without copying it first.
+	 * @param command
+	 * @param inputFile the source image, passed to the command as it is
+	 * @param source name of the image for error messages
+	 * @return the converted image
+	 * @throws IOException if the command fails after any retries, or times out
+	 */
+	public InputStream convert(String command, File inputFile, String source) throws IOException {
+		return run(command, isPiped(command), null, inputFile, source);
+	}
+
+	private boolean isPiped(String command) {
+		return pipes || !command.contains("%s");
+	}
+
+	/**
+	 * @param data the image for a piped command, or null to stream the input file to it
+	 */
+	private InputStream run(String command, boolean piped, byte[] data, File inputFile, String source) throws IOException {
+		Semaphore permits = getPermits();
+		acquire(permits, source);
+		try {
+			int attempt = 0;
+			while (true) {
+				try {
+					return new ByteArrayInputStream(piped ? runPiped(command, data, inputFile, source) : runWithFiles(command, inputFile, source));
+				} catch (ConversionTimeoutException e) {
+					// a hung command is not retried
+					failures.incrementAndGet();
+					throw e;
+				} catch (IOException e) {
+					if (e instanceof InterruptedIOException || ++attempt > maxRetries) {
+						failures.incrementAndGet();
+						throw e;
+					}
+					sleep(retryBackoff << (attempt - 1), source);
+				}
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	private byte[] runPiped(String command, byte[] data, File inputFile, String source) throws IOException {
+		String cmd = String.format(command.replace("%s", "-"));
+		Process process = start(cmd);
+		Future<?> writer = pumps.submit(() -> {
+			try (OutputStream out = process.getOutputStream()) {
+				if (data != null) {
+					out.write(data);
+				} else {
+					transfer(inputFile, Channels.newChannel(out));
+				}
+			}
+			return null;
+		});
+		Future<byte[]> output = pumps.submit(() -> IOUtils.toByteArray(process.getInputStream()));
+		Future<String> errors = pumps.submit(() -> readErrors(process.getErrorStream()));
+		int exitCode = waitFor(process, cmd, source);
+		byte[] converted = get(output, process, cmd, source);
+		try {
+			get(writer, process, cmd, source);
+		} catch (IOException e) {
+			// commands that exit without reading all of stdin close the pipe; only a failing command is an error
+			if (exitCode == 0 && converted.length == 0) {
+				throw e;
+			}
+		}
+		String errorOutput = get(errors, process, cmd, source);
+		if (exitCode != 0 || converted.length == 0) {
+			throw new IOException("Preprocessing failed for (" + source + "): " + cmd + " exited with " + exitCode + errorSuffix(errorOutput));
+		}
+		return converted;
+	}
+
+	private byte[] runWithFiles(String command, File inputFile, String source) throws IOException {
+		File outputFile = File.createTempFile("pdfPageConverted", ".jpg");
+		outputFile.delete();
+		try {
+			String cmd = String.format(command, inputFile.getAbsolutePath(), outputFile.getAbsolutePath());
+			Process process = start(cmd);
+			process.getOutputStream().close();
+			Future<byte[]> output = pumps.submit(() -> IOUtils.toByteArray(process.getInputStream()));
+			Future<String> errors = pumps.submit(() -> readErrors(process.getErrorStream()));
+			int exitCode = waitFor(process, cmd, source);
+			get(output, process, cmd, source);
+			String errorOutput = get(errors, process, cmd, source);
+			if (exitCode != 0 || !outputFile.exists()) {
+				throw new IOException("Preprocessing failed for (" + source + "): " + cmd + " exited with " + exitCode + errorSuffix(errorOutput));
+			}
+			return Files.readAllBytes(outputFile.toPath());
+		} finally {
+			outputFile.delete();
+		}
+	}
+
+	private static void transfer(File file, WritableByteChannel target) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long position = 0;
+			while (position < size) {
+				long count = channel.transferTo(position, size - position, target);
+				if (count <= 0) {
+					// truncated while it was being read
+					break;
+				}
+				position += count;
+			}
+		}
+	}
+
+	private Process start(String cmd) throws IOException {
+		conversions.incrementAndGet();
+		return new ProcessBuilder(cmd.trim().split("\\s+")).start();
+	}
+
+	private int waitFor(Process process, String cmd, String source) throws IOException {
+		long start = System.nanoTime();
+		try {
+			if (!process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+				process.destroyForcibly();
+				timeouts.incrementAndGet();
+				throw new ConversionTimeoutException("Preprocessing timed out after " + timeout + "ms for (" + source + "): " + cmd);
+			}
+			return process.exitValue();
+		} catch (InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted: " + source);
+		} finally {
+			conversionNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Waits for a pump once the process has exited, which closes its streams.
+	 */
+	private static <T> T get(Future<T> future, Process process, String cmd, String source) throws IOException {
+		try {
+			return future.get(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted: " + source);
+		} catch (TimeoutException e) {
+			// a child of the command is still holding the stream open
+			process.destroyForcibly();
+			future.cancel(true);
+			throw new IOException("Preprocessing output not closed for (" + source + "): " + cmd);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Preprocessing failed for (" + source + "): " + cmd, e.getCause());
+		}
+	}
+
+	/**
+	 * @return the start of the error output; the rest is read and discarded so the command doesn't block
+	 */
+	private static String readErrors(InputStream in) throws IOException {
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			int keep = Math.min(count, MAX_ERROR_OUTPUT - errors.size());
+			if (keep > 0) {
+				errors.write(buffer, 0, keep);
+			}
+		}
+		return new String(errors.toByteArray(), StandardCharsets.UTF_8).trim();
+	}
+
+	private static String errorSuffix(String errorOutput) {
+		return errorOutput.isEmpty() ? "" : ": " + errorOutput;
+	}
+
+	private synchronized Semaphore getPermits() {
+		if (permits == null) {
+			permits = new Semaphore(maxConcurrent, true);
+		}
+		return permits;
+	}
+
+	private static void acquire(Semaphore permits, String source) throws IOException {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted: " + source);
+		}
+	}
+
+	private static void sleep(long millis, String source) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted: " + source);
+		}
+	}
+
+	/**
+	 * Set before the first conversion.
+	 * @param maxConcurrent conversions running at the same time, across all documents
+	 */
+	public synchronized void setMaxConcurrent(int maxConcurrent) {
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * @param timeout milliseconds a conversion may run before it is killed
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param maxRetries retries for a command that fails, not for one that times out
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param retryBackoff milliseconds before the first retry, doubling for each one after
+	 */
+	public void setRetryBackoff(long retryBackoff) {
+		this.retryBackoff = Math.max(1, retryBackoff);
+	}
+
+	/**
+	 * Stream images through the command's stdin and stdout, replacing the %s placeholders with "-".  The command
+	 * must support that, e.g. "convert %s -resize 2000x2000 jpg:%s" for ImageMagick.
+	 * @param pipes
+	 */
+	public void setPipes(boolean pipes) {
+		this.pipes = pipes;
+	}
+
+	public boolean isPipes() {
+		return pipes;
+	}
+
+	public long getConversionCount() {
+		return conversions.get();
+	}
+
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * @return total time commands have been running
+	 */
+	public long getConversionMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(conversionNanos.get());
+	}
+
+	private static class ConversionTimeoutException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ConversionTimeoutException(String message) {
+			super(message);
+		}
+	}
+}
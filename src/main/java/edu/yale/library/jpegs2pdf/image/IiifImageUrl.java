@@ -0,0 +1,93 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An IIIF Image API request URL: {base}/{identifier}/{region}/{size}/{rotation}/{quality}.{format}
+ */
+public class IiifImageUrl {
+
+	private static final Pattern IIIF_IMAGE = Pattern.compile(
+			"^(https?://.+)/([^/]+)/([^/]+)/(\\^?(?:full|max|\\d+,|,\\d+|pct:[\\d.]+|!?\\d+,\\d+))/(!?[\\d.]+)/([a-z]+)\\.([a-z0-9]+)(\\?.*)?$");
+
+	private final String prefix;
+	private final String identifier;
+	private final String region;
+	private final String size;
+	private final String rotation;
+	private final String quality;
+	private final String format;
+	private final String query;
+
+	private IiifImageUrl(Matcher matcher) {
+		this.prefix = matcher.group(1);
+		this.identifier = matcher.group(2);
+		this.region = matcher.group(3);
+		this.size = matcher.group(4);
+		this.rotation = matcher.group(5);
+		this.quality = matcher.group(6);
+		this.format = matcher.group(7);
+		this.query = matcher.group(8) != null ? matcher.group(8) : "";
+	}
+
+	/**
+	 * @param url
+	 * @return the parsed URL, or null if it is not an IIIF image request
+	 */
+	public static IiifImageUrl parse(String url) {
+		if (url == null) {
+			return null;
+		}
+		Matcher matcher = IIIF_IMAGE.matcher(url);
+		return matcher.matches() ? new IiifImageUrl(matcher) : null;
+	}
+
+	/**
+	 * @param size an IIIF size parameter such as "!1000,1200"
+	 * @return the same request at another size
+	 */
+	public String withSize(String size) {
+		return prefix + "/" + identifier + "/" + region + "/" + size + "/" + rotation + "/" + quality + "." + format + query;
+	}
+
+	/**
+	 * @return the URL of the image information document
+	 */
+	public String getInfoUrl() {
+		return prefix + "/" + identifier + "/info.json";
+	}
+
+	/**
+	 * @return whether the rotation swaps width and height
+	 */
+	public boolean isQuarterTurn() {
+		try {
+			double degrees = Double.parseDouble(rotation.startsWith("!") ? rotation.substring(1) : rotation);
+			return Math.round(degrees) % 180 == 90;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public String getRegion() {
+		return region;
+	}
+
+	public String getSize() {
+		return size;
+	}
+
+	public String getRotation() {
+		return rotation;
+	}
+
+	@Override
+	public String toString() {
+		return withSize(size);
+	}
+}
@@ -0,0 +1,133 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+import edu.yale.library.jpegs2pdf.http.HttpFetcher;
+
+/**
+ * Rewrites the size of IIIF image requests so the server sends the image at the size it is drawn on the page, at
+ * the target resolution, whatever size the manifest asked for.
+ * <p>
+ * Without the image information the size becomes "!w,h", the box the image is drawn in, which the server fills
+ * keeping the aspect ratio.  With image information, read from info.json once per identifier, the exact width is
+ * requested, the full image is requested when it is smaller than the target, and the server's maximum size is
+ * respected.
+ */
+public class IiifSizer {
+
+	private static final String IMAGE_API_3 = "iiif.io/api/image/3";
+
+	private final HttpFetcher httpFetcher;
+	private final boolean readInfo;
+	private final Map<String, Info> infos = new ConcurrentHashMap<>();
+
+	/**
+	 * @param httpFetcher used to read info.json
+	 * @param readInfo whether to read info.json
+	 */
+	public IiifSizer(HttpFetcher httpFetcher, boolean readInfo) {
+		this.httpFetcher = httpFetcher;
+		this.readInfo = readInfo;
+	}
+
+	public boolean isReadInfo() {
+		return readInfo;
+	}
+
+	/**
+	 * @param url
+	 * @param placement where the image is drawn
+	 * @param targetDpi
+	 * @return the url with its size rewritten, or the url itself if it is not an IIIF image request
+	 */
+	public String size(String url, ImagePlacement placement, float targetDpi) {
+		IiifImageUrl iiifUrl = IiifImageUrl.parse(url);
+		if (iiifUrl == null || placement == null || targetDpi <= 0) {
+			return url;
+		}
+		boolean quarterTurn = iiifUrl.isQuarterTurn();
+		Info info = readInfo && iiifUrl.getRegion().equals("full") ? getInfo(iiifUrl) : null;
+		if (info != null) {
+			int width = quarterTurn ? info.height : info.width;
+			int height = quarterTurn ? info.width : info.height;
+			Dimension size = placement.getPixelSize(width, height, targetDpi);
+			int requestWidth = quarterTurn ? size.height : size.width;
+			if (requestWidth >= info.width && info.fitsMaximum(info.width, info.height)) {
+				return iiifUrl.withSize(info.version3 ? "max" : "full");
+			}
+			// no wider than the image, or than the server will send at this aspect ratio
+			requestWidth = Math.min(requestWidth, info.width);
+			requestWidth = Math.min(requestWidth, info.maxWidth);
+			requestWidth = (int) Math.min(requestWidth, (long) info.maxHeight * info.width / info.height);
+			return iiifUrl.withSize(Math.max(1, requestWidth) + ",");
+		}
+		int boxWidth = (int) Math.ceil(placement.getMaxWidth() / 72 * targetDpi);
+		int boxHeight = (int) Math.ceil(placement.getMaxHeight() / 72 * targetDpi);
+		return quarterTurn ? iiifUrl.withSize("!" + boxHeight + "," + boxWidth) : iiifUrl.withSize("!" + boxWidth + "," + boxHeight);
+	}
+
+	/**
+	 * @return the image information, or null if it can't be read, in which case the request is sized without it
+	 */
+	private Info getInfo(IiifImageUrl iiifUrl) {
+		String infoUrl = iiifUrl.getInfoUrl();
+		Info info = infos.get(infoUrl);
+		if (info == null) {
+			try (InputStream in = httpFetcher.open(infoUrl); JsonReader reader = Json.createReader(in)) {
+				info = Info.parse(reader.readObject());
+			} catch (IOException | JsonException | ClassCastException e) {
+				System.err.println("Unable to read IIIF image information (" + infoUrl + "): " + e.getMessage());
+				info = Info.UNKNOWN;
+			}
+			infos.put(infoUrl, info);
+		}
+		return info == Info.UNKNOWN ? null : info;
+	}
+
+	static class Info {
+		static final Info UNKNOWN = new Info(0, 0, 0, 0, false);
+
+		final int width;
+		final int height;
+		final int maxWidth;
+		final int maxHeight;
+		final boolean version3;
+
+		Info(int width, int height, int maxWidth, int maxHeight, boolean version3) {
+			this.width = width;
+			this.height = height;
+			this.maxWidth = maxWidth;
+			this.maxHeight = maxHeight;
+			this.version3 = version3;
+		}
+
+		boolean fitsMaximum(int width, int height) {
+			return width <= maxWidth && height <= maxHeight;
+		}
+
+		static Info parse(JsonObject json) {
+			if (!json.containsKey("width") || !json.containsKey("height")) {
+				return UNKNOWN;
+			}
+			int width = json.getInt("width");
+			int height = json.getInt("height");
+			int maxWidth = json.containsKey("maxWidth") ? json.getInt("maxWidth") : Integer.MAX_VALUE;
+			int maxHeight = json.containsKey("maxHeight") ? json.getInt("maxHeight")
+					: json.containsKey("maxWidth") ? maxWidth : Integer.MAX_VALUE;
+			// @context is a string or, with extensions, an array
+			JsonValue context = json.get("@context");
+			boolean version3 = context != null && context.toString().contains(IMAGE_API_3);
+			return new Info(width, height, maxWidth, maxHeight, version3);
+		}
+	}
+}
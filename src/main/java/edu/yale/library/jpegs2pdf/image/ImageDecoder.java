@@ -0,0 +1,154 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes page images at no more than the resolution the page needs.
+ * <p>
+ * The image size is read from the header first.  When the image is more than twice the target size, the reader
+ * skips source pixels as it decodes (ImageReadParam source subsampling), so only the subsampled raster is ever held in
+ * memory, whatever the size of the master.  The image is left at between one and two times the target size so
+ * ImageScaler can finish with an area averaging downscale instead of plain decimation.
+ * <p>
+ * With a MemoryGovernor reservation, the decoded size is estimated from the header and the image is only decoded once
+ * the governor admits it.
+ */
+public class ImageDecoder {
+
+	private ImageDecoder() {
+	}
+
+	/**
+	 * Like ImageIO.read, but subsampled for the placement and target resolution.
+	 * @param in
+	 * @param placement where the image is drawn, may be null to decode at full resolution
+	 * @param targetDpi zero or less to decode at full resolution
+	 * @return the image, or null if no reader recognises the data
+	 * @throws IOException
+	 */
+	public static BufferedImage read(InputStream in, ImagePlacement placement, float targetDpi) throws IOException {
+		return read(in, placement, targetDpi, null);
+	}
+
+	/**
+	 * @param in
+	 * @param placement where the image is drawn, may be null to decode at full resolution
+	 * @param targetDpi zero or less to decode at full resolution
+	 * @param reservation acquired with the estimated size before the image is decoded, or null
+	 * @return the image, or null if no reader recognises the data
+	 * @throws IOException
+	 */
+	public static BufferedImage read(InputStream in, ImagePlacement placement, float targetDpi, MemoryGovernor.Reservation reservation)
+			throws IOException {
+		try (ImageInputStream stream = ImageIO.createImageInputStream(in)) {
+			return stream == null ? null : read(stream, placement, targetDpi, reservation);
+		}
+	}
+
+	public static BufferedImage read(ByteBuffer data, ImagePlacement placement, float targetDpi) throws IOException {
+		return read(data, placement, targetDpi, null);
+	}
+
+	/**
+	 * Reads the image in place, without the copy ImageIO makes of a stream so the reader can seek.
+	 * @param data the image from its position to its limit, e.g. a memory-mapped file
+	 * @param placement where the image is drawn, may be null to decode at full resolution
+	 * @param targetDpi zero or less to decode at full resolution
+	 * @param reservation acquired with the estimated size before the image is decoded, or null
+	 * @return the image, or null if no reader recognises the data
+	 * @throws IOException
+	 */
+	public static BufferedImage read(ByteBuffer data, ImagePlacement placement, float targetDpi, MemoryGovernor.Reservation reservation)
+			throws IOException {
+		try (ImageInputStream stream = new ByteBufferImageInputStream(data)) {
+			return read(stream, placement, targetDpi, reservation);
+		}
+	}
+
+	private static BufferedImage read(ImageInputStream stream, ImagePlacement placement, float targetDpi, MemoryGovernor.Reservation reservation)
+			throws IOException {
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext()) {
+			return null;
+		}
+		ImageReader reader = readers.next();
+		try {
+			reader.setInput(stream, true, true);
+			ImageReadParam param = reader.getDefaultReadParam();
+			int subsampling = 1;
+			if (placement != null && targetDpi > 0) {
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				subsampling = getSubsampling(width, height, placement.getPixelSize(width, height, targetDpi));
+				if (subsampling > 1) {
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				}
+			}
+			if (reservation != null) {
+				int width = (reader.getWidth(0) + subsampling - 1) / subsampling;
+				int height = (reader.getHeight(0) + subsampling - 1) / subsampling;
+				reservation.acquire(estimate(width, height, getImageType(reader)));
+			}
+			return reader.read(0, param);
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * @return the largest whole subsampling factor that keeps the image at least twice the target size
+	 */
+	static int getSubsampling(int width, int height, Dimension target) {
+		return Math.max(1, Math.min(width / (target.width * 2), height / (target.height * 2)));
+	}
+
+	/**
+	 * Twice the decoded raster, for the copy made by downscaling, transforms or the encoder's color conversion.
+	 * @param width decoded width
+	 * @param height decoded height
+	 * @param type the type the image is decoded to, or null if it isn't known
+	 * @return estimated bytes of heap needed for the image
+	 */
+	static long estimate(int width, int height, ImageTypeSpecifier type) {
+		long bitsPerPixel = 32;
+		if (type != null) {
+			SampleModel sampleModel = type.getSampleModel(1, 1);
+			int elementBits = DataBuffer.getDataTypeSize(sampleModel.getDataType());
+			if (sampleModel instanceof SinglePixelPackedSampleModel) {
+				bitsPerPixel = elementBits;
+			} else if (sampleModel instanceof MultiPixelPackedSampleModel) {
+				bitsPerPixel = sampleModel.getSampleSize(0);
+			} else {
+				bitsPerPixel = (long) sampleModel.getNumBands() * elementBits;
+			}
+		}
+		return 2 * (((long) width * height * bitsPerPixel + 7) / 8);
+	}
+
+	/**
+	 * @return the type read decodes to when no destination is given, or null if the reader can't tell
+	 */
+	private static ImageTypeSpecifier getImageType(ImageReader reader) {
+		try {
+			Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+			return types != null && types.hasNext() ? types.next() : null;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import java.awt.Dimension;
+
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ * Where a page image is drawn: below the page text, centred and scaled to fit what is left of the page.
+ * Known once the page text has been laid out, before the image itself is loaded, so the page workers can prepare
+ * the image at the resolution it will be drawn at.
+ */
+public class ImagePlacement {
+
+	private final PDRectangle pageSize;
+	private final float top;
+	private final float margin;
+
+	/**
+	 * @param pageSize
+	 * @param top distance from the top of the page to the space available for the image
+	 * @param margin
+	 */
+	public ImagePlacement(PDRectangle pageSize, float top, float margin) {
+		this.pageSize = pageSize;
+		this.top = top;
+		this.margin = margin;
+	}
+
+	/**
+	 * @param imageWidth
+	 * @param imageHeight
+	 * @return the rectangle the image is drawn in, in page coordinates
+	 */
+	public PDRectangle place(float imageWidth, float imageHeight) {
+		float pageAspect = pageSize.getWidth() / (pageSize.getHeight() - top);
+		float imageAspect = imageWidth / imageHeight;
+		float x, y, w, h;
+		if (pageAspect > imageAspect) {
+			y = margin;
+			h = pageSize.getHeight() - top - 2 * margin;
+			w = h * imageAspect;
+			x = (pageSize.getWidth() - w) / 2;
+		} else {
+			x = margin;
+			w = pageSize.getWidth() - 2 * margin;
+			h = w / imageAspect;
+			y = (pageSize.getHeight() - top - h) / 2;
+		}
+		return new PDRectangle(x, y, w, h);
+	}
+
+	/**
+	 * Pixel size that gives the image the effective resolution when drawn.
+	 * @param imageWidth source width in pixels
+	 * @param imageHeight source height in pixels
+	 * @param dpi target resolution, zero or less to keep the source size
+	 * @return the target size, never larger than the source
+	 */
+	public Dimension getPixelSize(int imageWidth, int imageHeight, float dpi) {
+		if (dpi > 0) {
+			PDRectangle rectangle = place(imageWidth, imageHeight);
+			double scale = rectangle.getWidth() / 72.0 * dpi / imageWidth;
+			if (scale < 1) {
+				return new Dimension(Math.max(1, (int) Math.round(imageWidth * scale)),
+						Math.max(1, (int) Math.round(imageHeight * scale)));
+			}
+		}
+		return new Dimension(imageWidth, imageHeight);
+	}
+
+	/**
+	 * @return the widest an image of any shape can be drawn
+	 */
+	public float getMaxWidth() {
+		float height = pageSize.getHeight() - top;
+		return Math.max(pageSize.getWidth() - 2 * margin, pageSize.getWidth() * (height - 2 * margin) / height);
+	}
+
+	/**
+	 * @return the tallest an image of any shape can be drawn
+	 */
+	public float getMaxHeight() {
+		float height = pageSize.getHeight() - top;
+		return Math.max(height - 2 * margin, (pageSize.getWidth() - 2 * margin) * height / pageSize.getWidth());
+	}
+
+	public float getTop() {
+		return top;
+	}
+
+	public float getMargin() {
+		return margin;
+	}
+}
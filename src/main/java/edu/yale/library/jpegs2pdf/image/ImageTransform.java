@@ -0,0 +1,296 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+/**
+ * An operation applied to a decoded page image in process, in place of an external image processing command.
+ * <p>
+ * Transforms are listed in the JSON as objects with an "op" and its parameters, applied in order:
+ * <ul>
+ * <li>{"op": "crop", "x": 0, "y": 0, "width": 1000, "height": 1200} in source pixels, clipped to the image</li>
+ * <li>{"op": "rotate", "degrees": 90} clockwise; quarter turns are exact, other angles fill the corners with white</li>
+ * <li>{"op": "resize", "width": 700, "height": 1000} to fit within the box, keeping the aspect ratio; never enlarges</li>
+ * <li>{"op": "grayscale"}</li>
+ * <li>{"op": "sharpen", "amount": 0.5}</li>
+ * </ul>
+ * Transforms return the image they are given when they have nothing to do, and crops share the source raster.
+ * Their toString describes the operation and its parameters, so it can be part of a cache key.
+ */
+public abstract class ImageTransform {
+
+	/**
+	 * @param image
+	 * @return the transformed image, which may be the image itself
+	 */
+	public abstract BufferedImage apply(BufferedImage image);
+
+	/**
+	 * @param transforms may be null
+	 * @param image
+	 * @return the image with each transform applied in order
+	 */
+	public static BufferedImage applyAll(List<ImageTransform> transforms, BufferedImage image) {
+		if (transforms != null) {
+			for (ImageTransform transform : transforms) {
+				image = transform.apply(image);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * @param transforms JSON array of transform objects, may be null
+	 * @return the transforms, empty if there are none
+	 * @throws IOException if a transform is not recognised
+	 */
+	public static List<ImageTransform> fromJson(JsonArray transforms) throws IOException {
+		if (transforms == null || transforms.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<ImageTransform> ret = new ArrayList<>();
+		for (JsonValue value : transforms) {
+			if (!(value instanceof JsonObject)) {
+				throw new IOException("Image transform is not an object: " + value);
+			}
+			ret.add(fromJson((JsonObject) value));
+		}
+		return Collections.unmodifiableList(ret);
+	}
+
+	public static ImageTransform fromJson(JsonObject transform) throws IOException {
+		String op = transform.getString("op", "");
+		switch (op) {
+		case "crop":
+			return new Crop(getInt(transform, "x", 0), getInt(transform, "y", 0),
+					getInt(transform, "width", Integer.MAX_VALUE), getInt(transform, "height", Integer.MAX_VALUE));
+		case "rotate":
+			return new Rotate(getDouble(transform, "degrees", 0));
+		case "resize":
+			return new Resize(getInt(transform, "width", Integer.MAX_VALUE), getInt(transform, "height", Integer.MAX_VALUE));
+		case "grayscale":
+			return new Grayscale();
+		case "sharpen":
+			return new Sharpen((float) getDouble(transform, "amount", 0.5));
+		default:
+			throw new IOException("Unknown image transform: " + transform);
+		}
+	}
+
+	private static int getInt(JsonObject transform, String name, int defaultValue) throws IOException {
+		return (int) Math.round(getDouble(transform, name, defaultValue));
+	}
+
+	private static double getDouble(JsonObject transform, String name, double defaultValue) throws IOException {
+		JsonValue value = transform.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		if (!(value instanceof JsonNumber)) {
+			throw new IOException("Image transform " + name + " is not a number: " + transform);
+		}
+		return ((JsonNumber) value).doubleValue();
+	}
+
+	public static class Crop extends ImageTransform {
+		private final int x;
+		private final int y;
+		private final int width;
+		private final int height;
+
+		public Crop(int x, int y, int width, int height) {
+			this.x = Math.max(0, x);
+			this.y = Math.max(0, y);
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public String toString() {
+			return "crop(" + x + "," + y + "," + width + "," + height + ")";
+		}
+
+		@Override
+		public BufferedImage apply(BufferedImage image) {
+			int x = Math.min(this.x, image.getWidth() - 1);
+			int y = Math.min(this.y, image.getHeight() - 1);
+			int w = Math.max(1, Math.min(width, image.getWidth() - x));
+			int h = Math.max(1, Math.min(height, image.getHeight() - y));
+			if (x == 0 && y == 0 && w == image.getWidth() && h == image.getHeight()) {
+				return image;
+			}
+			return image.getSubimage(x, y, w, h);
+		}
+	}
+
+	public static class Rotate extends ImageTransform {
+		private final double degrees;
+
+		public Rotate(double degrees) {
+			double normalized = degrees % 360;
+			this.degrees = normalized < 0 ? normalized + 360 : normalized;
+		}
+
+		@Override
+		public String toString() {
+			return "rotate(" + degrees + ")";
+		}
+
+		@Override
+		public BufferedImage apply(BufferedImage image) {
+			if (degrees == 0) {
+				return image;
+			}
+			int w = image.getWidth();
+			int h = image.getHeight();
+			if (degrees % 90 == 0) {
+				AffineTransform transform;
+				if (degrees == 90) {
+					transform = new AffineTransform(0, 1, -1, 0, h, 0);
+				} else if (degrees == 180) {
+					transform = new AffineTransform(-1, 0, 0, -1, w, h);
+				} else {
+					transform = new AffineTransform(0, -1, 1, 0, 0, w);
+				}
+				boolean quarterTurn = degrees != 180;
+				BufferedImage rotated = new BufferedImage(quarterTurn ? h : w, quarterTurn ? w : h, ImageScaler.targetType(image));
+				return new AffineTransformOp(transform, AffineTransformOp.TYPE_NEAREST_NEIGHBOR).filter(image, rotated);
+			}
+			double radians = Math.toRadians(degrees);
+			double sin = Math.abs(Math.sin(radians));
+			double cos = Math.abs(Math.cos(radians));
+			int rw = (int) Math.ceil(w * cos + h * sin);
+			int rh = (int) Math.ceil(w * sin + h * cos);
+			BufferedImage rotated = new BufferedImage(rw, rh, ImageScaler.targetType(image));
+			Graphics2D graphics = rotated.createGraphics();
+			try {
+				if (!rotated.getColorModel().hasAlpha()) {
+					graphics.setColor(Color.WHITE);
+					graphics.fillRect(0, 0, rw, rh);
+				}
+				graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				graphics.translate(rw / 2.0, rh / 2.0);
+				graphics.rotate(radians);
+				graphics.drawImage(image, -w / 2, -h / 2, null);
+			} finally {
+				graphics.dispose();
+			}
+			return rotated;
+		}
+	}
+
+	public static class Resize extends ImageTransform {
+		private final int width;
+		private final int height;
+
+		public Resize(int width, int height) {
+			this.width = Math.max(1, width);
+			this.height = Math.max(1, height);
+		}
+
+		@Override
+		public String toString() {
+			return "resize(" + width + "," + height + ")";
+		}
+
+		@Override
+		public BufferedImage apply(BufferedImage image) {
+			double scale = Math.min((double) width / image.getWidth(), (double) height / image.getHeight());
+			if (scale >= 1) {
+				return image;
+			}
+			return ImageScaler.downscale(image, Math.max(1, (int) Math.round(image.getWidth() * scale)),
+					Math.max(1, (int) Math.round(image.getHeight() * scale)));
+		}
+	}
+
+	public static class Grayscale extends ImageTransform {
+		@Override
+		public String toString() {
+			return "grayscale";
+		}
+
+		@Override
+		public BufferedImage apply(BufferedImage image) {
+			if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+				return image;
+			}
+			int w = image.getWidth();
+			BufferedImage gray = new BufferedImage(w, image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+			WritableRaster raster = gray.getRaster();
+			// one row at a time, reusing the row buffers
+			int[] rgb = new int[w];
+			int[] luma = new int[w];
+			for (int y = 0; y < image.getHeight(); y++) {
+				image.getRGB(0, y, w, 1, rgb, 0, w);
+				for (int x = 0; x < w; x++) {
+					int pixel = rgb[x];
+					int r = (pixel >> 16) & 0xFF;
+					int g = (pixel >> 8) & 0xFF;
+					int b = pixel & 0xFF;
+					int value = (r * 299 + g * 587 + b * 114 + 500) / 1000;
+					// transparent areas are shown on white
+					int alpha = (pixel >>> 24) & 0xFF;
+					luma[x] = (value * alpha + 255 * (255 - alpha) + 127) / 255;
+				}
+				raster.setSamples(0, y, w, 1, 0, luma);
+			}
+			return gray;
+		}
+	}
+
+	public static class Sharpen extends ImageTransform {
+		private final float amount;
+
+		public Sharpen(float amount) {
+			this.amount = amount;
+		}
+
+		@Override
+		public String toString() {
+			return "sharpen(" + amount + ")";
+		}
+
+		@Override
+		public BufferedImage apply(BufferedImage image) {
+			if (amount <= 0) {
+				return image;
+			}
+			float a = amount;
+			Kernel kernel = new Kernel(3, 3, new float[] {
+					0, -a, 0,
+					-a, 1 + 4 * a, -a,
+					0, -a, 0 });
+			int type = ImageScaler.targetType(image);
+			if (image.getType() != type) {
+				// ConvolveOp can't filter every raster layout, so work on a standard one
+				BufferedImage standard = new BufferedImage(image.getWidth(), image.getHeight(), type);
+				Graphics2D graphics = standard.createGraphics();
+				try {
+					graphics.drawImage(image, 0, 0, null);
+				} finally {
+					graphics.dispose();
+				}
+				image = standard;
+			}
+			BufferedImage sharpened = new BufferedImage(image.getWidth(), image.getHeight(), type);
+			return new ConvolveOp(kernel, ConvolveOp.EDGE_NO_OP, null).filter(image, sharpened);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import java.nio.ByteBuffer;
+
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+
+/**
+ * The parts of a JPEG header needed to embed the file as a DCTDecode stream without decoding it.
+ * Only the marker segments up to the start of frame are read.
+ */
+public class JpegHeader {
+
+	private static final int SOF0 = 0xC0;  // baseline
+	private static final int SOF1 = 0xC1;  // extended sequential
+	private static final int SOF2 = 0xC2;  // progressive
+	private static final int DHT = 0xC4;
+	private static final int JPG = 0xC8;
+	private static final int DAC = 0xCC;
+	private static final int SOI = 0xD8;
+	private static final int EOI = 0xD9;
+	private static final int SOS = 0xDA;
+	private static final int TEM = 0x01;
+
+	private final int frameType;
+	private final int precision;
+	private final int width;
+	private final int height;
+	private final int components;
+
+	private JpegHeader(int frameType, int precision, int width, int height, int components) {
+		this.frameType = frameType;
+		this.precision = precision;
+		this.width = width;
+		this.height = height;
+		this.components = components;
+	}
+
+	/**
+	 * Reads the frame header from the JPEG data.
+	 * @param data
+	 * @return the header, or null if the data is not a JPEG file or has no frame header
+	 */
+	public static JpegHeader parse(byte[] data) {
+		return parse(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Reads the frame header without copying the data, e.g. from a memory-mapped file.
+	 * @param buffer the JPEG data from its position to its limit, which are not changed
+	 * @return the header, or null if the data is not a JPEG file or has no frame header
+	 */
+	public static JpegHeader parse(ByteBuffer buffer) {
+		ByteBuffer data = buffer.slice();
+		if (data.limit() < 4 || (data.get(0) & 0xFF) != 0xFF || (data.get(1) & 0xFF) != SOI) {
+			return null;
+		}
+		int pos = 2;
+		while (pos + 3 < data.limit()) {
+			if ((data.get(pos) & 0xFF) != 0xFF) {
+				return null;
+			}
+			int marker = data.get(pos + 1) & 0xFF;
+			if (marker == 0xFF) {
+				pos++; // fill byte
+				continue;
+			}
+			if (marker == TEM || (marker >= 0xD0 && marker <= 0xD7)) {
+				pos += 2; // markers without a length
+				continue;
+			}
+			if (marker == EOI || marker == SOS) {
+				return null; // image data before a frame header
+			}
+			int length = ((data.get(pos + 2) & 0xFF) << 8) | (data.get(pos + 3) & 0xFF);
+			if (marker >= SOF0 && marker <= 0xCF && marker != DHT && marker != JPG && marker != DAC) {
+				if (pos + 9 >= data.limit()) {
+					return null;
+				}
+				int precision = data.get(pos + 4) & 0xFF;
+				int height = ((data.get(pos + 5) & 0xFF) << 8) | (data.get(pos + 6) & 0xFF);
+				int width = ((data.get(pos + 7) & 0xFF) << 8) | (data.get(pos + 8) & 0xFF);
+				int components = data.get(pos + 9) & 0xFF;
+				return new JpegHeader(marker, precision, width, height, components);
+			}
+			pos += 2 + length;
+		}
+		return null;
+	}
+
+	/**
+	 * Whether the original data can be used as-is for a DCTDecode image.  CMYK/YCCK, 12 bit, arithmetic coded,
+	 * lossless and hierarchical files, and files with the height defined later in the stream, are not.
+	 * @param allowProgressive
+	 * @return
+	 */
+	public boolean isEmbeddable(boolean allowProgressive) {
+		boolean supportedFrame = frameType == SOF0 || frameType == SOF1 || (allowProgressive && frameType == SOF2);
+		return supportedFrame && precision == 8 && width > 0 && height > 0 && (components == 1 || components == 3);
+	}
+
+	public PDColorSpace getColorSpace() {
+		return components == 1 ? PDDeviceGray.INSTANCE : PDDeviceRGB.INSTANCE;
+	}
+
+	public boolean isProgressive() {
+		return frameType == SOF2;
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getComponents() {
+		return components;
+	}
+}
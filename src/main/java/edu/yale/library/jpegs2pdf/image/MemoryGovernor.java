@@ -0,0 +1,195 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Admits page images into decoding and encoding only while the estimated size of the decoded images in progress
+ * stays under a heap budget, so page workers can be sized for the usual images without a run of large ones running
+ * out of memory.
+ * <p>
+ * ImageDecoder makes the estimate from the image header, before the raster is allocated, and the reservation is held
+ * until the image has been encoded.  Images are admitted in the order they ask, so a large image waiting for room is
+ * not overtaken by smaller ones, and an image larger than the whole budget waits until nothing else is admitted and
+ * then runs alone.  One governor is meant to be shared by every document in the JVM.
+ */
+public class MemoryGovernor {
+
+	private static MemoryGovernor defaultGovernor;
+
+	private long budget = Runtime.getRuntime().maxMemory() / 2;
+	private long admitted;
+	private long peakAdmitted;
+	private long admissions;
+	private long waits;
+	private long alone;
+	private final Deque<Reservation> queue = new ArrayDeque<>();
+
+	/**
+	 * @return a governor with the default budget, shared by callers that are not given one
+	 */
+	public static synchronized MemoryGovernor getDefault() {
+		if (defaultGovernor == null) {
+			defaultGovernor = new MemoryGovernor();
+		}
+		return defaultGovernor;
+	}
+
+	/**
+	 * @return a reservation for one image, which holds nothing until it is acquired; close it when the image is
+	 *         finished with
+	 */
+	public Reservation reserve() {
+		return new Reservation();
+	}
+
+	private synchronized void admit(Reservation reservation, long bytes) throws InterruptedIOException {
+		long start = System.nanoTime();
+		boolean waited = false;
+		queue.add(reservation);
+		try {
+			while (queue.peek() != reservation || !fits(bytes)) {
+				waited = true;
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for memory to decode an image");
+		} finally {
+			queue.remove(reservation);
+			// the next in the queue may fit as well
+			notifyAll();
+		}
+		admitted += bytes;
+		peakAdmitted = Math.max(peakAdmitted, admitted);
+		admissions++;
+		if (waited) {
+			waits++;
+		}
+		reservation.bytes = bytes;
+		reservation.waitNanos = System.nanoTime() - start;
+		reservation.alone = budget > 0 && bytes > budget;
+		if (reservation.alone) {
+			alone++;
+		}
+	}
+
+	private boolean fits(long bytes) {
+		return budget <= 0 || admitted == 0 || admitted + bytes <= budget;
+	}
+
+	private synchronized void release(long bytes) {
+		admitted -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Set before images are admitted.
+	 * @param budget bytes of decoded images in progress at once, across all documents; zero or less admits every
+	 *        image straight away
+	 */
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+		notifyAll();
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return estimated bytes of the images admitted now
+	 */
+	public synchronized long getAdmittedBytes() {
+		return admitted;
+	}
+
+	/**
+	 * @return the most estimated bytes admitted at once
+	 */
+	public synchronized long getPeakAdmittedBytes() {
+		return peakAdmitted;
+	}
+
+	public synchronized long getAdmissionCount() {
+		return admissions;
+	}
+
+	/**
+	 * @return images that had to wait for others to finish
+	 */
+	public synchronized long getWaitCount() {
+		return waits;
+	}
+
+	/**
+	 * @return images larger than the budget, which ran alone
+	 */
+	public synchronized long getAloneCount() {
+		return alone;
+	}
+
+	/**
+	 * @return images waiting to be admitted, for tests
+	 */
+	synchronized int getWaitingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * The admission of one image.  Used by one thread at a time.
+	 */
+	public class Reservation implements AutoCloseable {
+
+		private long bytes;
+		private long waitNanos;
+		private boolean alone;
+		private boolean acquired;
+		private boolean released;
+
+		private Reservation() {
+		}
+
+		/**
+		 * Waits until the image can be admitted.  A reservation is only acquired once; later calls do nothing.
+		 * @param bytes estimated size of the decoded image and the copies made of it
+		 * @throws InterruptedIOException if the thread is interrupted while waiting
+		 */
+		public void acquire(long bytes) throws InterruptedIOException {
+			if (!acquired) {
+				admit(this, bytes);
+				acquired = true;
+			}
+		}
+
+		/**
+		 * @return the estimate the image was admitted with, zero if it was never acquired
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return time spent waiting to be admitted
+		 */
+		public long getWaitNanos() {
+			return waitNanos;
+		}
+
+		/**
+		 * @return whether the image was larger than the budget, so nothing else was admitted with it
+		 */
+		public boolean isAlone() {
+			return alone;
+		}
+
+		@Override
+		public void close() {
+			if (acquired && !released) {
+				released = true;
+				release(bytes);
+			}
+		}
+	}
+}
@@ -0,0 +1,502 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.IOUtils;
+
+import edu.yale.library.jpegs2pdf.cache.EncodedImageCache;
+import edu.yale.library.jpegs2pdf.cache.HttpImageCache;
+import edu.yale.library.jpegs2pdf.http.HttpFetcher;
+import edu.yale.library.jpegs2pdf.metrics.PageMetrics;
+import edu.yale.library.jpegs2pdf.metrics.Stage;
+import edu.yale.library.jpegs2pdf.metrics.TimedInputStream;
+import edu.yale.library.jpegs2pdf.model.JpegPdfPage;
+
+/**
+ * Fetches, optionally converts, decodes and encodes the image for a page.
+ * Pages with image transforms are transformed in process; the image processing command is only run for pages without.
+ * Local files are memory-mapped and read in place rather than copied through streams, and are given to the image
+ * processing command by path.
+ * Holds no per-page state, so one loader can be shared by all the page workers of a document.
+ */
+public class PageImageLoader {
+
+	private final String imageProcessingCommand;
+	private boolean jpegPassthrough = true;
+	private boolean progressivePassthrough = true;
+	private float targetDpi = 0;
+	private float jpegQuality = JpegEncoder.DEFAULT_QUALITY;
+	private boolean chromaSubsampling = true;
+	private HttpImageCache imageCache;
+	private HttpFetcher httpFetcher = HttpFetcher.getDefault();
+	private IiifSizer iiifSizer;
+	private ExternalImageConverter imageConverter = ExternalImageConverter.getDefault();
+	private MemoryGovernor memoryGovernor = MemoryGovernor.getDefault();
+	private Set<String> embeddedImages;
+	private EncodedImageCache encodedImageCache;
+
+	public PageImageLoader(String imageProcessingCommand) {
+		this.imageProcessingCommand = imageProcessingCommand;
+	}
+
+	/**
+	 * When there is no image processing command, embed JPEG sources as they are instead of decoding and
+	 * re-encoding them.  Sources that can't be embedded directly still go through the decoder.
+	 * @param jpegPassthrough
+	 */
+	public void setJpegPassthrough(boolean jpegPassthrough) {
+		this.jpegPassthrough = jpegPassthrough;
+	}
+
+	/**
+	 * Whether progressive JPEGs may be embedded directly.  They require PDF 1.3 and are not supported by every reader.
+	 * @param progressivePassthrough
+	 */
+	public void setProgressivePassthrough(boolean progressivePassthrough) {
+		this.progressivePassthrough = progressivePassthrough;
+	}
+
+	/**
+	 * Effective resolution page images are downscaled to for the size they are drawn at.  Zero or less keeps the
+	 * source resolution.
+	 * @param targetDpi
+	 */
+	public void setTargetDpi(float targetDpi) {
+		this.targetDpi = targetDpi;
+	}
+
+	public float getTargetDpi() {
+		return targetDpi;
+	}
+
+	/**
+	 * Quality images are encoded at, from 0 to 1.  JPEG sources that are passed through keep their own.
+	 * @param jpegQuality
+	 */
+	public void setJpegQuality(float jpegQuality) {
+		this.jpegQuality = jpegQuality;
+	}
+
+	/**
+	 * @param chromaSubsampling false to encode the color components at full resolution
+	 */
+	public void setChromaSubsampling(boolean chromaSubsampling) {
+		this.chromaSubsampling = chromaSubsampling;
+	}
+
+	/**
+	 * Cache used for http(s) sources, or null to download them every time.
+	 * @param imageCache
+	 */
+	public void setImageCache(HttpImageCache imageCache) {
+		this.imageCache = imageCache;
+	}
+
+	public void setHttpFetcher(HttpFetcher httpFetcher) {
+		this.httpFetcher = httpFetcher;
+	}
+
+	/**
+	 * Rewrites the size of IIIF image requests to the size the image is drawn at, when there is a target resolution.
+	 * @param iiifSizer null to fetch IIIF images at the size in the manifest
+	 */
+	public void setIiifSizer(IiifSizer iiifSizer) {
+		this.iiifSizer = iiifSizer;
+	}
+
+	public void setImageConverter(ExternalImageConverter imageConverter) {
+		this.imageConverter = imageConverter;
+	}
+
+	/**
+	 * Governor that admits images into decoding and encoding while their estimated size fits its heap budget.
+	 * @param memoryGovernor
+	 */
+	public void setMemoryGovernor(MemoryGovernor memoryGovernor) {
+		this.memoryGovernor = memoryGovernor;
+	}
+
+	/**
+	 * Hash sources as they are read and give each image a content key of the source's SHA-256 digest and the size it
+	 * is embedded at.  When the key is already in the set the image is not encoded again and a reference is
+	 * returned in its place.  Transformed images are keyed by a digest of the encoded image instead, since the
+	 * transforms can differ between pages.
+	 * @param embeddedImages content keys of images already embedded in the document, added to by the document;
+	 *        null to not hash images
+	 */
+	public void setEmbeddedImages(Set<String> embeddedImages) {
+		this.embeddedImages = embeddedImages;
+	}
+
+	/**
+	 * Cache of finished images, keyed by the source and the settings that affect them, so unchanged images are not
+	 * fetched, converted, decoded or encoded again.
+	 * @param encodedImageCache null to not cache encoded images
+	 */
+	public void setEncodedImageCache(EncodedImageCache encodedImageCache) {
+		this.encodedImageCache = encodedImageCache;
+	}
+
+	public EncodedImage load(JpegPdfPage jpegPdfPage) throws IOException {
+		return load(jpegPdfPage, null);
+	}
+
+	public EncodedImage load(JpegPdfPage jpegPdfPage, ImagePlacement placement) throws IOException {
+		return load(jpegPdfPage, placement, new PageMetrics(0, jpegPdfPage.getJpegSource()));
+	}
+
+	/**
+	 * @param jpegPdfPage
+	 * @param placement where the image will be drawn, used to downscale it to the target resolution; may be null
+	 * @param metrics filled in with the time spent in each stage and the image sizes
+	 * @return
+	 * @throws IOException
+	 */
+	public EncodedImage load(JpegPdfPage jpegPdfPage, ImagePlacement placement, PageMetrics metrics) throws IOException {
+		List<ImageTransform> transforms = jpegPdfPage.getImageTransforms();
+		String cacheKey = encodedImageCache != null ? cacheKey(jpegPdfPage, transforms, placement) : null;
+		if (cacheKey != null) {
+			long start = System.nanoTime();
+			EncodedImage cached = encodedImageCache.get(cacheKey, jpegPdfPage.isRemote());
+			metrics.addSince(Stage.FETCH, start);
+			if (cached != null) {
+				if (isEmbedded(cached.getContentKey())) {
+					metrics.setImage(cached.getWidth(), cached.getHeight(), 0, false);
+					return EncodedImage.reference(cached.getContentKey(), cached.getWidth(), cached.getHeight());
+				}
+				metrics.setImage(cached.getWidth(), cached.getHeight(), cached.getData().length, false);
+				return cached;
+			}
+		}
+		EncodedImage encoded;
+		try (MemoryGovernor.Reservation reservation = memoryGovernor.reserve()) {
+			encoded = load(jpegPdfPage, transforms, placement, reservation, metrics);
+			metrics.add(Stage.ADMIT, reservation.getWaitNanos());
+			metrics.setMemoryEstimate(reservation.getBytes(), reservation.isAlone());
+		}
+		if (cacheKey != null && !encoded.isReference()) {
+			encodedImageCache.put(cacheKey, encoded);
+		}
+		return encoded;
+	}
+
+	/**
+	 * The reservation is acquired when an image is decoded and held until it is encoded.  Time spent waiting for it is
+	 * left out of the decode time, since it is counted as admission.
+	 */
+	private EncodedImage load(JpegPdfPage jpegPdfPage, List<ImageTransform> transforms, ImagePlacement placement,
+			MemoryGovernor.Reservation reservation, PageMetrics metrics) throws IOException {
+		File file = jpegPdfPage.getLocalFile();
+		if (file != null) {
+			if (file.isFile() && file.length() <= Integer.MAX_VALUE) {
+				return loadFile(jpegPdfPage, file, transforms, placement, reservation, metrics);
+			}
+		}
+		boolean transformed = transforms != null && !transforms.isEmpty();
+		MessageDigest digest = embeddedImages != null ? sha256() : null;
+		long start = System.nanoTime();
+		InputStream in = openSource(jpegPdfPage, transformed ? null : placement);
+		TimedInputStream source = new TimedInputStream(digest != null ? new DigestInputStream(in, digest) : in);
+		metrics.addSince(Stage.FETCH, start);
+		try {
+			return load(jpegPdfPage, source, digest, transforms, placement, reservation, metrics);
+		} finally {
+			metrics.add(Stage.FETCH, source.getNanos());
+			metrics.addFetchedBytes(source.getBytes());
+		}
+	}
+
+	private EncodedImage load(JpegPdfPage jpegPdfPage, TimedInputStream source, MessageDigest digest, List<ImageTransform> transforms,
+			ImagePlacement placement, MemoryGovernor.Reservation reservation, PageMetrics metrics) throws IOException {
+		boolean transformed = transforms != null && !transforms.isEmpty();
+		InputStream in = source;
+		if (jpegPassthrough && imageProcessingCommand == null && !transformed) {
+			byte[] data;
+			try {
+				data = IOUtils.toByteArray(in);
+			} finally {
+				in.close();
+			}
+			EncodedImage passedThrough = passthrough(ByteBuffer.wrap(data), digest, placement, metrics);
+			if (passedThrough != null) {
+				return passedThrough;
+			}
+			in = new ByteArrayInputStream(data);
+		}
+		BufferedImage bimg;
+		if (transformed) {
+			// decoded at full size, since transforms are in source pixels
+			long start = System.nanoTime();
+			long read = source.getNanos();
+			try {
+				bimg = ImageDecoder.read(in, null, targetDpi, reservation);
+				if (digest != null) {
+					drain(in);
+				}
+			} finally {
+				in.close();
+			}
+			metrics.add(Stage.DECODE, System.nanoTime() - start - (source.getNanos() - read) - reservation.getWaitNanos());
+			if (bimg != null) {
+				start = System.nanoTime();
+				bimg = ImageTransform.applyAll(transforms, bimg);
+				metrics.addSince(Stage.TRANSFORM, start);
+			}
+		} else {
+			bimg = getBufferedImage(in, source, digest != null, jpegPdfPage.getJpegSource(), placement, reservation, metrics);
+		}
+		return encode(jpegPdfPage, bimg, digest, transformed, placement, metrics);
+	}
+
+	/**
+	 * Reads a local file through a memory mapping, so it is neither copied into a stream buffer nor into the temp
+	 * file ImageIO keeps for seeking in a stream, and hands it to the image processing command by path.  As the
+	 * command reads the file itself, a converted file's content key is a digest of its path, size and modified time
+	 * rather than of its bytes.
+	 */
+	private EncodedImage loadFile(JpegPdfPage jpegPdfPage, File file, List<ImageTransform> transforms, ImagePlacement placement,
+			MemoryGovernor.Reservation reservation, PageMetrics metrics) throws IOException {
+		boolean transformed = transforms != null && !transforms.isEmpty();
+		MessageDigest digest = embeddedImages != null ? sha256() : null;
+		BufferedImage bimg;
+		if (imageProcessingCommand != null && !transformed) {
+			if (digest != null) {
+				digest.update(("file:" + file.getCanonicalPath() + ',' + file.length() + ',' + file.lastModified()).getBytes(StandardCharsets.UTF_8));
+			}
+			metrics.addFetchedBytes(file.length());
+			long start = System.nanoTime();
+			InputStream in = imageConverter.convert(imageProcessingCommand, file, jpegPdfPage.getJpegSource());
+			metrics.addSince(Stage.CONVERT, start);
+			start = System.nanoTime();
+			try {
+				bimg = ImageDecoder.read(in, placement, targetDpi, reservation);
+			} catch (IOException e) {
+				throw new IOException("Error reading image after convert for (" + jpegPdfPage.getJpegSource() + ")", e);
+			} finally {
+				in.close();
+				metrics.add(Stage.DECODE, System.nanoTime() - start - reservation.getWaitNanos());
+			}
+		} else {
+			long start = System.nanoTime();
+			ByteBuffer data = map(file);
+			if (digest != null && !transformed) {
+				digest.update(data.duplicate());
+			}
+			metrics.addSince(Stage.FETCH, start);
+			metrics.addFetchedBytes(data.remaining());
+			if (jpegPassthrough && imageProcessingCommand == null && !transformed) {
+				EncodedImage passedThrough = passthrough(data, digest, placement, metrics);
+				if (passedThrough != null) {
+					return passedThrough;
+				}
+			}
+			start = System.nanoTime();
+			// decoded at full size when transformed, since transforms are in source pixels
+			bimg = ImageDecoder.read(data, transformed ? null : placement, targetDpi, reservation);
+			metrics.add(Stage.DECODE, System.nanoTime() - start - reservation.getWaitNanos());
+			if (transformed && bimg != null) {
+				start = System.nanoTime();
+				bimg = ImageTransform.applyAll(transforms, bimg);
+				metrics.addSince(Stage.TRANSFORM, start);
+			}
+		}
+		return encode(jpegPdfPage, bimg, digest, transformed, placement, metrics);
+	}
+
+	/**
+	 * @param data the source, used as it is when it is a JPEG that can be embedded without decoding
+	 * @return the image or a reference to it, or null if the source has to be decoded
+	 */
+	private EncodedImage passthrough(ByteBuffer data, MessageDigest digest, ImagePlacement placement, PageMetrics metrics) {
+		JpegHeader header = JpegHeader.parse(data);
+		if (header == null || !header.isEmbeddable(progressivePassthrough) || needsDownscale(header.getWidth(), header.getHeight(), placement)) {
+			return null;
+		}
+		String contentKey = contentKey(digest, header.getWidth(), header.getHeight());
+		if (isEmbedded(contentKey)) {
+			metrics.setImage(header.getWidth(), header.getHeight(), 0, true);
+			return EncodedImage.reference(contentKey, header.getWidth(), header.getHeight());
+		}
+		metrics.setImage(header.getWidth(), header.getHeight(), data.remaining(), true);
+		return new EncodedImage(toByteArray(data), COSName.DCT_DECODE, header.getWidth(), header.getHeight(),
+				header.getPrecision(), header.getColorSpace(), null).withContentKey(contentKey);
+	}
+
+	/**
+	 * Downscales the decoded image if needed and encodes it, unless an image with the same content key is already
+	 * embedded.
+	 */
+	private EncodedImage encode(JpegPdfPage jpegPdfPage, BufferedImage bimg, MessageDigest digest, boolean transformed,
+			ImagePlacement placement, PageMetrics metrics) throws IOException {
+		if (bimg == null) {
+			throw new IOException("Unable to read image (" + jpegPdfPage.getJpegSource() + ")");
+		}
+		if (needsDownscale(bimg.getWidth(), bimg.getHeight(), placement)) {
+			long start = System.nanoTime();
+			Dimension size = placement.getPixelSize(bimg.getWidth(), bimg.getHeight(), targetDpi);
+			bimg = ImageScaler.downscale(bimg, size.width, size.height);
+			metrics.addSince(Stage.TRANSFORM, start);
+		}
+		String contentKey = transformed ? null : contentKey(digest, bimg.getWidth(), bimg.getHeight());
+		if (isEmbedded(contentKey)) {
+			metrics.setImage(bimg.getWidth(), bimg.getHeight(), 0, false);
+			return EncodedImage.reference(contentKey, bimg.getWidth(), bimg.getHeight());
+		}
+		long start = System.nanoTime();
+		EncodedImage encoded = JpegEncoder.encode(bimg, jpegQuality, JpegEncoder.DEFAULT_DPI, chromaSubsampling);
+		metrics.addSince(Stage.ENCODE, start);
+		if (transformed && digest != null) {
+			digest.reset();
+			contentKey = contentKey(digest, encoded.getData(), encoded.getWidth(), encoded.getHeight());
+		}
+		metrics.setImage(encoded.getWidth(), encoded.getHeight(), encoded.getData().length, false);
+		return encoded.withContentKey(contentKey);
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	private static byte[] toByteArray(ByteBuffer data) {
+		if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.remaining() == data.array().length) {
+			return data.array();
+		}
+		byte[] bytes = new byte[data.remaining()];
+		data.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private boolean isEmbedded(String contentKey) {
+		return contentKey != null && embeddedImages != null && embeddedImages.contains(contentKey);
+	}
+
+	/**
+	 * Local files are identified by their size and modified time as well as their path.
+	 * @return the encoded image cache key for the page, or null if a local source doesn't exist
+	 */
+	private String cacheKey(JpegPdfPage jpegPdfPage, List<ImageTransform> transforms, ImagePlacement placement) {
+		StringBuilder key = new StringBuilder(jpegPdfPage.getJpegSource());
+		if (!jpegPdfPage.isRemote()) {
+			File file = new File(jpegPdfPage.getJpegSource());
+			if (!file.isFile()) {
+				return null;
+			}
+			key.append("|file=").append(file.getAbsolutePath()).append(',').append(file.length()).append(',').append(file.lastModified());
+		}
+		key.append("|command=").append(imageProcessingCommand)
+				.append("|passthrough=").append(jpegPassthrough).append(',').append(progressivePassthrough)
+				.append("|dpi=").append(targetDpi)
+				.append("|quality=").append(jpegQuality).append(',').append(chromaSubsampling).append(',').append(JpegEncoder.DEFAULT_DPI)
+				.append("|hashed=").append(embeddedImages != null)
+				.append("|iiif=").append(iiifSizer == null ? "none" : iiifSizer.isReadInfo() ? "info" : "url")
+				.append("|transforms=").append(transforms);
+		if (placement != null && targetDpi > 0) {
+			key.append("|placement=").append(placement.getMaxWidth()).append(',').append(placement.getMaxHeight())
+					.append(',').append(placement.getTop()).append(',').append(placement.getMargin());
+		}
+		return key.toString();
+	}
+
+	private static String contentKey(MessageDigest digest, byte[] encoded, int width, int height) {
+		digest.update(encoded);
+		return "encoded:" + contentKey(digest, width, height);
+	}
+
+	/**
+	 * @return the hex digest followed by the size, or null if the source was not hashed
+	 */
+	private static String contentKey(MessageDigest digest, int width, int height) {
+		if (digest == null) {
+			return null;
+		}
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.append('@').append(width).append('x').append(height).toString();
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads whatever the decoder left, such as trailing metadata, so the digest covers the whole source.
+	 */
+	private static void drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[8192];
+		while (in.read(buffer) >= 0) {
+			// discard
+		}
+	}
+
+	private InputStream openSource(JpegPdfPage jpegPdfPage, ImagePlacement placement) throws IOException {
+		if (!jpegPdfPage.isRemote()) {
+			return jpegPdfPage.createInputStream();
+		}
+		String source = jpegPdfPage.getJpegSource();
+		if (iiifSizer != null && placement != null) {
+			source = iiifSizer.size(source, placement, targetDpi);
+		}
+		if (imageCache != null) {
+			return imageCache.open(source);
+		}
+		return source.equals(jpegPdfPage.getJpegSource()) ? jpegPdfPage.createInputStream() : httpFetcher.open(source);
+	}
+
+	private boolean needsDownscale(int width, int height, ImagePlacement placement) {
+		if (placement == null || targetDpi <= 0) {
+			return false;
+		}
+		Dimension size = placement.getPixelSize(width, height, targetDpi);
+		return size.width < width || size.height < height;
+	}
+
+	/**
+	 * Time spent reading the source is left out of the convert and decode times, since it is counted as fetching.
+	 */
+	private BufferedImage getBufferedImage(InputStream in, TimedInputStream source, boolean hashing, String sourceName,
+			ImagePlacement placement, MemoryGovernor.Reservation reservation, PageMetrics metrics) throws IOException {
+		if (imageProcessingCommand != null) {
+			long start = System.nanoTime();
+			long read = source.getNanos();
+			in = imageConverter.convert(imageProcessingCommand, in, sourceName);
+			metrics.add(Stage.CONVERT, System.nanoTime() - start - (source.getNanos() - read));
+		}
+		long start = System.nanoTime();
+		long read = source.getNanos();
+		try {
+			BufferedImage bimg = ImageDecoder.read(in, placement, targetDpi, reservation);
+			if (hashing) {
+				drain(in);
+			}
+			return bimg;
+		} catch (IOException e) {
+			throw new IOException("Error reading image after convert for (" + sourceName + ")", e);
+		} finally {
+			in.close();
+			metrics.add(Stage.DECODE, System.nanoTime() - start - (source.getNanos() - read) - reservation.getWaitNanos());
+		}
+	}
+}
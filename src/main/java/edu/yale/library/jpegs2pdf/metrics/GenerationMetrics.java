@@ -0,0 +1,329 @@
+package edu.yale.library.jpegs2pdf.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import edu.yale.library.jpegs2pdf.cache.EncodedImageCache;
+import edu.yale.library.jpegs2pdf.cache.HttpImageCache;
+import edu.yale.library.jpegs2pdf.http.HttpFetcher;
+import edu.yale.library.jpegs2pdf.image.ExternalImageConverter;
+import edu.yale.library.jpegs2pdf.image.MemoryGovernor;
+
+/**
+ * Totals for every PDF generated by the JVM, for long running servers and batches.  Available over JMX once
+ * registered, and written in the Prometheus text format by writePrometheus, for the node exporter's textfile
+ * collector.  Counters from the shared HTTP fetcher, image cache, image converter and memory governor are included.
+ */
+public class GenerationMetrics implements GenerationMetricsMXBean {
+
+	public static final String OBJECT_NAME = "edu.yale.library.jpegs2pdf:type=GenerationMetrics";
+
+	private static final GenerationMetrics INSTANCE = new GenerationMetrics();
+
+	private final AtomicLong jobsCompleted = new AtomicLong();
+	private final AtomicLong jobsFailed = new AtomicLong();
+	private final AtomicLong pages = new AtomicLong();
+	private final AtomicLong outputBytes = new AtomicLong();
+	private final AtomicLong fetchedBytes = new AtomicLong();
+	private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+	private volatile long lastJobMillis;
+	private volatile long lastJobPeakHeapBytes;
+	private volatile HttpImageCache imageCache;
+	private volatile EncodedImageCache encodedImageCache;
+	private boolean registered;
+
+	public static GenerationMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Adds a finished job to the totals.
+	 * @param job
+	 */
+	public void record(JobMetrics job) {
+		(job.isFailed() ? jobsFailed : jobsCompleted).incrementAndGet();
+		pages.addAndGet(job.getPageCount());
+		outputBytes.addAndGet(job.getOutputBytes());
+		fetchedBytes.addAndGet(job.getFetchedBytes());
+		for (Stage stage : Stage.values()) {
+			stageNanos.addAndGet(stage.ordinal(), job.getNanos(stage));
+		}
+		lastJobMillis = TimeUnit.NANOSECONDS.toMillis(job.getTotalNanos());
+		lastJobPeakHeapBytes = job.getPeakHeapBytes();
+	}
+
+	/**
+	 * Registers with the platform MBean server, once.
+	 */
+	public synchronized void register() {
+		if (registered) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+			registered = true;
+		} catch (JMException e) {
+			System.err.println("Unable to register generation metrics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param imageCache the shared image cache, whose hits and misses are included, or null
+	 */
+	public void setImageCache(HttpImageCache imageCache) {
+		this.imageCache = imageCache;
+	}
+
+	/**
+	 * @param encodedImageCache the shared encoded image cache, whose hits and misses are included, or null
+	 */
+	public void setEncodedImageCache(EncodedImageCache encodedImageCache) {
+		this.encodedImageCache = encodedImageCache;
+	}
+
+	/**
+	 * Writes the totals, and the last job's figures, in the Prometheus text format.  The file is replaced in one
+	 * step so a collector never reads it half written.
+	 * @param file
+	 * @param lastJob the job just finished, or null
+	 * @throws IOException
+	 */
+	public synchronized void writePrometheus(File file, JobMetrics lastJob) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(Files.newOutputStream(temp.toPath()), StandardCharsets.UTF_8))) {
+			counter(out, "jpegs2pdf_jobs_total", "PDFs generated successfully", getJobsCompleted());
+			counter(out, "jpegs2pdf_jobs_failed_total", "PDFs that failed", getJobsFailed());
+			counter(out, "jpegs2pdf_pages_total", "Image pages generated", getPagesGenerated());
+			counter(out, "jpegs2pdf_output_bytes_total", "Bytes of PDF written", getOutputBytes());
+			counter(out, "jpegs2pdf_fetched_bytes_total", "Bytes of page image read", getFetchedBytes());
+			out.println("# HELP jpegs2pdf_stage_seconds_total Time spent in each stage, summed over page workers");
+			out.println("# TYPE jpegs2pdf_stage_seconds_total counter");
+			for (Stage stage : Stage.values()) {
+				out.println("jpegs2pdf_stage_seconds_total{stage=\"" + stage.getLabel() + "\"} " + seconds(stageNanos.get(stage.ordinal())));
+			}
+			counter(out, "jpegs2pdf_http_requests_total", "HTTP requests made", getHttpRequests());
+			counter(out, "jpegs2pdf_http_retries_total", "HTTP requests retried", getHttpRetries());
+			counter(out, "jpegs2pdf_http_failures_total", "HTTP requests that failed", getHttpFailures());
+			counter(out, "jpegs2pdf_image_cache_hits_total", "Page images read from the cache", getImageCacheHits());
+			counter(out, "jpegs2pdf_image_cache_misses_total", "Page images not in the cache", getImageCacheMisses());
+			counter(out, "jpegs2pdf_encoded_cache_hits_total", "Encoded page images read from the cache", getEncodedImageCacheHits());
+			counter(out, "jpegs2pdf_encoded_cache_misses_total", "Encoded page images not in the cache or expired", getEncodedImageCacheMisses());
+			counter(out, "jpegs2pdf_conversions_total", "Image processing commands run", getConversions());
+			counter(out, "jpegs2pdf_conversion_timeouts_total", "Image processing commands killed", getConversionTimeouts());
+			gauge(out, "jpegs2pdf_memory_budget_bytes", "Heap budget for decoded page images", getMemoryBudgetBytes());
+			gauge(out, "jpegs2pdf_memory_admitted_bytes", "Estimated bytes of the page images being decoded and encoded", getMemoryAdmittedBytes());
+			counter(out, "jpegs2pdf_memory_admissions_total", "Page images admitted for decoding", getMemoryAdmissions());
+			counter(out, "jpegs2pdf_memory_admission_waits_total", "Page images that waited for others to finish", getMemoryAdmissionWaits());
+			counter(out, "jpegs2pdf_memory_admissions_alone_total", "Page images larger than the budget, decoded alone", getMemoryAdmissionsAlone());
+			if (lastJob != null) {
+				gauge(out, "jpegs2pdf_last_job_seconds", "Time to generate the last PDF", seconds(lastJob.getTotalNanos()));
+				gauge(out, "jpegs2pdf_last_job_pages", "Image pages in the last PDF", lastJob.getPageCount());
+				gauge(out, "jpegs2pdf_last_job_output_bytes", "Size of the last PDF", lastJob.getOutputBytes());
+				gauge(out, "jpegs2pdf_last_job_peak_heap_bytes", "Most heap in use sampled while generating the last PDF", lastJob.getPeakHeapBytes());
+				gauge(out, "jpegs2pdf_last_job_success", "1 if the last PDF was generated", lastJob.isFailed() ? 0 : 1);
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void counter(PrintWriter out, String name, String help, long value) {
+		out.println("# HELP " + name + " " + help);
+		out.println("# TYPE " + name + " counter");
+		out.println(name + " " + value);
+	}
+
+	private static void gauge(PrintWriter out, String name, String help, Object value) {
+		out.println("# HELP " + name + " " + help);
+		out.println("# TYPE " + name + " gauge");
+		out.println(name + " " + value);
+	}
+
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+	}
+
+	private long stageMillis(Stage stage) {
+		return TimeUnit.NANOSECONDS.toMillis(stageNanos.get(stage.ordinal()));
+	}
+
+	@Override
+	public long getJobsCompleted() {
+		return jobsCompleted.get();
+	}
+
+	@Override
+	public long getJobsFailed() {
+		return jobsFailed.get();
+	}
+
+	@Override
+	public long getPagesGenerated() {
+		return pages.get();
+	}
+
+	@Override
+	public long getOutputBytes() {
+		return outputBytes.get();
+	}
+
+	@Override
+	public long getFetchedBytes() {
+		return fetchedBytes.get();
+	}
+
+	@Override
+	public long getFetchMillis() {
+		return stageMillis(Stage.FETCH);
+	}
+
+	@Override
+	public long getConvertMillis() {
+		return stageMillis(Stage.CONVERT);
+	}
+
+	@Override
+	public long getAdmitMillis() {
+		return stageMillis(Stage.ADMIT);
+	}
+
+	@Override
+	public long getDecodeMillis() {
+		return stageMillis(Stage.DECODE);
+	}
+
+	@Override
+	public long getTransformMillis() {
+		return stageMillis(Stage.TRANSFORM);
+	}
+
+	@Override
+	public long getEncodeMillis() {
+		return stageMillis(Stage.ENCODE);
+	}
+
+	@Override
+	public long getLayoutMillis() {
+		return stageMillis(Stage.LAYOUT);
+	}
+
+	@Override
+	public long getWriteMillis() {
+		return stageMillis(Stage.WRITE);
+	}
+
+	@Override
+	public long getSaveMillis() {
+		return stageMillis(Stage.SAVE);
+	}
+
+	@Override
+	public long getWaitMillis() {
+		return stageMillis(Stage.WAIT);
+	}
+
+	@Override
+	public long getLastJobMillis() {
+		return lastJobMillis;
+	}
+
+	@Override
+	public long getLastJobPeakHeapBytes() {
+		return lastJobPeakHeapBytes;
+	}
+
+	@Override
+	public long getHttpRequests() {
+		return HttpFetcher.getDefault().getRequestCount();
+	}
+
+	@Override
+	public long getHttpRetries() {
+		return HttpFetcher.getDefault().getRetryCount();
+	}
+
+	@Override
+	public long getHttpFailures() {
+		return HttpFetcher.getDefault().getFailureCount();
+	}
+
+	@Override
+	public long getHttpHostWaitMillis() {
+		return HttpFetcher.getDefault().getHostWaitMillis();
+	}
+
+	@Override
+	public long getImageCacheHits() {
+		HttpImageCache cache = imageCache;
+		return cache != null ? cache.getDiskCache().getHits() : 0;
+	}
+
+	@Override
+	public long getImageCacheMisses() {
+		HttpImageCache cache = imageCache;
+		return cache != null ? cache.getDiskCache().getMisses() : 0;
+	}
+
+	@Override
+	public long getEncodedImageCacheHits() {
+		EncodedImageCache cache = encodedImageCache;
+		return cache != null ? cache.getHits() : 0;
+	}
+
+	@Override
+	public long getEncodedImageCacheMisses() {
+		EncodedImageCache cache = encodedImageCache;
+		return cache != null ? cache.getMisses() : 0;
+	}
+
+	@Override
+	public long getConversions() {
+		return ExternalImageConverter.getDefault().getConversionCount();
+	}
+
+	@Override
+	public long getConversionTimeouts() {
+		return ExternalImageConverter.getDefault().getTimeoutCount();
+	}
+
+	@Override
+	public long getMemoryBudgetBytes() {
+		return MemoryGovernor.getDefault().getBudget();
+	}
+
+	@Override
+	public long getMemoryAdmittedBytes() {
+		return MemoryGovernor.getDefault().getAdmittedBytes();
+	}
+
+	@Override
+	public long getMemoryAdmissions() {
+		return MemoryGovernor.getDefault().getAdmissionCount();
+	}
+
+	@Override
+	public long getMemoryAdmissionWaits() {
+		return MemoryGovernor.getDefault().getWaitCount();
+	}
+
+	@Override
+	public long getMemoryAdmissionsAlone() {
+		return MemoryGovernor.getDefault().getAloneCount();
+	}
+}
@@ -0,0 +1,71 @@
+package edu.yale.library.jpegs2pdf.metrics;
+
+/**
+ * Totals for every PDF generated by the JVM, registered as edu.yale.library.jpegs2pdf:type=GenerationMetrics.
+ */
+public interface GenerationMetricsMXBean {
+
+	long getJobsCompleted();
+
+	long getJobsFailed();
+
+	long getPagesGenerated();
+
+	long getOutputBytes();
+
+	long getFetchedBytes();
+
+	long getFetchMillis();
+
+	long getConvertMillis();
+
+	long getAdmitMillis();
+
+	long getDecodeMillis();
+
+	long getTransformMillis();
+
+	long getEncodeMillis();
+
+	long getLayoutMillis();
+
+	long getWriteMillis();
+
+	long getSaveMillis();
+
+	long getWaitMillis();
+
+	long getLastJobMillis();
+
+	long getLastJobPeakHeapBytes();
+
+	long getHttpRequests();
+
+	long getHttpRetries();
+
+	long getHttpFailures();
+
+	long getHttpHostWaitMillis();
+
+	long getImageCacheHits();
+
+	long getImageCacheMisses();
+
+	long getEncodedImageCacheHits();
+
+	long getEncodedImageCacheMisses();
+
+	long getConversions();
+
+	long getConversionTimeouts();
+
+	long getMemoryBudgetBytes();
+
+	long getMemoryAdmittedBytes();
+
+	long getMemoryAdmissions();
+
+	long getMemoryAdmissionWaits();
+
+	long getMemoryAdmissionsAlone();
+}
@@ -0,0 +1,226 @@
+package edu.yale.library.jpegs2pdf.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonWriter;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * Time spent in each stage, sizes and peak heap for generating one PDF, with the same for each of its pages.
+ * Used from the document thread; page workers only fill in their own PageMetrics.
+ */
+public class JobMetrics {
+
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+	private final String name;
+	private final long start = System.nanoTime();
+	private final long[] nanos = new long[Stage.values().length];
+	private final List<PageMetrics> pages = new ArrayList<>();
+	private final int firstPage;
+	private long totalNanos;
+	private long outputBytes;
+	private long peakHeapBytes;
+	private String error;
+
+	/**
+	 * @param name usually the path of the PDF
+	 */
+	public JobMetrics(String name) {
+		this(name, 1);
+	}
+
+	/**
+	 * @param name
+	 * @param firstPage index of the first page, for a job that builds part of a document
+	 */
+	public JobMetrics(String name, int firstPage) {
+		this.name = name;
+		this.firstPage = firstPage;
+		sampleHeap();
+	}
+
+	/**
+	 * @param source
+	 * @return metrics for the next page
+	 */
+	public PageMetrics newPage(String source) {
+		PageMetrics page = new PageMetrics(firstPage + pages.size(), source);
+		pages.add(page);
+		return page;
+	}
+
+	/**
+	 * Adds the pages and times of a finished part of this document, built with its own metrics.
+	 * @param chunk
+	 */
+	public void addChunk(JobMetrics chunk) {
+		pages.addAll(chunk.pages);
+		for (int i = 0; i < nanos.length; i++) {
+			nanos[i] += chunk.nanos[i];
+		}
+		peakHeapBytes = Math.max(peakHeapBytes, chunk.peakHeapBytes);
+	}
+
+	public void add(Stage stage, long nanos) {
+		this.nanos[stage.ordinal()] += nanos;
+	}
+
+	public void addSince(Stage stage, long start) {
+		add(stage, System.nanoTime() - start);
+	}
+
+	/**
+	 * Records the heap in use if it is the most so far.  Called after each page, so the peak is sampled rather than
+	 * exact, and includes garbage not yet collected and other jobs running in the JVM.
+	 */
+	public void sampleHeap() {
+		peakHeapBytes = Math.max(peakHeapBytes, MEMORY.getHeapMemoryUsage().getUsed());
+	}
+
+	/**
+	 * @param output the PDF, or null if there is none
+	 * @param failure why the job failed, or null if it succeeded
+	 */
+	public void finish(File output, Throwable failure) {
+		sampleHeap();
+		totalNanos = System.nanoTime() - start;
+		outputBytes = output != null && output.exists() ? output.length() : 0;
+		error = failure == null ? null : failure.getMessage() != null ? failure.getMessage() : failure.toString();
+	}
+
+	/**
+	 * @param stage
+	 * @return time in the stage for the document and all its pages; worker stages overlap, so they can add up to more
+	 *         than the total time
+	 */
+	public long getNanos(Stage stage) {
+		long total = nanos[stage.ordinal()];
+		for (PageMetrics page : pages) {
+			total += page.getNanos(stage);
+		}
+		return total;
+	}
+
+	public long getFetchedBytes() {
+		long total = 0;
+		for (PageMetrics page : pages) {
+			total += page.getFetchedBytes();
+		}
+		return total;
+	}
+
+	/**
+	 * @return the largest estimate the memory governor admitted a page image with
+	 */
+	public long getMaxMemoryEstimate() {
+		long max = 0;
+		for (PageMetrics page : pages) {
+			max = Math.max(max, page.getMemoryEstimate());
+		}
+		return max;
+	}
+
+	/**
+	 * @return pages whose image was larger than the memory governor's budget, so it was decoded alone
+	 */
+	public int getPagesRanAlone() {
+		int count = 0;
+		for (PageMetrics page : pages) {
+			if (page.isRanAlone()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public List<PageMetrics> getPages() {
+		return Collections.unmodifiableList(pages);
+	}
+
+	public int getPageCount() {
+		return pages.size();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	public long getOutputBytes() {
+		return outputBytes;
+	}
+
+	public long getPeakHeapBytes() {
+		return peakHeapBytes;
+	}
+
+	public boolean isFailed() {
+		return error != null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public JsonObject toJson() {
+		JsonObjectBuilder stages = Json.createObjectBuilder();
+		for (Stage stage : Stage.values()) {
+			stages.add(stage.getLabel(), PageMetrics.toMillis(getNanos(stage)));
+		}
+		JsonArrayBuilder pageDetails = Json.createArrayBuilder();
+		for (PageMetrics page : pages) {
+			pageDetails.add(page.toJson());
+		}
+		JsonObjectBuilder builder = Json.createObjectBuilder()
+				.add("pdf", name)
+				.add("status", error == null ? "ok" : "failed");
+		if (error != null) {
+			builder.add("error", error);
+		}
+		return builder
+				.add("pages", pages.size())
+				.add("millis", TimeUnit.NANOSECONDS.toMillis(totalNanos))
+				.add("outputBytes", outputBytes)
+				.add("fetchedBytes", getFetchedBytes())
+				.add("peakHeapBytes", peakHeapBytes)
+				.add("maxMemoryEstimateBytes", getMaxMemoryEstimate())
+				.add("pagesRanAlone", getPagesRanAlone())
+				.add("stageMillis", stages)
+				.add("pageDetails", pageDetails)
+				.build();
+	}
+
+	/**
+	 * Writes the report as JSON, replacing the file in one step.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeJson(File file) throws IOException {
+		Map<String, Object> config = new HashMap<>();
+		config.put(JsonGenerator.PRETTY_PRINTING, true);
+		File temp = new File(file.getPath() + ".tmp");
+		try (Writer writer = new OutputStreamWriter(Files.newOutputStream(temp.toPath()), StandardCharsets.UTF_8);
+				JsonWriter jsonWriter = Json.createWriterFactory(config).createWriter(writer)) {
+			jsonWriter.writeObject(toJson());
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
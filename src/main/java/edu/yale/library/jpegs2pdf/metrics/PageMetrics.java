@@ -0,0 +1,118 @@
+package edu.yale.library.jpegs2pdf.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Time and sizes for one page.  Filled in by the page worker and then by the document thread, which only reads it
+ * once the worker's result has been collected.
+ */
+public class PageMetrics {
+
+	private final int index;
+	private final String source;
+	private final long[] nanos = new long[Stage.values().length];
+	private long fetchedBytes;
+	private long encodedBytes;
+	private int width;
+	private int height;
+	private boolean passthrough;
+	private long memoryEstimate;
+	private boolean ranAlone;
+
+	public PageMetrics(int index, String source) {
+		this.index = index;
+		this.source = source;
+	}
+
+	public void add(Stage stage, long nanos) {
+		this.nanos[stage.ordinal()] += nanos;
+	}
+
+	/**
+	 * Adds the time since start to the stage.
+	 * @param stage
+	 * @param start System.nanoTime() when the stage started
+	 */
+	public void addSince(Stage stage, long start) {
+		add(stage, System.nanoTime() - start);
+	}
+
+	public long getNanos(Stage stage) {
+		return nanos[stage.ordinal()];
+	}
+
+	public void addFetchedBytes(long bytes) {
+		fetchedBytes += bytes;
+	}
+
+	public long getFetchedBytes() {
+		return fetchedBytes;
+	}
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param encodedBytes size of the image data embedded in the PDF
+	 * @param passthrough whether the source was embedded without decoding
+	 */
+	public void setImage(int width, int height, long encodedBytes, boolean passthrough) {
+		this.width = width;
+		this.height = height;
+		this.encodedBytes = encodedBytes;
+		this.passthrough = passthrough;
+	}
+
+	/**
+	 * @param memoryEstimate bytes the memory governor admitted the decoded image with, zero if it wasn't decoded
+	 * @param ranAlone whether the image was larger than the governor's budget, so it was decoded alone
+	 */
+	public void setMemoryEstimate(long memoryEstimate, boolean ranAlone) {
+		this.memoryEstimate = memoryEstimate;
+		this.ranAlone = ranAlone;
+	}
+
+	public long getMemoryEstimate() {
+		return memoryEstimate;
+	}
+
+	public boolean isRanAlone() {
+		return ranAlone;
+	}
+
+	public long getEncodedBytes() {
+		return encodedBytes;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public JsonObject toJson() {
+		JsonObjectBuilder stages = Json.createObjectBuilder();
+		for (Stage stage : Stage.values()) {
+			if (nanos[stage.ordinal()] > 0) {
+				stages.add(stage.getLabel(), toMillis(nanos[stage.ordinal()]));
+			}
+		}
+		return Json.createObjectBuilder()
+				.add("index", index)
+				.add("source", source != null ? source : "")
+				.add("fetchedBytes", fetchedBytes)
+				.add("encodedBytes", encodedBytes)
+				.add("width", width)
+				.add("height", height)
+				.add("passthrough", passthrough)
+				.add("memoryEstimateBytes", memoryEstimate)
+				.add("ranAlone", ranAlone)
+				.add("millis", stages)
+				.build();
+	}
+
+	static double toMillis(long nanos) {
+		return Math.round(nanos / (double) TimeUnit.MILLISECONDS.toNanos(1) * 1000) / 1000.0;
+	}
+}
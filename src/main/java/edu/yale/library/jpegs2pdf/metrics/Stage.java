@@ -0,0 +1,31 @@
+package edu.yale.library.jpegs2pdf.metrics;
+
+/**
+ * The parts of generating a PDF that time is reported for.
+ */
+public enum Stage {
+	/** opening and reading page image sources, local or remote */
+	FETCH,
+	/** running the image processing command */
+	CONVERT,
+	/** page workers waiting for the memory governor to admit an image */
+	ADMIT,
+	/** decoding page images */
+	DECODE,
+	/** in process transforms and downscaling */
+	TRANSFORM,
+	/** JPEG encoding */
+	ENCODE,
+	/** laying out the cover page and page text */
+	LAYOUT,
+	/** drawing pages and adding them to the document, or writing them with streaming output */
+	WRITE,
+	/** saving the document, or finishing it with streaming output */
+	SAVE,
+	/** the document thread waiting for page images from the workers */
+	WAIT;
+
+	public String getLabel() {
+		return name().toLowerCase();
+	}
+}
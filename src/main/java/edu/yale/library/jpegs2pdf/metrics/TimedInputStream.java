@@ -0,0 +1,58 @@
+package edu.yale.library.jpegs2pdf.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a source and the time spent waiting for them, so fetching can be told apart from
+ * decoding when an image is decoded as it is read.
+ */
+public class TimedInputStream extends FilterInputStream {
+
+	private long bytes;
+	private long nanos;
+
+	public TimedInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		long start = System.nanoTime();
+		int b = in.read();
+		nanos += System.nanoTime() - start;
+		if (b >= 0) {
+			bytes++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		long start = System.nanoTime();
+		int count = in.read(buffer, offset, length);
+		nanos += System.nanoTime() - start;
+		if (count > 0) {
+			bytes += count;
+		}
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long start = System.nanoTime();
+		long skipped = in.skip(n);
+		nanos += System.nanoTime() - start;
+		bytes += skipped;
+		return skipped;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+}
@@ -4,24 +4,40 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
 import java.util.List;
 
+import edu.yale.library.jpegs2pdf.http.HttpFetcher;
+import edu.yale.library.jpegs2pdf.image.ImageTransform;
+
 public class JpegPdfPage {
 
 	private String jpegSource;
 	private String caption;
 	private List<Property> properties;
+	private List<ImageTransform> imageTransforms;
 
 	public InputStream createInputStream() throws IOException {
 		String filename = getJpegSource();
-		if (filename.startsWith("http://") || filename.startsWith("https://")) {
-			return createHttpInputStream(filename, 5);
+		if (isRemote()) {
+			return HttpFetcher.getDefault().open(filename);
 		} else {
-			return new FileInputStream(getJpegSource());
+			return new FileInputStream(getLocalFile());
 		}
 	}
 
+	/**
+	 * @return the file for a local source, which is read in place rather than through createInputStream, or null
+	 *         for a remote one
+	 */
+	public File getLocalFile() {
+		return isRemote() ? null : new File(getJpegSource());
+	}
+
+	public boolean isRemote() {
+		String filename = getJpegSource();
+		return filename.startsWith("http://") || filename.startsWith("https://");
+	}
+
 	public String getJpegSource() {
 		return jpegSource;
 	}
@@ -46,20 +62,15 @@ public class JpegPdfPage {
 		this.properties = properties;
 	}
 
-	private InputStream createHttpInputStream(String address, int retryCount) throws IOException {
-		InputStream in = null;
-		int errorCount = 0;
-		while (in == null) {
-			try {
-				URL website = new URL(address);
-				in = website.openStream();
-			} catch (IOException e) { // IOException is thrown for 500 error.
-				errorCount++;
-				if (errorCount > retryCount) throw e;  // breaks out after errorCount reaches limit.
-				else try {Thread.sleep(1000);} catch (InterruptedException intErr) {}
-			}
-		}
-		return in;
+	public List<ImageTransform> getImageTransforms() {
+		return imageTransforms;
+	}
+
+	/**
+	 * @param imageTransforms applied in process to the page image, in place of the image processing command
+	 */
+	public void setImageTransforms(List<ImageTransform> imageTransforms) {
+		this.imageTransforms = imageTransforms;
 	}
 
 }
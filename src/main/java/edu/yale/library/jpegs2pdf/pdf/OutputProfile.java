@@ -0,0 +1,72 @@
+package edu.yale.library.jpegs2pdf.pdf;
+
+import java.util.Locale;
+
+/**
+ * Named sets of the settings that trade file size against image quality and compatibility.
+ * <ul>
+ * <li>archive: JPEG quality 0.92 without chroma subsampling, JPEG sources embedded as they are, a classic cross
+ * reference table that every reader and PDF/A-1 validator accepts, and maximum Flate compression.</li>
+ * <li>web: JPEG quality 0.75 with 4:2:0 chroma subsampling, JPEG sources embedded as they are, and the structure tree
+ * and other small objects packed into compressed object streams with a cross reference stream (PDF 1.5).</li>
+ * <li>small: JPEG quality 0.5 with chroma subsampling, every image re-encoded, object streams and maximum Flate
+ * compression.</li>
+ * </ul>
+ */
+public enum OutputProfile {
+
+	ARCHIVE(0.92f, false, true, false, 9),
+	WEB(0.75f, true, true, true, 6),
+	SMALL(0.5f, true, false, true, 9);
+
+	private final float jpegQuality;
+	private final boolean chromaSubsampling;
+	private final boolean jpegPassthrough;
+	private final boolean objectStreams;
+	private final int flateLevel;
+
+	OutputProfile(float jpegQuality, boolean chromaSubsampling, boolean jpegPassthrough, boolean objectStreams, int flateLevel) {
+		this.jpegQuality = jpegQuality;
+		this.chromaSubsampling = chromaSubsampling;
+		this.jpegPassthrough = jpegPassthrough;
+		this.objectStreams = objectStreams;
+		this.flateLevel = flateLevel;
+	}
+
+	/**
+	 * @param name a profile name in any case
+	 * @return the profile
+	 * @throws IllegalArgumentException if there is no profile with the name
+	 */
+	public static OutputProfile fromName(String name) {
+		try {
+			return valueOf(name.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown output profile: " + name + ", expected archive, web or small");
+		}
+	}
+
+	public String getName() {
+		return name().toLowerCase(Locale.ROOT);
+	}
+
+	public float getJpegQuality() {
+		return jpegQuality;
+	}
+
+	public boolean isChromaSubsampling() {
+		return chromaSubsampling;
+	}
+
+	public boolean isJpegPassthrough() {
+		return jpegPassthrough;
+	}
+
+	public boolean isObjectStreams() {
+		return objectStreams;
+	}
+
+	public int getFlateLevel() {
+		return flateLevel;
+	}
+}
@@ -0,0 +1,781 @@
+package edu.yale.library.jpegs2pdf.pdf;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Rewrites a PDF as a linearized ("fast web view") file, so a viewer reading it over HTTP with range requests can
+ * show the first page before the rest of the file has downloaded.
+ * <p>
+ * Objects are laid out as Annex F of the PDF specification describes: the linearization dictionary and the first
+ * page cross reference section, the catalog, the primary hint stream, the first page and everything it uses, each
+ * following page with the objects only it uses, the objects shared by later pages, and then the rest of the
+ * document such as the page tree and structure tree, followed by the main cross reference section.  The hint
+ * stream holds the page offset and shared object hint tables.  Streams are copied without being decoded.
+ * <p>
+ * Offsets in the linearization dictionary, the first page trailer and the hint tables depend on the size of the
+ * hint stream, so the layout is computed from the serialized length of each object before anything is written.
+ */
+public class PdfLinearizer {
+
+	private static final byte[] BINARY_COMMENT = { '%', (byte) 0xE2, (byte) 0xE3, (byte) 0xCF, (byte) 0xD3, '\n' };
+	private static final int LINEARIZATION_DICT_LENGTH = 160;
+	private static final int FIRST_TRAILER_LENGTH = 240;
+	private static final int XREF_ENTRY_LENGTH = 20;
+
+	private final PDDocument document;
+	private final COSBase catalog;
+	private final COSBase info;
+	private final List<COSDictionary> pages = new ArrayList<>();
+	private final Set<COSBase> pageSet = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final Set<COSBase> placed = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final List<COSBase> documentObjects = new ArrayList<>();
+	private final List<COSBase> firstPageObjects = new ArrayList<>();
+	private final List<List<COSBase>> pageObjects = new ArrayList<>();
+	private final List<COSBase> sharedObjects = new ArrayList<>();
+	private final List<COSBase> otherObjects = new ArrayList<>();
+	private final List<List<COSBase>> pageSharedReferences = new ArrayList<>();
+	private final Map<COSBase, Long> numbers = new IdentityHashMap<>();
+	private final Map<COSBase, Long> lengths = new IdentityHashMap<>();
+	private final Map<COSBase, Long> offsets = new IdentityHashMap<>();
+
+	private long linearizationOffset;
+	private long firstNumber;
+	private long linearizationNumber;
+	private long hintNumber;
+	private long size;
+	private byte[] header;
+	private byte[] hintData = new byte[0];
+	private long hintTableSplit;
+	private long hintOffset;
+	private long hintLength;
+	private long firstXrefOffset;
+	private long endOfFirstPage;
+	private long mainXrefOffset;
+	private long fileLength;
+
+	public PdfLinearizer(PDDocument document) {
+		this.document = document;
+		COSDictionary trailer = document.getDocument().getTrailer();
+		this.catalog = dereference(trailer.getItem(COSName.ROOT));
+		this.info = dereference(trailer.getItem(COSName.INFO));
+		for (PDPage page : document.getPages()) {
+			pages.add(page.getCOSObject());
+			pageSet.add(page.getCOSObject());
+		}
+	}
+
+	/**
+	 * @param source
+	 * @param destination may not be the source
+	 * @throws IOException
+	 */
+	public static void linearize(File source, File destination) throws IOException {
+		try (PDDocument document = PDDocument.load(source, MemoryUsageSetting.setupTempFileOnly())) {
+			try (OutputStream out = new FileOutputStream(destination)) {
+				new PdfLinearizer(document).write(out);
+			}
+		}
+	}
+
+	/**
+	 * Writes the linearized document.  Does not close the stream.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		if (pages.isEmpty() || !(catalog instanceof COSDictionary)) {
+			throw new IOException("Cannot linearize a document without pages");
+		}
+		partition();
+		number();
+		header = ("%PDF-" + String.format(Locale.US, "%.1f", Math.max(1.4f, document.getVersion())) + "\n").getBytes(StandardCharsets.US_ASCII);
+		for (List<COSBase> section : sections()) {
+			for (COSBase object : section) {
+				CountingOutputStream counter = new CountingOutputStream(null);
+				writeIndirect(counter, object, false);
+				lengths.put(object, counter.count);
+			}
+		}
+		// the hint stream's own length moves everything after it, so lay out until the hints stop changing; the
+		// space reserved for them only grows, so this settles
+		long reserved = 0;
+		byte[] hints = new byte[0];
+		while (true) {
+			layout(reserved);
+			byte[] next = createHints();
+			if (next.length <= reserved && Arrays.equals(next, hints)) {
+				break;
+			}
+			hints = next;
+			reserved = Math.max(reserved, next.length);
+		}
+		hintData = Arrays.copyOf(hints, (int) reserved);
+		CountingOutputStream output = new CountingOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		output.write(header);
+		output.write(BINARY_COMMENT);
+		check(output, linearizationOffset, "linearization dictionary");
+		output.write(linearizationDictionary());
+		check(output, firstXrefOffset, "first page cross reference");
+		writeFirstXref(output);
+		writeObjects(output, documentObjects);
+		check(output, hintOffset, "hint stream");
+		output.write(hintStream());
+		writeObjects(output, firstPageObjects);
+		for (List<COSBase> objects : pageObjects) {
+			writeObjects(output, objects);
+		}
+		writeObjects(output, sharedObjects);
+		writeObjects(output, otherObjects);
+		check(output, mainXrefOffset, "main cross reference");
+		writeMainXref(output);
+		check(output, fileLength, "end of file");
+		output.flush();
+	}
+
+	/**
+	 * Sorts the objects into the sections of the file.
+	 */
+	private void partition() {
+		COSDictionary catalogDictionary = (COSDictionary) catalog;
+		place(catalog, documentObjects);
+		for (COSName name : new COSName[] { COSName.VIEWER_PREFERENCES, COSName.OPEN_ACTION, COSName.ACRO_FORM }) {
+			List<COSBase> reached = new ArrayList<>();
+			reach(catalogDictionary.getItem(name), catalog, Collections.newSetFromMap(new IdentityHashMap<>()), reached);
+			for (COSBase object : reached) {
+				place(object, documentObjects);
+			}
+		}
+
+		List<List<COSBase>> reachedByPage = new ArrayList<>();
+		Map<COSBase, Integer> users = new IdentityHashMap<>();
+		for (COSDictionary page : pages) {
+			List<COSBase> reached = new ArrayList<>();
+			Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+			visited.add(page);
+			reach(page, page, visited, reached);
+			reachedByPage.add(reached);
+			for (COSBase object : reached) {
+				users.merge(object, 1, Integer::sum);
+			}
+		}
+
+		place(pages.get(0), firstPageObjects);
+		for (COSBase object : reachedByPage.get(0)) {
+			place(object, firstPageObjects);
+		}
+		pageSharedReferences.add(Collections.emptyList());
+		for (int i = 1; i < pages.size(); i++) {
+			List<COSBase> objects = new ArrayList<>();
+			place(pages.get(i), objects);
+			for (COSBase object : reachedByPage.get(i)) {
+				if (users.get(object) == 1) {
+					place(object, objects);
+				}
+			}
+			pageObjects.add(objects);
+		}
+		for (int i = 1; i < pages.size(); i++) {
+			for (COSBase object : reachedByPage.get(i)) {
+				if (users.get(object) > 1) {
+					place(object, sharedObjects);
+				}
+			}
+		}
+		// later pages refer to the shared objects they use, whether in the first page section or the shared section
+		Set<COSBase> shareable = Collections.newSetFromMap(new IdentityHashMap<>());
+		shareable.addAll(firstPageObjects);
+		shareable.addAll(sharedObjects);
+		for (int i = 1; i < pages.size(); i++) {
+			List<COSBase> references = new ArrayList<>();
+			for (COSBase object : reachedByPage.get(i)) {
+				if (users.get(object) > 1 && shareable.contains(object)) {
+					references.add(object);
+				}
+			}
+			pageSharedReferences.add(references);
+		}
+
+		List<COSBase> reached = new ArrayList<>();
+		Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		COSDictionary trailer = document.getDocument().getTrailer();
+		reach(trailer.getItem(COSName.ROOT), null, visited, reached);
+		reach(trailer.getItem(COSName.INFO), null, visited, reached);
+		for (COSBase object : reached) {
+			place(object, otherObjects);
+		}
+	}
+
+	private void place(COSBase object, List<COSBase> section) {
+		if (placed.add(object)) {
+			section.add(object);
+		}
+	}
+
+	/**
+	 * Adds the indirect objects reachable from the value, in the order they are first referenced.
+	 * @param value
+	 * @param from the page, or the catalog, the objects are reached from, in which case other pages and the page tree
+	 *        are not followed; null to follow everything
+	 * @param visited
+	 * @param reached
+	 */
+	private void reach(COSBase value, COSBase from, Set<COSBase> visited, List<COSBase> reached) {
+		if (value instanceof COSObject) {
+			COSBase object = dereference(value);
+			if (object == null || (from != null && object != from && isPageTree(object)) || !visited.add(object)) {
+				return;
+			}
+			reached.add(object);
+			value = object;
+		}
+		if (value instanceof COSDictionary) {
+			boolean stream = value instanceof COSStream;
+			for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) value).entrySet()) {
+				COSName key = entry.getKey();
+				if ((stream && key.equals(COSName.LENGTH)) || (from != null && (key.equals(COSName.PARENT) || key.equals(COSName.P)))) {
+					continue;
+				}
+				reach(entry.getValue(), from, visited, reached);
+			}
+		} else if (value instanceof COSArray) {
+			for (COSBase item : (COSArray) value) {
+				reach(item, from, visited, reached);
+			}
+		}
+	}
+
+	private boolean isPageTree(COSBase object) {
+		return pageSet.contains(object)
+				|| (object instanceof COSDictionary && COSName.PAGES.equals(((COSDictionary) object).getCOSName(COSName.TYPE)));
+	}
+
+	/**
+	 * Numbers the objects after the first page in file order, then the first page section, which the first page
+	 * cross reference section covers.
+	 */
+	private void number() {
+		long number = 1;
+		for (List<COSBase> objects : pageObjects) {
+			for (COSBase object : objects) {
+				numbers.put(object, number++);
+			}
+		}
+		for (COSBase object : sharedObjects) {
+			numbers.put(object, number++);
+		}
+		for (COSBase object : otherObjects) {
+			numbers.put(object, number++);
+		}
+		firstNumber = number;
+		linearizationNumber = number++;
+		for (COSBase object : documentObjects) {
+			numbers.put(object, number++);
+		}
+		hintNumber = number++;
+		for (COSBase object : firstPageObjects) {
+			numbers.put(object, number++);
+		}
+		size = number;
+	}
+
+	private List<List<COSBase>> sections() {
+		List<List<COSBase>> sections = new ArrayList<>();
+		sections.add(documentObjects);
+		sections.add(firstPageObjects);
+		sections.addAll(pageObjects);
+		sections.add(sharedObjects);
+		sections.add(otherObjects);
+		return sections;
+	}
+
+	/**
+	 * Works out the offset of everything in the file, with the hint stream data taking the given number of bytes.
+	 */
+	private void layout(long hintDataLength) throws IOException {
+		long position = header.length + BINARY_COMMENT.length;
+		linearizationOffset = position;
+		position += linearizationDictionary().length;
+		firstXrefOffset = position;
+		position += firstXrefLength();
+		position = layout(documentObjects, position);
+		hintOffset = position;
+		hintLength = hintStreamHeader(hintDataLength).length + hintDataLength + hintStreamTrailer().length;
+		position += hintLength;
+		position = layout(firstPageObjects, position);
+		endOfFirstPage = position;
+		for (List<COSBase> objects : pageObjects) {
+			position = layout(objects, position);
+		}
+		position = layout(sharedObjects, position);
+		position = layout(otherObjects, position);
+		mainXrefOffset = position;
+		fileLength = position + mainXrefLength();
+	}
+
+	private long layout(List<COSBase> objects, long position) {
+		for (COSBase object : objects) {
+			offsets.put(object, position);
+			position += lengths.get(object);
+		}
+		return position;
+	}
+
+	/**
+	 * Offsets in the hint tables leave out the primary hint stream, as if it were not in the file.
+	 */
+	private long hintAdjusted(long offset) {
+		return offset > hintOffset ? offset - hintLength : offset;
+	}
+
+	/**
+	 * @return the page offset hint table followed by the shared object hint table
+	 */
+	private byte[] createHints() {
+		int pageCount = pages.size();
+		long[] objectCounts = new long[pageCount];
+		long[] pageLengths = new long[pageCount];
+		objectCounts[0] = firstPageObjects.size();
+		pageLengths[0] = endOfFirstPage - offsets.get(pages.get(0));
+		for (int i = 1; i < pageCount; i++) {
+			List<COSBase> objects = pageObjects.get(i - 1);
+			objectCounts[i] = objects.size();
+			long start = offsets.get(objects.get(0));
+			COSBase last = objects.get(objects.size() - 1);
+			pageLengths[i] = offsets.get(last) + lengths.get(last) - start;
+		}
+		List<COSBase> sharedEntries = new ArrayList<>(firstPageObjects);
+		sharedEntries.addAll(sharedObjects);
+		Map<COSBase, Integer> identifiers = new IdentityHashMap<>();
+		for (int i = 0; i < sharedEntries.size(); i++) {
+			identifiers.put(sharedEntries.get(i), i);
+		}
+		long minObjects = min(objectCounts);
+		long minLength = min(pageLengths);
+		int objectBits = bits(max(objectCounts) - minObjects);
+		int lengthBits = bits(max(pageLengths) - minLength);
+		long maxShared = 0;
+		for (List<COSBase> references : pageSharedReferences) {
+			maxShared = Math.max(maxShared, references.size());
+		}
+		int sharedCountBits = bits(maxShared);
+		int identifierBits = bits(Math.max(0, sharedEntries.size() - 1));
+
+		BitWriter bits = new BitWriter();
+		bits.write(minObjects, 32);
+		bits.write(hintAdjusted(offsets.get(pages.get(0))), 32);
+		bits.write(objectBits, 16);
+		bits.write(minLength, 32);
+		bits.write(lengthBits, 16);
+		// content stream offsets and lengths are given as the whole page, as Acrobat does
+		bits.write(0, 32);
+		bits.write(0, 16);
+		bits.write(minLength, 32);
+		bits.write(lengthBits, 16);
+		bits.write(sharedCountBits, 16);
+		bits.write(identifierBits, 16);
+		bits.write(0, 16);
+		bits.write(1, 16);
+		for (long count : objectCounts) {
+			bits.write(count - minObjects, objectBits);
+		}
+		bits.align();
+		for (long length : pageLengths) {
+			bits.write(length - minLength, lengthBits);
+		}
+		bits.align();
+		for (List<COSBase> references : pageSharedReferences) {
+			bits.write(references.size(), sharedCountBits);
+		}
+		bits.align();
+		for (List<COSBase> references : pageSharedReferences) {
+			for (COSBase object : references) {
+				bits.write(identifiers.get(object), identifierBits);
+			}
+		}
+		bits.align();
+		// the shared object numerators and content stream offsets take no bits, and content stream lengths are the
+		// page lengths
+		for (long length : pageLengths) {
+			bits.write(length - minLength, lengthBits);
+		}
+		bits.align();
+		hintTableSplit = bits.size();
+
+		long[] groupLengths = new long[sharedEntries.size()];
+		for (int i = 0; i < groupLengths.length; i++) {
+			groupLengths[i] = lengths.get(sharedEntries.get(i));
+		}
+		long minGroup = groupLengths.length > 0 ? min(groupLengths) : 0;
+		int groupBits = groupLengths.length > 0 ? bits(max(groupLengths) - minGroup) : 0;
+		COSBase firstShared = sharedObjects.isEmpty() ? null : sharedObjects.get(0);
+		bits.write(firstShared != null ? numbers.get(firstShared) : 0, 32);
+		bits.write(firstShared != null ? hintAdjusted(offsets.get(firstShared)) : 0, 32);
+		bits.write(firstPageObjects.size(), 32);
+		bits.write(sharedEntries.size(), 32);
+		bits.write(0, 16);
+		bits.write(minGroup, 32);
+		bits.write(groupBits, 16);
+		for (long length : groupLengths) {
+			bits.write(length - minGroup, groupBits);
+		}
+		bits.align();
+		for (int i = 0; i < groupLengths.length; i++) {
+			bits.write(0, 1);
+		}
+		bits.align();
+		return bits.toByteArray();
+	}
+
+	private byte[] linearizationDictionary() {
+		String dictionary = linearizationNumber + " 0 obj\n<< /Linearized 1 /L " + fileLength + " /H [ " + hintOffset + " " + hintLength
+				+ " ] /O " + numbers.get(pages.get(0)) + " /E " + endOfFirstPage + " /N " + pages.size()
+				+ " /T " + (mainXrefOffset + ("xref\n0 " + firstNumber + "\n").length() - 1) + " >>";
+		return padded(dictionary, LINEARIZATION_DICT_LENGTH, "\nendobj\n");
+	}
+
+	private long firstXrefLength() {
+		return ("xref\n" + firstNumber + " " + (size - firstNumber) + "\n").length()
+				+ (size - firstNumber) * XREF_ENTRY_LENGTH + FIRST_TRAILER_LENGTH;
+	}
+
+	private void writeFirstXref(OutputStream out) throws IOException {
+		write(out, "xref\n" + firstNumber + " " + (size - firstNumber) + "\n");
+		writeXrefEntry(out, linearizationOffset);
+		for (COSBase object : documentObjects) {
+			writeXrefEntry(out, offsets.get(object));
+		}
+		writeXrefEntry(out, hintOffset);
+		for (COSBase object : firstPageObjects) {
+			writeXrefEntry(out, offsets.get(object));
+		}
+		ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+		write(trailer, "trailer\n<< /Size " + size + " /Root " + numbers.get(catalog) + " 0 R");
+		if (info != null) {
+			write(trailer, " /Info " + numbers.get(info) + " 0 R");
+		}
+		write(trailer, " /ID ");
+		writeDirect(trailer, getId());
+		write(trailer, " /Prev " + mainXrefOffset + " >>");
+		String suffix = "\nstartxref\n0\n%%EOF\n";
+		out.write(padded(new String(trailer.toByteArray(), StandardCharsets.ISO_8859_1), FIRST_TRAILER_LENGTH - suffix.length(), suffix));
+	}
+
+	private long mainXrefLength() {
+		return ("xref\n0 " + firstNumber + "\n").length() + firstNumber * XREF_ENTRY_LENGTH + mainTrailer().length();
+	}
+
+	private String mainTrailer() {
+		return "trailer\n<< /Size " + firstNumber + " >>\nstartxref\n" + firstXrefOffset + "\n%%EOF\n";
+	}
+
+	private void writeMainXref(OutputStream out) throws IOException {
+		write(out, "xref\n0 " + firstNumber + "\n");
+		write(out, "0000000000 65535 f\r\n");
+		List<COSBase> objects = new ArrayList<>();
+		for (List<COSBase> page : pageObjects) {
+			objects.addAll(page);
+		}
+		objects.addAll(sharedObjects);
+		objects.addAll(otherObjects);
+		for (COSBase object : objects) {
+			writeXrefEntry(out, offsets.get(object));
+		}
+		write(out, mainTrailer());
+	}
+
+	private static void writeXrefEntry(OutputStream out, long offset) throws IOException {
+		write(out, String.format(Locale.US, "%010d 00000 n\r\n", offset));
+	}
+
+	private byte[] hintStreamHeader(long dataLength) {
+		return padded(hintNumber + " 0 obj\n<< /Length " + dataLength + " /S " + hintTableSplit, 64, " >>\nstream\r\n");
+	}
+
+	private static byte[] hintStreamTrailer() {
+		return "\r\nendstream\nendobj\n".getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private byte[] hintStream() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(hintStreamHeader(hintData.length));
+		stream.write(hintData);
+		stream.write(hintStreamTrailer());
+		return stream.toByteArray();
+	}
+
+	private COSArray getId() {
+		COSBase id = dereference(document.getDocument().getTrailer().getItem(COSName.ID));
+		if (id instanceof COSArray && ((COSArray) id).size() == 2) {
+			return (COSArray) id;
+		}
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.US_ASCII));
+			md5.update(Long.toString(System.nanoTime()).getBytes(StandardCharsets.US_ASCII));
+			COSString string = new COSString(md5.digest());
+			string.setForceHexForm(true);
+			COSArray array = new COSArray();
+			array.add(string);
+			array.add(string);
+			return array;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void writeObjects(CountingOutputStream out, List<COSBase> objects) throws IOException {
+		for (COSBase object : objects) {
+			check(out, offsets.get(object), "object " + numbers.get(object));
+			writeIndirect(out, object, true);
+		}
+	}
+
+	/**
+	 * @param data false to count the stream data rather than copying it
+	 */
+	private void writeIndirect(CountingOutputStream out, COSBase object, boolean data) throws IOException {
+		write(out, numbers.get(object) + " 0 obj\n");
+		if (object instanceof COSStream) {
+			COSStream stream = (COSStream) object;
+			long length = stream.getLength();
+			out.write(COSWriter.DICT_OPEN);
+			for (Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+				if (entry.getKey().equals(COSName.LENGTH) || entry.getValue() == null) {
+					continue;
+				}
+				entry.getKey().writePDF(out);
+				out.write(' ');
+				writeValue(out, entry.getValue());
+				write(out, "\n");
+			}
+			write(out, "/Length " + length + "\n");
+			out.write(COSWriter.DICT_CLOSE);
+			write(out, "\nstream\r\n");
+			if (data) {
+				long start = out.count;
+				try (InputStream in = stream.createRawInputStream()) {
+					byte[] buffer = new byte[64 * 1024];
+					int count;
+					while ((count = in.read(buffer)) >= 0) {
+						out.write(buffer, 0, count);
+					}
+				}
+				if (out.count - start != length) {
+					throw new IOException("Stream " + numbers.get(object) + " is " + (out.count - start) + " bytes, not " + length);
+				}
+			} else {
+				out.count += length;
+			}
+			write(out, "\r\nendstream");
+		} else {
+			writeDirect(out, object);
+		}
+		write(out, "\nendobj\n");
+	}
+
+	private void writeValue(OutputStream out, COSBase value) throws IOException {
+		if (value instanceof COSObject) {
+			COSBase object = dereference(value);
+			Long number = object != null ? numbers.get(object) : null;
+			if (number == null) {
+				write(out, "null");
+			} else {
+				write(out, number + " 0 R");
+			}
+		} else {
+			writeDirect(out, value);
+		}
+	}
+
+	private void writeDirect(OutputStream out, COSBase value) throws IOException {
+		if (value == null || value instanceof COSNull) {
+			write(out, "null");
+		} else if (value instanceof COSDictionary) {
+			out.write(COSWriter.DICT_OPEN);
+			for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) value).entrySet()) {
+				if (entry.getValue() == null) {
+					continue;
+				}
+				entry.getKey().writePDF(out);
+				out.write(' ');
+				writeValue(out, entry.getValue());
+				write(out, "\n");
+			}
+			out.write(COSWriter.DICT_CLOSE);
+		} else if (value instanceof COSArray) {
+			out.write(COSWriter.ARRAY_OPEN);
+			boolean first = true;
+			for (COSBase item : (COSArray) value) {
+				if (!first) {
+					out.write(' ');
+				}
+				writeValue(out, item);
+				first = false;
+			}
+			out.write(COSWriter.ARRAY_CLOSE);
+		} else if (value instanceof COSString) {
+			COSWriter.writeString((COSString) value, out);
+		} else if (value instanceof COSName) {
+			((COSName) value).writePDF(out);
+		} else if (value instanceof COSInteger) {
+			((COSInteger) value).writePDF(out);
+		} else if (value instanceof COSFloat) {
+			((COSFloat) value).writePDF(out);
+		} else if (value instanceof COSBoolean) {
+			((COSBoolean) value).writePDF(out);
+		} else {
+			throw new IOException("Cannot write PDF object of type " + value.getClass().getName());
+		}
+	}
+
+	private static void check(CountingOutputStream out, long expected, String what) throws IOException {
+		if (out.count != expected) {
+			throw new IOException("Linearized layout is out of step at " + what + ": " + out.count + " instead of " + expected);
+		}
+	}
+
+	/**
+	 * Pads the text with spaces so values of any width take the same space, which keeps the layout fixed.
+	 */
+	private static byte[] padded(String text, int length, String suffix) {
+		StringBuilder builder = new StringBuilder(text);
+		while (builder.length() < length) {
+			builder.append(' ');
+		}
+		return builder.append(suffix).toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static COSBase dereference(COSBase value) {
+		while (value instanceof COSObject) {
+			value = ((COSObject) value).getObject();
+		}
+		return value instanceof COSNull ? null : value;
+	}
+
+	private static void write(OutputStream out, String text) throws IOException {
+		out.write(text.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static long min(long[] values) {
+		long min = Long.MAX_VALUE;
+		for (long value : values) {
+			min = Math.min(min, value);
+		}
+		return min;
+	}
+
+	private static long max(long[] values) {
+		long max = Long.MIN_VALUE;
+		for (long value : values) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+
+	/**
+	 * @return bits needed to hold the value
+	 */
+	static int bits(long value) {
+		return 64 - Long.numberOfLeadingZeros(value);
+	}
+
+	/**
+	 * Hint table values are packed most significant bit first, with each item starting on a byte boundary.
+	 */
+	static class BitWriter {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private int current;
+		private int used;
+
+		void write(long value, int bits) {
+			for (int bit = bits - 1; bit >= 0; bit--) {
+				current = (current << 1) | (int) ((value >>> bit) & 1);
+				if (++used == 8) {
+					bytes.write(current);
+					current = 0;
+					used = 0;
+				}
+			}
+		}
+
+		void align() {
+			if (used > 0) {
+				write(0, 8 - used);
+			}
+		}
+
+		int size() {
+			return bytes.size();
+		}
+
+		byte[] toByteArray() {
+			align();
+			return bytes.toByteArray();
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (out != null) {
+				out.write(b);
+			}
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			if (out != null) {
+				out.write(buffer, offset, length);
+			}
+			count += length;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (out != null) {
+				out.flush();
+			}
+		}
+	}
+}
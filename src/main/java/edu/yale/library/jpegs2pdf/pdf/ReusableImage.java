@@ -0,0 +1,85 @@
+package edu.yale.library.jpegs2pdf.pdf;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * An image compressed once and added to any number of documents, including concurrently, without decoding or
+ * compressing it again.  Holds the encoded stream data and the image dictionary entries, with the soft mask, if
+ * the image has transparency, kept the same way.
+ */
+public class ReusableImage {
+
+	private final COSDictionary dictionary = new COSDictionary();
+	private final byte[] data;
+	private final ReusableImage softMask;
+	private final int width;
+	private final int height;
+
+	private ReusableImage(COSStream stream) throws IOException {
+		for (Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+			if (!entry.getKey().equals(COSName.LENGTH) && !entry.getKey().equals(COSName.SMASK)) {
+				// entries written by LosslessFactory are names and numbers, which can be shared
+				dictionary.setItem(entry.getKey(), entry.getValue());
+			}
+		}
+		try (InputStream in = stream.createRawInputStream()) {
+			data = IOUtils.toByteArray(in);
+		}
+		COSBase mask = stream.getDictionaryObject(COSName.SMASK);
+		softMask = mask instanceof COSStream ? new ReusableImage((COSStream) mask) : null;
+		width = stream.getInt(COSName.WIDTH);
+		height = stream.getInt(COSName.HEIGHT);
+	}
+
+	/**
+	 * @param image
+	 * @return the image, Flate compressed as LosslessFactory does
+	 * @throws IOException
+	 */
+	public static ReusableImage encode(BufferedImage image) throws IOException {
+		try (PDDocument scratch = new PDDocument()) {
+			return new ReusableImage(LosslessFactory.createFromImage(scratch, image).getCOSObject());
+		}
+	}
+
+	/**
+	 * @param document
+	 * @return a new image XObject for the document, with its own copy of the image data
+	 * @throws IOException
+	 */
+	public PDImageXObject createXObject(PDDocument document) throws IOException {
+		COSStream stream = document.getDocument().createCOSStream();
+		for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+			stream.setItem(entry.getKey(), entry.getValue());
+		}
+		try (OutputStream out = stream.createRawOutputStream()) {
+			out.write(data);
+		}
+		if (softMask != null) {
+			stream.setItem(COSName.SMASK, softMask.createXObject(document));
+		}
+		return new PDImageXObject(new PDStream(stream), null);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+}
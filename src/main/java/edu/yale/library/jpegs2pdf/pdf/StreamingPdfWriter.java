@@ -0,0 +1,459 @@
+package edu.yale.library.jpegs2pdf.pdf;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdfwriter.COSStandardOutputStream;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+
+/**
+ * Writes a PDF incrementally, one object graph at a time, instead of serializing a whole PDDocument at the end.
+ * <p>
+ * Every dictionary or stream reached from an object passed to writeObject is written straight away, unless it was
+ * reserved, in which case only a reference is written and the object itself follows when it is written explicitly or
+ * when the file is finished.  Reserve objects that are still changing, such as the page tree and fonts which are only
+ * subset at the end.  Streams are closed once written so their buffers are released.
+ * <p>
+ * Object numbers of written objects are held weakly, so once the caller lets go of a written object only its xref
+ * offset remains in memory.
+ * <p>
+ * With object streams, dictionaries are packed a hundred at a time into Flate compressed object streams, and the
+ * file ends with a cross reference stream instead of a table.  That needs PDF 1.5.
+ */
+public class StreamingPdfWriter implements Closeable {
+
+	private static final byte[] BINARY_COMMENT = { '%', (byte) 0xE2, (byte) 0xE3, (byte) 0xCF, (byte) 0xD3, '\n' };
+	private static final int OBJECTS_PER_STREAM = 100;
+
+	private final COSStandardOutputStream file;
+	/** where objects are serialized: the file, or the object stream being filled */
+	private COSStandardOutputStream output;
+	private final Map<COSBase, Long> numbers = new WeakHashMap<>();
+	private final Map<COSBase, Long> reserved = new IdentityHashMap<>();
+	private final Deque<COSBase> queue = new ArrayDeque<>();
+	private long[] offsets = new long[1024];
+	/** object stream holding each object, 0 if it is in the file itself; its offset is then its index in the stream */
+	private long[] containers = new long[1024];
+	private long objectCount = 0;
+	private boolean finished = false;
+	private boolean objectStreams = false;
+	private int flateLevel = Deflater.DEFAULT_COMPRESSION;
+	private long objectStreamNumber;
+	private ByteArrayOutputStream objectStreamData;
+	private StringBuilder objectStreamIndex;
+	private int objectStreamCount;
+
+	public StreamingPdfWriter(OutputStream out, float version) throws IOException {
+		this.file = new COSStandardOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		this.output = file;
+		write("%PDF-" + String.format(Locale.US, "%.1f", version));
+		output.writeEOL();
+		output.write(BINARY_COMMENT);
+	}
+
+	/**
+	 * Packs dictionaries into object streams and writes a cross reference stream.  Set before the first object is
+	 * written, with a version of at least 1.5.
+	 * @param objectStreams
+	 * @param flateLevel Deflater level for the object and cross reference streams, or -1 for the default
+	 */
+	public void setObjectStreams(boolean objectStreams, int flateLevel) {
+		this.objectStreams = objectStreams;
+		this.flateLevel = flateLevel;
+	}
+
+	/**
+	 * Assigns an object number to an object without writing it.  References to it are written as usual, and the
+	 * object itself is written when passed to writeObject or when the file is finished.
+	 * @param object a dictionary or stream
+	 * @return the object number
+	 */
+	public long reserve(COSBase object) {
+		object = dereference(object);
+		Long number = reserved.get(object);
+		if (number == null) {
+			number = numbers.get(object);
+		}
+		if (number == null) {
+			number = nextNumber();
+			reserved.put(object, number);
+		}
+		return number;
+	}
+
+	/**
+	 * Writes the object, and every dictionary or stream reachable from it that has not been written or reserved, to
+	 * the output.
+	 * @param object
+	 * @return the object number
+	 * @throws IOException
+	 */
+	public long writeObject(COSBase object) throws IOException {
+		if (finished) {
+			throw new IllegalStateException("PDF has already been finished");
+		}
+		object = dereference(object);
+		Long number = reserved.remove(object);
+		if (number != null) {
+			numbers.put(object, number);
+			queue.add(object);
+		} else if (numbers.containsKey(object)) {
+			return numbers.get(object);
+		} else {
+			number = enqueue(object);
+		}
+		while (!queue.isEmpty()) {
+			COSBase next = queue.poll();
+			writeIndirect(numbers.get(next), next);
+		}
+		return number;
+	}
+
+	/**
+	 * Writes the catalog, information dictionary and any reserved objects, followed by the cross reference table and
+	 * trailer.  Does not close the underlying stream.
+	 * @param catalog
+	 * @param info may be null
+	 * @throws IOException
+	 */
+	public void finish(COSDictionary catalog, COSDictionary info) throws IOException {
+		long root = writeObject(catalog);
+		long infoNumber = info != null ? writeObject(info) : 0;
+		while (!reserved.isEmpty()) {
+			writeObject(reserved.keySet().iterator().next());
+		}
+		finished = true;
+		if (objectStreams) {
+			flushObjectStream();
+			finishWithXrefStream(root, info != null ? infoNumber : 0);
+			return;
+		}
+		long xref = output.getPos();
+		write("xref");
+		output.writeEOL();
+		write("0 " + (objectCount + 1));
+		output.writeEOL();
+		write("0000000000 65535 f");
+		output.writeCRLF();
+		for (int number = 1; number <= objectCount; number++) {
+			write(String.format(Locale.US, "%010d 00000 n", offsets[number]));
+			output.writeCRLF();
+		}
+		write("trailer");
+		output.writeEOL();
+		write("<<");
+		write("/Size " + (objectCount + 1) + " /Root " + root + " 0 R");
+		if (info != null) {
+			write(" /Info " + infoNumber + " 0 R");
+		}
+		write(" /ID [");
+		byte[] id = createId(xref);
+		writeString(id);
+		writeString(id);
+		write("]>>");
+		output.writeEOL();
+		write("startxref");
+		output.writeEOL();
+		write(Long.toString(xref));
+		output.writeEOL();
+		write("%%EOF");
+		output.writeEOL();
+		output.flush();
+	}
+
+	/**
+	 * Writes the cross reference stream, with the trailer entries in its dictionary.
+	 */
+	private void finishWithXrefStream(long root, long infoNumber) throws IOException {
+		long xrefNumber = nextNumber();
+		long xref = file.getPos();
+		offsets[(int) xrefNumber] = xref;
+		int offsetBytes = 1;
+		while (offsetBytes < 8 && xref >= 1L << (8 * offsetBytes)) {
+			offsetBytes++;
+		}
+		ByteArrayOutputStream entries = new ByteArrayOutputStream((int) (objectCount + 1) * (3 + offsetBytes));
+		writeXrefEntry(entries, 0, 0, offsetBytes, 0xFFFF);
+		for (int number = 1; number <= objectCount; number++) {
+			if (containers[number] != 0) {
+				writeXrefEntry(entries, 2, containers[number], offsetBytes, offsets[number]);
+			} else {
+				writeXrefEntry(entries, 1, offsets[number], offsetBytes, 0);
+			}
+		}
+		byte[] data = deflate(entries.toByteArray());
+		write(xrefNumber + " 0 obj");
+		output.writeEOL();
+		write("<< /Type /XRef /Size " + (objectCount + 1) + " /W [1 " + offsetBytes + " 2] /Root " + root + " 0 R");
+		if (infoNumber != 0) {
+			write(" /Info " + infoNumber + " 0 R");
+		}
+		write(" /ID [");
+		byte[] id = createId(xref);
+		writeString(id);
+		writeString(id);
+		write("] /Filter /FlateDecode /Length " + data.length + " >>");
+		output.writeEOL();
+		writeStreamData(data);
+		write("startxref");
+		output.writeEOL();
+		write(Long.toString(xref));
+		output.writeEOL();
+		write("%%EOF");
+		output.writeEOL();
+		output.flush();
+	}
+
+	private static void writeXrefEntry(ByteArrayOutputStream entries, int type, long field2, int field2Bytes, long field3) {
+		entries.write(type);
+		for (int i = field2Bytes - 1; i >= 0; i--) {
+			entries.write((int) (field2 >>> (8 * i)));
+		}
+		entries.write((int) (field3 >>> 8));
+		entries.write((int) field3);
+	}
+
+	/**
+	 * Writes the filled object stream, if there is one, to the file.
+	 */
+	private void flushObjectStream() throws IOException {
+		if (objectStreamData == null) {
+			return;
+		}
+		byte[] index = objectStreamIndex.toString().getBytes(StandardCharsets.US_ASCII);
+		ByteArrayOutputStream content = new ByteArrayOutputStream(index.length + objectStreamData.size());
+		content.write(index);
+		objectStreamData.writeTo(content);
+		byte[] data = deflate(content.toByteArray());
+		offsets[(int) objectStreamNumber] = file.getPos();
+		write(objectStreamNumber + " 0 obj");
+		output.writeEOL();
+		write("<< /Type /ObjStm /N " + objectStreamCount + " /First " + index.length + " /Filter /FlateDecode /Length " + data.length + " >>");
+		output.writeEOL();
+		writeStreamData(data);
+		objectStreamData = null;
+		objectStreamIndex = null;
+		objectStreamCount = 0;
+	}
+
+	private void writeStreamData(byte[] data) throws IOException {
+		output.write(COSWriter.STREAM);
+		output.writeCRLF();
+		output.write(data);
+		output.writeCRLF();
+		output.write(COSWriter.ENDSTREAM);
+		output.writeEOL();
+		output.write(COSWriter.ENDOBJ);
+		output.writeEOL();
+	}
+
+	private byte[] deflate(byte[] data) throws IOException {
+		Deflater deflater = new Deflater(flateLevel);
+		try {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+			try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+				out.write(data);
+			}
+			return compressed.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	public long getPosition() {
+		return file.getPos();
+	}
+
+	public long getObjectCount() {
+		return objectCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private long nextNumber() {
+		objectCount++;
+		if (objectCount >= offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			containers = Arrays.copyOf(containers, containers.length * 2);
+		}
+		return objectCount;
+	}
+
+	private long enqueue(COSBase object) {
+		long number = nextNumber();
+		numbers.put(object, number);
+		queue.add(object);
+		return number;
+	}
+
+	private void writeIndirect(long number, COSBase object) throws IOException {
+		if (objectStreams && !(object instanceof COSStream)) {
+			writeCompressed(number, object);
+			return;
+		}
+		offsets[(int) number] = output.getPos();
+		write(number + " 0 obj");
+		output.writeEOL();
+		writeDirect(object);
+		output.writeEOL();
+		if (object instanceof COSStream) {
+			COSStream stream = (COSStream) object;
+			output.write(COSWriter.STREAM);
+			output.writeCRLF();
+			try (InputStream in = stream.createRawInputStream()) {
+				IOUtils.copy(in, output);
+			}
+			output.writeCRLF();
+			output.write(COSWriter.ENDSTREAM);
+			output.writeEOL();
+			stream.close();
+		}
+		output.write(COSWriter.ENDOBJ);
+		output.writeEOL();
+	}
+
+	/**
+	 * Adds a dictionary to the object stream being filled, starting one if there is none.
+	 */
+	private void writeCompressed(long number, COSBase object) throws IOException {
+		if (objectStreamData == null) {
+			objectStreamNumber = nextNumber();
+			objectStreamData = new ByteArrayOutputStream();
+			objectStreamIndex = new StringBuilder();
+		}
+		objectStreamIndex.append(number).append(' ').append(objectStreamData.size()).append(' ');
+		containers[(int) number] = objectStreamNumber;
+		offsets[(int) number] = objectStreamCount++;
+		output = new COSStandardOutputStream(objectStreamData);
+		try {
+			writeDirect(object);
+			output.writeEOL();
+			output.flush();
+		} finally {
+			output = file;
+		}
+		if (objectStreamCount == OBJECTS_PER_STREAM) {
+			flushObjectStream();
+		}
+	}
+
+	private void writeValue(COSBase value) throws IOException {
+		value = dereference(value);
+		if (value instanceof COSStream || (value instanceof COSDictionary && !value.isDirect())) {
+			Long number = reserved.get(value);
+			if (number == null) {
+				number = numbers.get(value);
+			}
+			if (number == null) {
+				number = enqueue(value);
+			}
+			write(number + " 0 R");
+		} else {
+			writeDirect(value);
+		}
+	}
+
+	private void writeDirect(COSBase value) throws IOException {
+		if (value == null || value instanceof COSNull) {
+			write("null");
+		} else if (value instanceof COSDictionary) {
+			output.write(COSWriter.DICT_OPEN);
+			for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) value).entrySet()) {
+				if (entry.getValue() == null) {
+					continue;
+				}
+				entry.getKey().writePDF(output);
+				output.write(' ');
+				writeValue(entry.getValue());
+				output.writeEOL();
+			}
+			output.write(COSWriter.DICT_CLOSE);
+		} else if (value instanceof COSArray) {
+			output.write(COSWriter.ARRAY_OPEN);
+			boolean first = true;
+			for (COSBase item : (COSArray) value) {
+				if (!first) {
+					output.write(' ');
+				}
+				writeValue(item);
+				first = false;
+			}
+			output.write(COSWriter.ARRAY_CLOSE);
+		} else if (value instanceof COSString) {
+			COSWriter.writeString((COSString) value, output);
+		} else if (value instanceof COSName) {
+			((COSName) value).writePDF(output);
+		} else if (value instanceof COSInteger) {
+			((COSInteger) value).writePDF(output);
+		} else if (value instanceof COSFloat) {
+			((COSFloat) value).writePDF(output);
+		} else if (value instanceof COSBoolean) {
+			((COSBoolean) value).writePDF(output);
+		} else {
+			throw new IOException("Cannot write PDF object of type " + value.getClass().getName());
+		}
+	}
+
+	private static COSBase dereference(COSBase value) {
+		while (value instanceof COSObject) {
+			value = ((COSObject) value).getObject();
+		}
+		return value;
+	}
+
+	private void writeString(byte[] bytes) throws IOException {
+		COSString string = new COSString(bytes);
+		string.setForceHexForm(true);
+		COSWriter.writeString(string, output);
+	}
+
+	private byte[] createId(long length) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.US_ASCII));
+			md5.update(Long.toString(System.nanoTime()).getBytes(StandardCharsets.US_ASCII));
+			md5.update(Long.toString(length).getBytes(StandardCharsets.US_ASCII));
+			return md5.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void write(String text) throws IOException {
+		output.write(text.getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,230 @@
+package edu.yale.library.jpegs2pdf.processor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonWriter;
+
+/**
+ * Generates many PDFs in one JVM.  Each job is a JSON file and the PDF to create from it.
+ * Jobs run concurrently and a failed job does not stop the others.
+ */
+public class BatchPdfProcessor {
+
+	private final Supplier<JpegPdfConcat> jpegPdfConcatFactory;
+	private int concurrency = 1;
+
+	public BatchPdfProcessor(Supplier<JpegPdfConcat> jpegPdfConcatFactory) {
+		this.jpegPdfConcatFactory = jpegPdfConcatFactory;
+	}
+
+	/**
+	 * Number of documents generated at the same time.
+	 * @param concurrency
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Reads the jobs from either a directory of JSON files, each written to a PDF with the same name in the
+	 * output directory, or from a list file with one job per line: the JSON file and the PDF file separated by
+	 * a tab (or by whitespace if there is no tab).  Blank lines and lines starting with # are ignored.
+	 * @param source directory or list file
+	 * @param outputDirectory where PDFs go for a directory of JSON files; defaults to the source directory
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Job> readJobs(File source, File outputDirectory) throws IOException {
+		List<Job> jobs = new ArrayList<>();
+		if (source.isDirectory()) {
+			File[] jsonFiles = source.listFiles((dir, name) -> name.toLowerCase().endsWith(".json"));
+			if (jsonFiles == null) {
+				throw new IOException("Unable to list " + source);
+			}
+			Arrays.sort(jsonFiles);
+			File pdfDirectory = outputDirectory != null ? outputDirectory : source;
+			for (File jsonFile : jsonFiles) {
+				String name = jsonFile.getName();
+				jobs.add(new Job(jsonFile, new File(pdfDirectory, name.substring(0, name.length() - 5) + ".pdf")));
+			}
+		} else {
+			try (BufferedReader reader = new BufferedReader(new FileReader(source))) {
+				String line;
+				int lineNumber = 0;
+				while ((line = reader.readLine()) != null) {
+					lineNumber++;
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) continue;
+					String[] parts = line.contains("\t") ? line.split("\t+") : line.split("\\s+");
+					if (parts.length != 2) {
+						throw new IOException("Expected a JSON file and a PDF file on line " + lineNumber + " of " + source);
+					}
+					File pdfFile = new File(parts[1].trim());
+					if (outputDirectory != null && !pdfFile.isAbsolute()) {
+						pdfFile = new File(outputDirectory, pdfFile.getPath());
+					}
+					jobs.add(new Job(new File(parts[0].trim()), pdfFile));
+				}
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Runs the jobs and returns one result per job, in the same order as the jobs.
+	 * @param jobs
+	 * @return
+	 * @throws IOException if interrupted
+	 */
+	public List<JobResult> process(List<Job> jobs) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		try {
+			List<Future<JobResult>> futures = new ArrayList<>();
+			for (Job job : jobs) {
+				futures.add(executor.submit(() -> processJob(job)));
+			}
+			List<JobResult> results = new ArrayList<>();
+			for (Future<JobResult> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for batch jobs", e);
+				} catch (ExecutionException e) {
+					throw new IOException("Unexpected batch failure", e.getCause());
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private JobResult processJob(Job job) {
+		long start = System.currentTimeMillis();
+		try {
+			File parent = job.getPdfFile().getAbsoluteFile().getParentFile();
+			if (parent != null) {
+				parent.mkdirs();
+			}
+			JsonManifestReader manifestReader = new JsonManifestReader(JsonManifestReader.fromFile(job.getJsonFile()));
+			new JsonToPdfProcessorImpl(manifestReader, jpegPdfConcatFactory.get()).generatePdf(job.getPdfFile().getPath());
+			return new JobResult(job, null, System.currentTimeMillis() - start);
+		} catch (Exception | Error e) {
+			System.err.println("Failed: " + job.getJsonFile());
+			e.printStackTrace();
+			return new JobResult(job, e, System.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Writes a JSON summary of the results.
+	 * @param results
+	 * @param writer
+	 */
+	public static void writeSummary(List<JobResult> results, Writer writer) {
+		JsonArrayBuilder jobsBuilder = Json.createArrayBuilder();
+		int failed = 0;
+		for (JobResult result : results) {
+			JsonObjectBuilder jobBuilder = Json.createObjectBuilder()
+					.add("json", result.getJob().getJsonFile().getPath())
+					.add("pdf", result.getJob().getPdfFile().getPath())
+					.add("status", result.isSuccessful() ? "success" : "failure")
+					.add("millis", result.getMillis());
+			if (!result.isSuccessful()) {
+				failed++;
+				jobBuilder.add("error", String.valueOf(result.getError()));
+			}
+			jobsBuilder.add(jobBuilder);
+		}
+		JsonWriter jsonWriter = Json.createWriter(writer);
+		jsonWriter.writeObject(Json.createObjectBuilder()
+				.add("total", results.size())
+				.add("succeeded", results.size() - failed)
+				.add("failed", failed)
+				.add("jobs", jobsBuilder)
+				.build());
+		jsonWriter.close();
+	}
+
+	public static void writeSummary(List<JobResult> results, File summaryFile) throws IOException {
+		try (Writer writer = new FileWriter(summaryFile)) {
+			writeSummary(results, writer);
+		}
+	}
+
+	public static class Job {
+		private final File jsonFile;
+		private final File pdfFile;
+
+		public Job(File jsonFile, File pdfFile) {
+			this.jsonFile = jsonFile;
+			this.pdfFile = pdfFile;
+		}
+
+		public File getJsonFile() {
+			return jsonFile;
+		}
+
+		public File getPdfFile() {
+			return pdfFile;
+		}
+	}
+
+	public static class JobResult {
+		private final Job job;
+		private final Throwable error;
+		private final long millis;
+
+		JobResult(Job job, Throwable error, long millis) {
+			this.job = job;
+			this.error = error;
+			this.millis = millis;
+		}
+
+		public Job getJob() {
+			return job;
+		}
+
+		public Throwable getError() {
+			return error;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public boolean isSuccessful() {
+			return error == null;
+		}
+	}
+
+	public static List<JobResult> failures(List<JobResult> results) {
+		List<JobResult> failures = new ArrayList<>();
+		for (JobResult result : results) {
+			if (!result.isSuccessful()) failures.add(result);
+		}
+		return Collections.unmodifiableList(failures);
+	}
+}
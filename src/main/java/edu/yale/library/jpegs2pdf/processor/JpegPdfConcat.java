@@ -2,6 +2,8 @@ package edu.yale.library.jpegs2pdf.processor;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -10,5 +12,14 @@ import edu.yale.library.jpegs2pdf.model.Property;
 
 public interface JpegPdfConcat {
 	void generatePdf(String header, String documentTitle,  List<Property> documentProperties, List<Property>  documentAddressLines, List<JpegPdfPage> jpegPdfPages, File destinationFile, String imageProcessingCommand) throws IOException;
-		
+
+	/**
+	 * Generates the PDF from pages that are read as they are needed.  Implementations that can add pages while the
+	 * manifest is still being read override this; by default the pages are collected first.
+	 */
+	default void generatePdf(String header, String documentTitle,  List<Property> documentProperties, List<Property>  documentAddressLines, Iterator<JpegPdfPage> jpegPdfPages, File destinationFile, String imageProcessingCommand) throws IOException {
+		List<JpegPdfPage> pages = new ArrayList<>();
+		jpegPdfPages.forEachRemaining(pages::add);
+		generatePdf(header, documentTitle, documentProperties, documentAddressLines, pages, destinationFile, imageProcessingCommand);
+	}
 }
@@ -0,0 +1,252 @@
+package edu.yale.library.jpegs2pdf.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+/**
+ * Reads a manifest with a streaming parser, so only one page entry is held in memory at a time.
+ * <p>
+ * The document fields are read first, in a pass that skips over the pages array, because they may come after the
+ * pages in the JSON and the cover page needs them.  The pages are then parsed one at a time as they are iterated.
+ */
+public class JsonManifestReader implements Closeable {
+
+	/**
+	 * Opens the manifest; called once for each pass.
+	 */
+	public interface Source {
+		InputStream open() throws IOException;
+	}
+
+	private final Source source;
+	private JsonObject document;
+	private JsonParser pageParser;
+
+	public JsonManifestReader(Source source) {
+		this.source = source;
+	}
+
+	public static Source fromFile(File file) {
+		return () -> new FileInputStream(file);
+	}
+
+	public static Source fromBytes(byte[] json) {
+		return () -> new ByteArrayInputStream(json);
+	}
+
+	/**
+	 * @return the top level fields of the manifest, without the pages
+	 * @throws IOException
+	 */
+	public JsonObject getDocument() throws IOException {
+		if (document == null) {
+			try (InputStream in = source.open(); JsonParser parser = Json.createParser(in)) {
+				expect(parser, Event.START_OBJECT);
+				JsonObjectBuilder builder = Json.createObjectBuilder();
+				Event event;
+				while ((event = parser.next()) == Event.KEY_NAME) {
+					String name = parser.getString();
+					if (name.equals("pages")) {
+						skipValue(parser, parser.next());
+					} else {
+						addValue(parser, parser.next(), builder, name);
+					}
+				}
+				if (event != Event.END_OBJECT) {
+					throw new JsonException("Unexpected " + event + " in manifest");
+				}
+				document = builder.build();
+			}
+		}
+		return document;
+	}
+
+	/**
+	 * Starts the pass over the pages.  The parser is closed when the last page has been read, or by closing this
+	 * reader.
+	 * @return the page entries, parsed as they are iterated
+	 * @throws IOException
+	 */
+	public Iterator<JsonObject> pages() throws IOException {
+		close();
+		pageParser = Json.createParser(source.open());
+		JsonParser parser = pageParser;
+		expect(parser, Event.START_OBJECT);
+		Event event;
+		boolean found = false;
+		while (!found && (event = parser.next()) == Event.KEY_NAME) {
+			if (parser.getString().equals("pages")) {
+				expect(parser, Event.START_ARRAY);
+				found = true;
+			} else {
+				skipValue(parser, parser.next());
+			}
+		}
+		if (!found) {
+			close();
+		}
+		boolean hasPages = found;
+		return new Iterator<JsonObject>() {
+			private JsonObject next;
+			private boolean done = !hasPages;
+
+			@Override
+			public boolean hasNext() {
+				if (next == null && !done) {
+					Event event = parser.next();
+					if (event == Event.END_ARRAY) {
+						done = true;
+						close();
+					} else if (event == Event.START_OBJECT) {
+						next = readObject(parser);
+					} else {
+						throw new JsonException("Page is not an object: " + event);
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public JsonObject next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				JsonObject page = next;
+				next = null;
+				return page;
+			}
+		};
+	}
+
+	@Override
+	public void close() {
+		if (pageParser != null) {
+			pageParser.close();
+			pageParser = null;
+		}
+	}
+
+	private static void expect(JsonParser parser, Event expected) {
+		Event event = parser.hasNext() ? parser.next() : null;
+		if (event != expected) {
+			throw new JsonException("Expected " + expected + " in manifest but found " + event);
+		}
+	}
+
+	/**
+	 * Reads the rest of an object whose START_OBJECT has been read.
+	 */
+	private static JsonObject readObject(JsonParser parser) {
+		JsonObjectBuilder builder = Json.createObjectBuilder();
+		Event event;
+		while ((event = parser.next()) == Event.KEY_NAME) {
+			String name = parser.getString();
+			addValue(parser, parser.next(), builder, name);
+		}
+		if (event != Event.END_OBJECT) {
+			throw new JsonException("Unexpected " + event + " in manifest");
+		}
+		return builder.build();
+	}
+
+	private static void addValue(JsonParser parser, Event event, JsonObjectBuilder builder, String name) {
+		switch (event) {
+		case START_OBJECT:
+			builder.add(name, readObject(parser));
+			break;
+		case START_ARRAY:
+			builder.add(name, readArray(parser));
+			break;
+		case VALUE_STRING:
+			builder.add(name, parser.getString());
+			break;
+		case VALUE_NUMBER:
+			if (parser.isIntegralNumber()) {
+				builder.add(name, parser.getLong());
+			} else {
+				builder.add(name, parser.getBigDecimal());
+			}
+			break;
+		case VALUE_TRUE:
+			builder.add(name, true);
+			break;
+		case VALUE_FALSE:
+			builder.add(name, false);
+			break;
+		case VALUE_NULL:
+			builder.addNull(name);
+			break;
+		default:
+			throw new JsonException("Unexpected " + event + " in manifest");
+		}
+	}
+
+	private static JsonArrayBuilder readArray(JsonParser parser) {
+		JsonArrayBuilder builder = Json.createArrayBuilder();
+		Event event;
+		while ((event = parser.next()) != Event.END_ARRAY) {
+			switch (event) {
+			case START_OBJECT:
+				builder.add(readObject(parser));
+				break;
+			case START_ARRAY:
+				builder.add(readArray(parser));
+				break;
+			case VALUE_STRING:
+				builder.add(parser.getString());
+				break;
+			case VALUE_NUMBER:
+				if (parser.isIntegralNumber()) {
+					builder.add(parser.getLong());
+				} else {
+					builder.add(parser.getBigDecimal());
+				}
+				break;
+			case VALUE_TRUE:
+				builder.add(true);
+				break;
+			case VALUE_FALSE:
+				builder.add(false);
+				break;
+			case VALUE_NULL:
+				builder.addNull();
+				break;
+			default:
+				throw new JsonException("Unexpected " + event + " in manifest");
+			}
+		}
+		return builder;
+	}
+
+	/**
+	 * Skips a value without building it.
+	 */
+	private static void skipValue(JsonParser parser, Event event) {
+		if (event != Event.START_OBJECT && event != Event.START_ARRAY) {
+			return;
+		}
+		int depth = 1;
+		while (depth > 0) {
+			event = parser.next();
+			if (event == Event.START_OBJECT || event == Event.START_ARRAY) {
+				depth++;
+			} else if (event == Event.END_OBJECT || event == Event.END_ARRAY) {
+				depth--;
+			}
+		}
+	}
+}
@@ -1,19 +1,25 @@
 package edu.yale.library.jpegs2pdf.processor;
 
+import edu.yale.library.jpegs2pdf.image.ImageTransform;
 import edu.yale.library.jpegs2pdf.model.JpegPdfPage;
 import edu.yale.library.jpegs2pdf.model.Property;
 
 import javax.json.JsonArray;
+import javax.json.JsonException;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
+import javax.json.JsonString;
 import javax.json.JsonValue;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 public class JsonToPdfProcessorImpl implements PdfProcessor {
 	private JsonReader jsonReader;
+	private JsonManifestReader manifestReader;
 	private JpegPdfConcat jpegPdfConcat;
 
 
@@ -22,55 +28,125 @@ public class JsonToPdfProcessorImpl implements PdfProcessor {
 		this.jpegPdfConcat = jpegPdfConcat;
 	}
 
+	/**
+	 * Reads the manifest with a streaming parser and hands the pages to the generator as they are parsed.
+	 * @param manifestReader
+	 * @param jpegPdfConcat
+	 */
+	public JsonToPdfProcessorImpl(JsonManifestReader manifestReader, JpegPdfConcat jpegPdfConcat) {
+		this.manifestReader = manifestReader;
+		this.jpegPdfConcat = jpegPdfConcat;
+	}
+
 
 
 	@Override
 	public void generatePdf( String destinationPdfFilepath) throws IOException {
+		if (manifestReader != null) {
+			generateStreamingPdf(destinationPdfFilepath);
+			return;
+		}
 
 		JsonObject document = jsonReader.readObject();
 		jsonReader.close();
 
 
 		JsonArray pages = document.getJsonArray("pages");
-		List<Property> documentProperties = null;
+		List<ImageTransform> imageTransforms = ImageTransform.fromJson(document.getJsonArray("imageTransforms"));
+		List<JpegPdfPage> jpegPdfPages = new ArrayList<JpegPdfPage>();
+		for (JsonValue pageValue : pages) {
+			jpegPdfPages.add(pageFromJson((JsonObject) pageValue, imageTransforms));
+		}
+		jpegPdfConcat.generatePdf(getHeader(document), getDocumentTitle(document), getDocumentProperties(document), getDocumentAddressLines(document),
+				jpegPdfPages, new File(destinationPdfFilepath), getImageProcessingCommand(document));
+	}
+
+	private void generateStreamingPdf(String destinationPdfFilepath) throws IOException {
+		try {
+			JsonObject document = manifestReader.getDocument();
+			List<ImageTransform> imageTransforms = ImageTransform.fromJson(document.getJsonArray("imageTransforms"));
+			Iterator<JsonObject> pages = manifestReader.pages();
+			Iterator<JpegPdfPage> jpegPdfPages = new Iterator<JpegPdfPage>() {
+				@Override
+				public boolean hasNext() {
+					return pages.hasNext();
+				}
+
+				@Override
+				public JpegPdfPage next() {
+					try {
+						return pageFromJson(pages.next(), imageTransforms);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			};
+			jpegPdfConcat.generatePdf(getHeader(document), getDocumentTitle(document), getDocumentProperties(document), getDocumentAddressLines(document),
+					jpegPdfPages, new File(destinationPdfFilepath), getImageProcessingCommand(document));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			manifestReader.close();
+		}
+	}
+
+	private static JpegPdfPage pageFromJson(JsonObject page, List<ImageTransform> imageTransforms) throws IOException {
+		List<Property> pageProperties = propertyListFromJsonArray(page.getJsonArray("properties"));
+		String filename = requiredString(page, "file");
+		// download files if necessary
+		JpegPdfPage jpegPdfPage = new JpegPdfPage();
+		jpegPdfPage.setJpegSource(filename);
+		jpegPdfPage.setCaption(requiredString(page, "caption"));
+		jpegPdfPage.setProperties(pageProperties);
+		jpegPdfPage.setImageTransforms(page.containsKey("imageTransforms") ? ImageTransform.fromJson(page.getJsonArray("imageTransforms")) : imageTransforms);
+		return jpegPdfPage;
+	}
 
+	private static List<Property> getDocumentProperties(JsonObject document) throws IOException {
 		if ( document.containsKey("properties") ) {
-			JsonArray properties = document.getJsonArray("properties");
-			documentProperties = propertyListFromJsonArray(properties);
+			return propertyListFromJsonArray(document.getJsonArray("properties"));
 		}
+		return null;
+	}
 
-		List<Property> documentAddressLines = null;
+	private static List<Property> getDocumentAddressLines(JsonObject document) throws IOException {
 		if ( document.containsKey("addressLines") ) {
-			JsonArray addressLines = document.getJsonArray("addressLines");
-			documentAddressLines = propertyListFromJsonArray(addressLines);
+			return propertyListFromJsonArray(document.getJsonArray("addressLines"));
 		}
+		return null;
+	}
 
-		String documentTitle = document.getString("title", "No Title");
-		String header = document.getString("header", "Yale University Library Digital Collections");
-		String imageProcessingComment = document.getString("imageProcessingCommand", null);
+	private static String getDocumentTitle(JsonObject document) {
+		return document.getString("title", "No Title");
+	}
 
-		List<JpegPdfPage> jpegPdfPages = new ArrayList<JpegPdfPage>();
-		for (JsonValue pageValue : pages) {
-			JsonObject page = (JsonObject) pageValue;
-			List<Property> pageProperties = propertyListFromJsonArray(page.getJsonArray("properties"));
-			String filename = page.getString("file");
-			// download files if necessary
-			JpegPdfPage jpegPdfPage = new JpegPdfPage();
-			jpegPdfPage.setJpegSource(filename);
-			jpegPdfPage.setCaption(page.getString("caption"));
-			jpegPdfPage.setProperties(pageProperties);
-			jpegPdfPages.add(jpegPdfPage);
-		}
-		jpegPdfConcat.generatePdf(header, documentTitle, documentProperties, documentAddressLines, jpegPdfPages, new File(destinationPdfFilepath), imageProcessingComment);
+	private static String getHeader(JsonObject document) {
+		return document.getString("header", "Yale University Library Digital Collections");
+	}
+
+	private static String getImageProcessingCommand(JsonObject document) {
+		return document.getString("imageProcessingCommand", null);
 	}
 
 
+	/**
+	 * @throws JsonException if the field is missing or isn't a string, rather than the NullPointerException or
+	 *         ClassCastException JsonObject.getString throws
+	 */
+	private static String requiredString(JsonObject object, String name) {
+		JsonValue value = object.get(name);
+		if (!(value instanceof JsonString)) {
+			throw new JsonException("Expected a string for \"" + name + "\" in manifest");
+		}
+		return ((JsonString) value).getString();
+	}
+
 	private static List<Property> propertyListFromJsonArray(JsonArray properties) throws IOException {
 		List<Property> ret = new ArrayList<Property>();
 		if (properties != null) {
 			for (JsonValue propertyValue : properties) {
 				JsonObject property = (JsonObject) propertyValue;
-				ret.add(new Property(property.getString("name"), property.getString("value","")));
+				ret.add(new Property(requiredString(property, "name"), property.getString("value","")));
 			}
 		}
 		return ret;
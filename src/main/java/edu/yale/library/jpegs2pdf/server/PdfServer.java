@@ -0,0 +1,423 @@
+package edu.yale.library.jpegs2pdf.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonWriter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.yale.library.jpegs2pdf.model.JpegPdfPage;
+import edu.yale.library.jpegs2pdf.processor.JpegPdfConcat;
+import edu.yale.library.jpegs2pdf.processor.JsonManifestReader;
+import edu.yale.library.jpegs2pdf.processor.JsonToPdfProcessorImpl;
+
+/**
+ * Long running HTTP service for PDF generation, so callers don't pay JVM start up for every PDF.
+ * <ul>
+ * <li>POST /pdf with the same JSON the command line takes.  Responds with the PDF, or, with a ?target=path
+ * query parameter, writes the PDF to that path and responds with a JSON status.  Targets are resolved against the
+ * output root and must stay inside it; without an output root they are refused.  Local image files must be inside
+ * the input root, and an imageProcessingCommand is refused unless commands are allowed, since either would let a
+ * caller read files or run programs on the server.</li>
+ * <li>GET /health responds with the job counts as JSON.</li>
+ * </ul>
+ * At most maxConcurrentJobs PDFs are generated at a time and at most queueCapacity more wait for their turn.
+ * Requests beyond that get a 429 response right away, before their body is read, and bodies larger than
+ * maxRequestBytes get a 413.  Requests are handled by a fixed pool with a thread for every job that can be running
+ * or queued and a few more for /health, so neither threads nor buffered bodies grow with a burst of requests.
+ */
+public class PdfServer {
+
+	private static final int HEALTH_THREADS = 2;
+
+	private final Supplier<JpegPdfConcat> jpegPdfConcatFactory;
+	private final int maxConcurrentJobs;
+	private final int queueCapacity;
+	private final HttpServer httpServer;
+	private final ThreadPoolExecutor jobExecutor;
+	private final ExecutorService requestExecutor;
+	private final long startTime = System.currentTimeMillis();
+	private Path outputRoot;
+	private Path inputRoot;
+	private boolean allowImageProcessingCommands;
+	private long maxRequestBytes = 16 * 1024 * 1024;
+
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public PdfServer(InetSocketAddress address, Supplier<JpegPdfConcat> jpegPdfConcatFactory, int maxConcurrentJobs, int queueCapacity) throws IOException {
+		this.jpegPdfConcatFactory = jpegPdfConcatFactory;
+		this.maxConcurrentJobs = Math.max(1, maxConcurrentJobs);
+		this.queueCapacity = Math.max(0, queueCapacity);
+		BlockingQueue<Runnable> queue = this.queueCapacity > 0 ? new ArrayBlockingQueue<>(this.queueCapacity) : new SynchronousQueue<>();
+		this.jobExecutor = new ThreadPoolExecutor(this.maxConcurrentJobs, this.maxConcurrentJobs, 0, TimeUnit.MILLISECONDS, queue);
+		this.requestExecutor = Executors.newFixedThreadPool(this.maxConcurrentJobs + this.queueCapacity + HEALTH_THREADS);
+		this.httpServer = HttpServer.create(address, 0);
+		this.httpServer.setExecutor(requestExecutor);
+		this.httpServer.createContext("/pdf", this::handlePdf);
+		this.httpServer.createContext("/health", this::handleHealth);
+	}
+
+	/**
+	 * @param outputRoot directory ?target= paths are resolved against and confined to, or null to refuse targets
+	 * @throws IOException if the directory doesn't exist
+	 */
+	public void setOutputRoot(File outputRoot) throws IOException {
+		this.outputRoot = outputRoot != null ? outputRoot.toPath().toRealPath() : null;
+	}
+
+	public File getOutputRoot() {
+		return outputRoot != null ? outputRoot.toFile() : null;
+	}
+
+	/**
+	 * @param inputRoot directory local page images must be inside, or null to refuse local images
+	 * @throws IOException if the directory doesn't exist
+	 */
+	public void setInputRoot(File inputRoot) throws IOException {
+		this.inputRoot = inputRoot != null ? inputRoot.toPath().toRealPath() : null;
+	}
+
+	public File getInputRoot() {
+		return inputRoot != null ? inputRoot.toFile() : null;
+	}
+
+	/**
+	 * @param allowImageProcessingCommands whether manifests may give an imageProcessingCommand to run on the server
+	 */
+	public void setAllowImageProcessingCommands(boolean allowImageProcessingCommands) {
+		this.allowImageProcessingCommands = allowImageProcessingCommands;
+	}
+
+	public boolean isAllowImageProcessingCommands() {
+		return allowImageProcessingCommands;
+	}
+
+	/**
+	 * @param maxRequestBytes largest manifest JSON accepted
+	 */
+	public void setMaxRequestBytes(long maxRequestBytes) {
+		this.maxRequestBytes = maxRequestBytes;
+	}
+
+	public long getMaxRequestBytes() {
+		return maxRequestBytes;
+	}
+
+	public void start() {
+		httpServer.start();
+	}
+
+	public void stop() {
+		httpServer.stop(0);
+		jobExecutor.shutdownNow();
+		requestExecutor.shutdownNow();
+	}
+
+	public int getPort() {
+		return httpServer.getAddress().getPort();
+	}
+
+	public JsonObject getStats() {
+		return Json.createObjectBuilder()
+				.add("status", "ok")
+				.add("active", jobExecutor.getActiveCount())
+				.add("queued", jobExecutor.getQueue().size())
+				.add("maxConcurrentJobs", maxConcurrentJobs)
+				.add("queueCapacity", queueCapacity)
+				.add("completed", completed.get())
+				.add("failed", failed.get())
+				.add("rejected", rejected.get())
+				.add("uptimeMillis", System.currentTimeMillis() - startTime)
+				.build();
+	}
+
+	private void handleHealth(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				sendJson(exchange, 405, error("Use GET"));
+				return;
+			}
+			sendJson(exchange, 200, getStats());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handlePdf(HttpExchange exchange) throws IOException {
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendJson(exchange, 405, error("Use POST"));
+				return;
+			}
+			if (jobExecutor.getActiveCount() + jobExecutor.getQueue().size() >= maxConcurrentJobs + queueCapacity) {
+				reject(exchange);
+				return;
+			}
+			String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+			if (contentLength != null && parseLength(contentLength) > maxRequestBytes) {
+				sendJson(exchange, 413, error("Request body is larger than " + maxRequestBytes + " bytes"));
+				return;
+			}
+			byte[] json = readFully(exchange, maxRequestBytes);
+			if (json == null) {
+				sendJson(exchange, 413, error("Request body is larger than " + maxRequestBytes + " bytes"));
+				return;
+			}
+			String target = queryParameters(exchange.getRequestURI()).get("target");
+			File destinationFile;
+			if (target != null) {
+				destinationFile = resolveTarget(target);
+				if (destinationFile == null) {
+					sendJson(exchange, 403, error(outputRoot == null ? "?target= is not allowed without an output root"
+							: "Target is outside the output root: " + target));
+					return;
+				}
+			} else {
+				destinationFile = File.createTempFile("pdfServer", ".pdf");
+			}
+			try {
+				generate(exchange, json, destinationFile, target != null);
+			} finally {
+				if (target == null) {
+					destinationFile.delete();
+				}
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void generate(HttpExchange exchange, byte[] json, File destinationFile, boolean respondWithStatus) throws IOException {
+		long start = System.currentTimeMillis();
+		Future<?> job;
+		try {
+			job = jobExecutor.submit(() -> {
+				JsonManifestReader manifestReader = new JsonManifestReader(JsonManifestReader.fromBytes(json));
+				checkManifest(manifestReader);
+				new JsonToPdfProcessorImpl(manifestReader, jpegPdfConcatFactory.get()).generatePdf(destinationFile.getPath());
+				return null;
+			});
+		} catch (RejectedExecutionException e) {
+			reject(exchange);
+			return;
+		}
+		try {
+			job.get();
+			completed.incrementAndGet();
+		} catch (ExecutionException e) {
+			failed.incrementAndGet();
+			// messages may name files, commands and their output, so only the log gets them
+			Throwable manifestError = findManifestError(e.getCause());
+			if (e.getCause() instanceof ForbiddenException) {
+				sendJson(exchange, 403, error(e.getCause().getMessage()));
+			} else if (manifestError != null) {
+				sendJson(exchange, 400, error(manifestError instanceof JsonException ? "Invalid manifest: " + manifestError.getMessage() : "Invalid manifest"));
+			} else {
+				System.err.println("PDF generation failed");
+				e.getCause().printStackTrace();
+				sendJson(exchange, 500, error("PDF generation failed"));
+			}
+			return;
+		} catch (InterruptedException e) {
+			job.cancel(true);
+			Thread.currentThread().interrupt();
+			sendJson(exchange, 503, error("Interrupted"));
+			return;
+		}
+		if (respondWithStatus) {
+			sendJson(exchange, 200, Json.createObjectBuilder()
+					.add("status", "success")
+					.add("pdf", destinationFile.getPath())
+					.add("bytes", destinationFile.length())
+					.add("millis", System.currentTimeMillis() - start)
+					.build());
+		} else {
+			exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+			exchange.sendResponseHeaders(200, destinationFile.length());
+			try (OutputStream out = exchange.getResponseBody()) {
+				Files.copy(destinationFile.toPath(), out);
+			}
+		}
+	}
+
+	/**
+	 * @return the target inside the output root, or null if there is no output root or the target, or a link in its
+	 *         directory or at the target itself, leads outside it
+	 */
+	private File resolveTarget(String target) throws IOException {
+		if (outputRoot == null) {
+			return null;
+		}
+		Path path = outputRoot.resolve(target).normalize();
+		if (!path.startsWith(outputRoot) || path.equals(outputRoot)) {
+			return null;
+		}
+		Path parent = path.getParent();
+		if (Files.exists(parent) && !parent.toRealPath().startsWith(outputRoot)) {
+			return null;
+		}
+		// the PDF is written through an existing file, so a link there must stay inside the root too
+		if (Files.isSymbolicLink(path) && (!Files.exists(path) || !path.toRealPath().startsWith(outputRoot))) {
+			return null;
+		}
+		return path.toFile();
+	}
+
+	/**
+	 * Refuses a manifest with an imageProcessingCommand, unless they are allowed, or with a local image outside the
+	 * input root.  Read in a pass of its own before the PDF is started.
+	 * @throws ForbiddenException
+	 */
+	private void checkManifest(JsonManifestReader manifestReader) throws IOException {
+		if (!allowImageProcessingCommands && manifestReader.getDocument().getString("imageProcessingCommand", null) != null) {
+			throw new ForbiddenException("imageProcessingCommand is not allowed");
+		}
+		Iterator<JsonObject> pages = manifestReader.pages();
+		while (pages.hasNext()) {
+			String source = pages.next().getString("file", null);
+			if (source == null) {
+				continue; // reported when the page is read for the PDF
+			}
+			JpegPdfPage page = new JpegPdfPage();
+			page.setJpegSource(source);
+			File localFile = page.getLocalFile();
+			if (localFile != null && !isInsideInputRoot(localFile.toPath())) {
+				throw new ForbiddenException(inputRoot == null ? "Local image files are not allowed without an input root"
+						: "Image file is outside the input root");
+			}
+		}
+	}
+
+	/**
+	 * @return whether the file, and the file a link there leads to, is inside the input root
+	 */
+	private boolean isInsideInputRoot(Path file) throws IOException {
+		if (inputRoot == null) {
+			return false;
+		}
+		Path path = file.toAbsolutePath().normalize();
+		if (Files.exists(path)) {
+			path = path.toRealPath();
+		}
+		return path.startsWith(inputRoot);
+	}
+
+	/**
+	 * @return the JsonException or ClassCastException that caused the failure, if the manifest was at fault
+	 */
+	private static Throwable findManifestError(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof JsonException || cause instanceof ClassCastException) {
+				return cause;
+			}
+		}
+		return null;
+	}
+
+	private void reject(HttpExchange exchange) throws IOException {
+		rejected.incrementAndGet();
+		exchange.getResponseHeaders().set("Retry-After", "1");
+		sendJson(exchange, 429, error("Too many PDF jobs, try again later"));
+	}
+
+	private static long parseLength(String contentLength) {
+		try {
+			return Long.parseLong(contentLength.trim());
+		} catch (NumberFormatException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * @return the body, or null if it is longer than maxBytes, for requests sent without a Content-Length
+	 */
+	private static byte[] readFully(HttpExchange exchange, long maxBytes) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			if (out.size() + (long) count > maxBytes) {
+				return null;
+			}
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	private static Map<String, String> queryParameters(URI uri) throws IOException {
+		Map<String, String> parameters = new HashMap<>();
+		String query = uri.getRawQuery();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				int ix = pair.indexOf('=');
+				if (ix > 0) {
+					parameters.put(URLDecoder.decode(pair.substring(0, ix), "UTF-8"), URLDecoder.decode(pair.substring(ix + 1), "UTF-8"));
+				}
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * The manifest asks for something the server doesn't allow.
+	 */
+	private static class ForbiddenException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ForbiddenException(String message) {
+			super(message);
+		}
+	}
+
+	private static JsonObject error(String message) {
+		JsonObjectBuilder builder = Json.createObjectBuilder().add("status", "error").add("error", message);
+		return builder.build();
+	}
+
+	private static void sendJson(HttpExchange exchange, int status, JsonObject body) throws IOException {
+		StringWriter stringWriter = new StringWriter();
+		JsonWriter jsonWriter = Json.createWriter(stringWriter);
+		jsonWriter.writeObject(body);
+		jsonWriter.close();
+		byte[] bytes = stringWriter.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
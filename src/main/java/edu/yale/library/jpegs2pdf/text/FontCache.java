@@ -0,0 +1,77 @@
+package edu.yale.library.jpegs2pdf.text;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.fontbox.ttf.TTFParser;
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+
+/**
+ * TrueType fonts from the classpath, parsed once per JVM and shared by every document.
+ * <p>
+ * TTFParser reads all the tables except the glyphs when it parses a font, and TrueTypeFont synchronizes reading
+ * glyphs and table bytes, so one parsed font can be embedded in several documents at the same time.  Fonts loaded
+ * into a document from a parsed TrueTypeFont are not closed with the document.
+ * <p>
+ * GlyphCoverage and GlyphWidths key what they learn about a font by its TrueTypeFont, so the coverage bitmap, probe
+ * results and advance widths of a font from here are built once per JVM and reused by every document, while the
+ * PDType0Font itself is still created per document.
+ */
+public class FontCache {
+
+	private static final Map<String, TrueTypeFont> fonts = new HashMap<>();
+	private static final Map<String, Float> capHeights = new HashMap<>();
+
+	private FontCache() {
+	}
+
+	/**
+	 * @param resource classpath resource of the font file
+	 * @return the parsed font, parsing it on first use
+	 * @throws IOException
+	 */
+	public static synchronized TrueTypeFont get(String resource) throws IOException {
+		TrueTypeFont font = fonts.get(resource);
+		if (font == null) {
+			try (InputStream in = FontCache.class.getResourceAsStream(resource)) {
+				if (in == null) {
+					throw new IOException("Font not found: " + resource);
+				}
+				font = new TTFParser().parse(in);
+			}
+			fonts.put(resource, font);
+		}
+		return font;
+	}
+
+	/**
+	 * @param document
+	 * @param resource
+	 * @return the font, embedded as a subset of the glyphs used in the document
+	 * @throws IOException
+	 */
+	public static PDType0Font load(PDDocument document, String resource) throws IOException {
+		return PDType0Font.load(document, get(resource), true);
+	}
+
+	/**
+	 * Cap height of the font as PDFont reports it, in glyph space units, without loading it into a document.
+	 * @param resource
+	 * @return
+	 * @throws IOException
+	 */
+	public static synchronized float getCapHeight(String resource) throws IOException {
+		Float capHeight = capHeights.get(resource);
+		if (capHeight == null) {
+			try (PDDocument document = new PDDocument()) {
+				capHeight = load(document, resource).getFontDescriptor().getCapHeight();
+			}
+			capHeights.put(resource, capHeight);
+		}
+		return capHeight;
+	}
+}
@@ -0,0 +1,172 @@
+package edu.yale.library.jpegs2pdf.text;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.fontbox.ttf.CmapLookup;
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.apache.pdfbox.pdmodel.font.PDCIDFont;
+import org.apache.pdfbox.pdmodel.font.PDCIDFontType2;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+
+/**
+ * Which code points a font can encode, so font selection doesn't have to call PDFont.encode and catch the
+ * exception for every snippet.  For TrueType based Type0 fonts the Basic Multilingual Plane is read from the
+ * font's unicode cmap into a bitmap, using the same rule as PDCIDFontType2.encode.  Other fonts, including TrueType
+ * fonts without a unicode cmap, are probed with encode once per code point and the answer is remembered.
+ * <p>
+ * What is learned about a TrueType based font is kept with its TrueTypeFont, so fonts loaded from FontCache share it
+ * across documents, and nothing kept refers to the PDFont, so a document's fonts are not held after it is closed.
+ */
+public class GlyphCoverage {
+
+	private static final int BMP_SIZE = 0x10000;
+
+	// the values must not refer to the keys, or the weak keys are never cleared
+	private static final Map<TrueTypeFont, Table> tablesByTrueTypeFont = Collections.synchronizedMap(new WeakHashMap<>());
+	private static final Map<PDFont, Table> tablesByFont = Collections.synchronizedMap(new WeakHashMap<>());
+
+	private final PDFont font;
+	private final Table table;
+
+	private GlyphCoverage(PDFont font, Table table) {
+		this.font = font;
+		this.table = table;
+	}
+
+	/**
+	 * Returns the coverage for the font, building it on first use of the font's TrueTypeFont, or of the font if it
+	 * isn't TrueType based.
+	 * @param font
+	 * @return
+	 * @throws IOException
+	 */
+	public static GlyphCoverage forFont(PDFont font) throws IOException {
+		TrueTypeFont trueTypeFont = getTrueTypeFont(font);
+		Table table;
+		if (trueTypeFont != null) {
+			synchronized (tablesByTrueTypeFont) {
+				table = tablesByTrueTypeFont.get(trueTypeFont);
+				if (table == null) {
+					table = new Table((PDType0Font) font);
+					tablesByTrueTypeFont.put(trueTypeFont, table);
+				}
+			}
+		} else {
+			synchronized (tablesByFont) {
+				table = tablesByFont.get(font);
+				if (table == null) {
+					table = new Table(null);
+					tablesByFont.put(font, table);
+				}
+			}
+		}
+		return new GlyphCoverage(font, table);
+	}
+
+	/**
+	 * @param font
+	 * @return the TrueTypeFont of a TrueType based Type0 font, which FontCache shares between documents, or null
+	 * @throws IOException
+	 */
+	static TrueTypeFont getTrueTypeFont(PDFont font) throws IOException {
+		if (font instanceof PDType0Font && ((PDType0Font) font).getDescendantFont() instanceof PDCIDFontType2) {
+			return ((PDCIDFontType2) ((PDType0Font) font).getDescendantFont()).getTrueTypeFont();
+		}
+		return null;
+	}
+
+	/**
+	 * @return fonts with coverage remembered, for tests
+	 */
+	static int getCachedFontCount() {
+		return tablesByTrueTypeFont.size() + tablesByFont.size();
+	}
+
+	public PDFont getFont() {
+		return font;
+	}
+
+	/**
+	 * Whether PDFont.encode would succeed for the code point.
+	 * @param codePoint
+	 * @return
+	 */
+	public boolean covers(int codePoint) {
+		return table.covers(font, codePoint);
+	}
+
+	/**
+	 * Whether PDFont.encode would succeed for the whole text.
+	 * @param text
+	 * @return
+	 */
+	public boolean coversAll(CharSequence text) {
+		int length = text.length();
+		for (int i = 0; i < length; ) {
+			int codePoint = Character.codePointAt(text, i);
+			if (!covers(codePoint)) {
+				return false;
+			}
+			i += Character.charCount(codePoint);
+		}
+		return true;
+	}
+
+	private static class Table {
+
+		private final CmapLookup cmap;
+		private final BitSet bmp;
+		private final BitSet probed;
+		private final BitSet probedCovered;
+
+		private Table(PDType0Font type0Font) throws IOException {
+			CmapLookup cmapLookup = null;
+			BitSet bitmap = null;
+			if (type0Font != null) {
+				PDCIDFontType2 cidFont = (PDCIDFontType2) type0Font.getDescendantFont();
+				boolean identity = type0Font.getCMap() != null && type0Font.getCMap().getName() != null
+						&& type0Font.getCMap().getName().startsWith("Identity-");
+				if (!cidFont.isEmbedded() || identity) {
+					cmapLookup = cidFont.getTrueTypeFont().getUnicodeCmapLookup(false);
+				}
+				if (cmapLookup != null) {
+					bitmap = new BitSet(BMP_SIZE);
+					for (int codePoint = 0; codePoint < BMP_SIZE; codePoint++) {
+						if (cmapLookup.getGlyphId(codePoint) != 0) {
+							bitmap.set(codePoint);
+						}
+					}
+				}
+			}
+			this.cmap = cmapLookup;
+			this.bmp = bitmap;
+			this.probed = bitmap == null ? new BitSet() : null;
+			this.probedCovered = bitmap == null ? new BitSet() : null;
+		}
+
+		private boolean covers(PDFont font, int codePoint) {
+			if (bmp != null) {
+				return codePoint < BMP_SIZE ? bmp.get(codePoint) : cmap.getGlyphId(codePoint) != 0;
+			}
+			return probe(font, codePoint);
+		}
+
+		private synchronized boolean probe(PDFont font, int codePoint) {
+			if (!probed.get(codePoint)) {
+				try {
+					font.encode(new String(Character.toChars(codePoint)));
+					probedCovered.set(codePoint);
+				} catch (Exception e) {
+					// can't encode
+				}
+				probed.set(codePoint);
+			}
+			return probedCovered.get(codePoint);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package edu.yale.library.jpegs2pdf.text;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+
+/**
+ * Caches the advance width of each code point in a font, in glyph space units (1/1000 of the font size),
+ * so laying out text doesn't encode and measure every word again.
+ * Widths are stored in blocks of 256 code points which are allocated when first used.  As with GlyphCoverage, the
+ * widths of a TrueType based font are kept with its TrueTypeFont, so they are shared by every document that loads it
+ * from FontCache, and nothing kept refers to the PDFont.
+ */
+public class GlyphWidths {
+
+	private static final int BLOCK_BITS = 8;
+	private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	private static final int BMP_BLOCKS = 0x10000 >> BLOCK_BITS;
+
+	// the blocks must not refer to the keys, or the weak keys are never cleared
+	private static final Map<Object, float[][]> blocksByFont = Collections.synchronizedMap(new WeakHashMap<>());
+
+	private final PDFont font;
+	// zero means not measured yet; zero width glyphs are just measured again, which is harmless
+	private final float[][] blocks;
+
+	private GlyphWidths(PDFont font, float[][] blocks) {
+		this.font = font;
+		this.blocks = blocks;
+	}
+
+	/**
+	 * Widths are in glyph space, so one cache serves every font size.
+	 * @param font
+	 * @return
+	 * @throws IOException
+	 */
+	public static GlyphWidths forFont(PDFont font) throws IOException {
+		TrueTypeFont trueTypeFont = GlyphCoverage.getTrueTypeFont(font);
+		Object key = trueTypeFont != null ? trueTypeFont : font;
+		float[][] blocks;
+		synchronized (blocksByFont) {
+			blocks = blocksByFont.get(key);
+			if (blocks == null) {
+				blocks = new float[BMP_BLOCKS][];
+				blocksByFont.put(key, blocks);
+			}
+		}
+		return new GlyphWidths(font, blocks);
+	}
+
+	/**
+	 * @return fonts with widths remembered, for tests
+	 */
+	static int getCachedFontCount() {
+		return blocksByFont.size();
+	}
+
+	/**
+	 * Width of a code point the font can encode.
+	 * @param codePoint
+	 * @return
+	 * @throws IOException
+	 */
+	public float getWidth(int codePoint) throws IOException {
+		if (codePoint >= 0x10000) {
+			return measure(codePoint);
+		}
+		float[] block = blocks[codePoint >> BLOCK_BITS];
+		if (block == null) {
+			block = new float[BLOCK_SIZE];
+			blocks[codePoint >> BLOCK_BITS] = block;
+		}
+		float width = block[codePoint & (BLOCK_SIZE - 1)];
+		if (width == 0) {
+			width = measure(codePoint);
+			block[codePoint & (BLOCK_SIZE - 1)] = width;
+		}
+		return width;
+	}
+
+	/**
+	 * Width of text the font can encode; the same as PDFont.getStringWidth.
+	 * @param text
+	 * @return
+	 * @throws IOException
+	 */
+	public float getStringWidth(CharSequence text) throws IOException {
+		float width = 0;
+		for (int i = 0; i < text.length(); ) {
+			int codePoint = Character.codePointAt(text, i);
+			width += getWidth(codePoint);
+			i += Character.charCount(codePoint);
+		}
+		return width;
+	}
+
+	private float measure(int codePoint) throws IOException {
+		return font.getStringWidth(new String(Character.toChars(codePoint)));
+	}
+}
@@ -0,0 +1,236 @@
+package edu.yale.library.jpegs2pdf.text;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+
+/**
+ * Lays out a paragraph in a single pass: the text is split at the possible wrap points, a font is picked for each
+ * piece, and pieces are placed on the current line if they fit, or start a new line if they don't.
+ * Consecutive pieces on a line using the same font are joined into one run, so drawing the paragraph needs one
+ * text operator per line and font.
+ */
+public class TextLayout {
+
+	public static final String UNRENDERABLE_CHARACTER = "□"; //U+25A1
+
+	private TextLayout() {
+	}
+
+	/**
+	 * Cleans up text for drawing: no-break spaces, new lines and tabs become spaces, and control characters and
+	 * the LTR embedding and RTL marks are removed.  Returns the same string when there is nothing to change.
+	 * @param text
+	 * @return
+	 */
+	public static String fixText(String text) {
+		StringBuilder sb = null;
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			char replacement = c;
+			boolean remove = false;
+			if (c == '\u00a0' || c == '\n' || c == '\r' || c == '\t') {
+				replacement = ' ';
+			} else if (Character.getType(c) == Character.CONTROL || c == '\u202A' || c == '\u200F') {
+				remove = true;
+			}
+			if (sb == null && (remove || replacement != c)) {
+				sb = new StringBuilder(length);
+				sb.append(text, 0, i);
+			}
+			if (sb != null && !remove) {
+				sb.append(replacement);
+			}
+		}
+		return sb == null ? text : sb.toString();
+	}
+
+	/**
+	 * Ends of the pieces the text can be wrapped between: after every character that isn't a letter, digit or
+	 * underscore, and at the end of the text.  Characters outside the Basic Multilingual Plane are kept whole.
+	 * @param text
+	 * @return
+	 */
+	public static int[] possibleWrapPoints(String text) {
+		int length = text.length();
+		int count = 1;
+		for (int i = 0; i < length; ) {
+			int codePoint = text.codePointAt(i);
+			i += Character.charCount(codePoint);
+			if (i < length && isWrapCharacter(codePoint)) count++;
+		}
+		int[] ret = new int[count];
+		int ix = 0;
+		for (int i = 0; i < length; ) {
+			int codePoint = text.codePointAt(i);
+			i += Character.charCount(codePoint);
+			if (i < length && isWrapCharacter(codePoint)) ret[ix++] = i;
+		}
+		ret[ix] = length;
+		return ret;
+	}
+
+	private static boolean isWrapCharacter(int c) {
+		return !((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_');
+	}
+
+	/**
+	 * Picks the first font that can render all of the text.  If none can, the first font is used and the characters
+	 * it can't render are replaced with UNRENDERABLE_CHARACTER.
+	 * @param text
+	 * @param fonts
+	 * @return
+	 * @throws IOException
+	 */
+	public static Run pickFont(String text, PDFont[] fonts) throws IOException {
+		for (PDFont font : fonts) {
+			if (GlyphCoverage.forFont(font).coversAll(text)) {
+				return new Run(font, text);
+			}
+		}
+		GlyphCoverage coverage = GlyphCoverage.forFont(fonts[0]);
+		StringBuilder sb = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); ) {
+			int codePoint = text.codePointAt(i);
+			if (coverage.covers(codePoint)) {
+				sb.appendCodePoint(codePoint);
+			} else {
+				sb.append(UNRENDERABLE_CHARACTER);
+			}
+			i += Character.charCount(codePoint);
+		}
+		return new Run(fonts[0], sb.toString());
+	}
+
+	/**
+	 * Wraps the text to the width.  A piece that is wider than the width by itself gets a line of its own.
+	 * @param text text already cleaned up with fixText
+	 * @param fonts fonts in order of preference
+	 * @param fontSize
+	 * @param width
+	 * @return
+	 * @throws IOException
+	 */
+	public static Paragraph layout(String text, PDFont[] fonts, float fontSize, float width) throws IOException {
+		List<Line> lines = new ArrayList<>();
+		Line line = new Line();
+		int start = 0;
+		for (int end : possibleWrapPoints(text)) {
+			if (end == start) continue;
+			Run piece = pickFont(text.substring(start, end), fonts);
+			GlyphWidths glyphWidths = GlyphWidths.forFont(piece.font);
+			float pieceWidth = glyphWidths.getStringWidth(piece.text) / 1000 * fontSize;
+			// trailing spaces may hang past the edge
+			float visibleWidth = pieceWidth - trailingSpaceWidth(piece.text, glyphWidths) / 1000 * fontSize;
+			if (!line.runs.isEmpty() && line.width + visibleWidth > width) {
+				lines.add(line);
+				line = new Line();
+			}
+			line.add(piece, pieceWidth);
+			start = end;
+		}
+		lines.add(line);
+		return new Paragraph(lines);
+	}
+
+	private static float trailingSpaceWidth(String text, GlyphWidths glyphWidths) throws IOException {
+		float width = 0;
+		for (int i = text.length() - 1; i >= 0 && text.charAt(i) == ' '; i--) {
+			width += glyphWidths.getWidth(' ');
+		}
+		return width;
+	}
+
+	/**
+	 * Draws the paragraph at the current text position, moving down by the leading for each new line.
+	 * The font is only set when it changes from one run to the next.
+	 * @param content
+	 * @param paragraph
+	 * @param fontSize
+	 * @param leading
+	 * @return the height added by wrapping, which is the leading times the number of lines after the first
+	 * @throws IOException
+	 */
+	public static float draw(PDPageContentStream content, Paragraph paragraph, float fontSize, float leading) throws IOException {
+		PDFont currentFont = null;
+		float height = 0;
+		boolean first = true;
+		for (Line line : paragraph.lines) {
+			if (!first) {
+				content.newLineAtOffset(0, -leading);
+				height += leading;
+			}
+			first = false;
+			for (Run run : line.runs) {
+				if (run.font != currentFont) {
+					content.setFont(run.font, fontSize);
+					currentFont = run.font;
+				}
+				content.showText(run.text);
+			}
+		}
+		return height;
+	}
+
+	public static class Paragraph {
+		private final List<Line> lines;
+
+		Paragraph(List<Line> lines) {
+			this.lines = lines;
+		}
+
+		public List<Line> getLines() {
+			return Collections.unmodifiableList(lines);
+		}
+
+		public int getLineCount() {
+			return lines.size();
+		}
+	}
+
+	public static class Line {
+		private final List<Run> runs = new ArrayList<>(2);
+		private float width;
+
+		private void add(Run piece, float pieceWidth) {
+			Run last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+			if (last != null && last.font == piece.font) {
+				runs.set(runs.size() - 1, new Run(last.font, last.text + piece.text));
+			} else {
+				runs.add(piece);
+			}
+			width += pieceWidth;
+		}
+
+		public List<Run> getRuns() {
+			return Collections.unmodifiableList(runs);
+		}
+
+		public float getWidth() {
+			return width;
+		}
+	}
+
+	public static class Run {
+		private final PDFont font;
+		private final String text;
+
+		public Run(PDFont font, String text) {
+			this.font = font;
+			this.text = text;
+		}
+
+		public PDFont getFont() {
+			return font;
+		}
+
+		public String getText() {
+			return text;
+		}
+	}
+}
@@ -44,10 +44,37 @@ public class AppTest extends TestCase {
         assertTrue("imagepdf file valid", isPdfValid(imagepdfFile));
     }
 
-    private boolean isPdfValid(File pdfFile) {
+    @Test
+    public void testBatch() throws Exception {
+        File batchDir = Files.createTempDirectory("batch").toFile();
+        File outputDir = new File(batchDir, "pdfs");
+        File summaryFile = new File(batchDir, "summary.txt");
+        Files.copy(jsonFile.toPath(), new File(batchDir, "first.json").toPath());
+        Files.copy(imagejsonFile.toPath(), new File(batchDir, "second.json").toPath());
+        String brokenJson = resourceToString("/imagepdf.json").replace("TESTIMAGE", new File(batchDir, "missing.png").getAbsolutePath());
+        Files.write(new File(batchDir, "third.json").toPath(), brokenJson.getBytes("UTF-8"));
+
+        String[] args = {"--batch", batchDir.getAbsolutePath(), "--concurrency", "2", "--output-dir", outputDir.getAbsolutePath(), "--summary", summaryFile.getAbsolutePath()};
         try {
-            PDDocument.load(pdfFile);
-            return true;
+            App.run(args);
+            fail("a failed job is reported after the batch");
+        } catch (IOException e) {
+            assertEquals("1 of 3 jobs failed", e.getMessage());
+        }
+        assertTrue("first pdf valid", isPdfValid(new File(outputDir, "first.pdf")));
+        assertTrue("second pdf valid, after the broken job", isPdfValid(new File(outputDir, "second.pdf")));
+        assertFalse("no pdf for the broken job", new File(outputDir, "third.pdf").exists());
+        try (JsonReader reader = Json.createReader(new FileReader(summaryFile))) {
+            JsonObject summary = reader.readObject();
+            assertEquals(2, summary.getInt("succeeded"));
+            assertEquals(1, summary.getInt("failed"));
+            assertEquals("failure", summary.getJsonArray("jobs").getJsonObject(2).getString("status"));
+        }
+    }
+
+    private boolean isPdfValid(File pdfFile) {
+        try (PDDocument document = PDDocument.load(pdfFile)) {
+            return document.getNumberOfPages() > 0;
         } catch (IOException e) {
             return false;
         }
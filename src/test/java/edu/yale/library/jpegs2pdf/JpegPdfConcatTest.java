@@ -1,13 +1,42 @@
 package edu.yale.library.jpegs2pdf;
 
+import edu.yale.library.jpegs2pdf.image.ImageTransform;
+import edu.yale.library.jpegs2pdf.model.JpegPdfPage;
+import edu.yale.library.jpegs2pdf.model.Property;
+import edu.yale.library.jpegs2pdf.pdf.OutputProfile;
+import edu.yale.library.jpegs2pdf.text.FontCache;
+import edu.yale.library.jpegs2pdf.text.GlyphCoverage;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.io.IOUtils;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.documentinterchange.logicalstructure.PDStructureElement;
 import org.apache.pdfbox.pdmodel.font.PDFont;
 import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.text.PDFTextStripper;
 
+import javax.imageio.ImageIO;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 /**
  * Unit test for simple App.
@@ -56,4 +85,482 @@ public class JpegPdfConcatTest
         assertTrue("Text is changed if font is not found", !fontAndText.getText().equals(text));
         assertTrue("Text has the box for replacement", fontAndText.getText().equals(textWithBox));
     }
+
+    public void testPagesKeepManifestOrder() throws IOException {
+        List<JpegPdfPage> pages = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            // each page gets a distinct width so the order can be checked in the output
+            File file = createImageFile(100 + i * 10, 80, BufferedImage.TYPE_INT_RGB);
+            files.add(file);
+            JpegPdfPage page = new JpegPdfPage();
+            page.setJpegSource(file.getAbsolutePath());
+            page.setCaption("Image " + i);
+            page.setProperties(Collections.singletonList(new Property("Page", Integer.toString(i))));
+            pages.add(page);
+        }
+        File pdfFile = File.createTempFile("order", ".pdf");
+        JpegPdfConcatImpl jpegPdfConcat = new JpegPdfConcatImpl();
+        jpegPdfConcat.setPageWorkers(4);
+        jpegPdfConcat.setPageLookAhead(3);
+        jpegPdfConcat.generatePdf("Header", "Title", new ArrayList<>(), null, pages, pdfFile, null);
+        try (PDDocument document = PDDocument.load(pdfFile)) {
+            assertEquals("cover page plus one page per image", pages.size() + 1, document.getNumberOfPages());
+            for (int i = 0; i < pages.size(); i++) {
+                assertEquals("page " + i + " has its own image", 100 + i * 10, firstImage(document.getPage(i + 1)).getWidth());
+            }
+            assertEquals("cover part and pages part", 2, document.getDocumentCatalog().getStructureTreeRoot().getKids().size());
+        } finally {
+            pdfFile.delete();
+            for (File file : files) file.delete();
+        }
+    }
+
+    public void testChunkedPagesKeepOrderAndStructure() throws IOException {
+        List<JpegPdfPage> pages = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            File file = createImageFile(100 + i * 10, 80, BufferedImage.TYPE_INT_RGB);
+            files.add(file);
+            JpegPdfPage page = new JpegPdfPage();
+            page.setJpegSource(file.getAbsolutePath());
+            page.setCaption("Image " + i);
+            page.setProperties(Collections.singletonList(new Property("Page", Integer.toString(i))));
+            pages.add(page);
+        }
+        File pdfFile = File.createTempFile("chunked", ".pdf");
+        try {
+            for (boolean streaming : new boolean[] {false, true}) {
+                JpegPdfConcatImpl jpegPdfConcat = new JpegPdfConcatImpl();
+                jpegPdfConcat.setChunkPages(2);
+                jpegPdfConcat.setChunkWorkers(3);
+                jpegPdfConcat.setStreamingOutput(streaming);
+                jpegPdfConcat.generatePdf("Header", "Title", new ArrayList<>(), null, pages, pdfFile, null);
+                assertEquals(pages.size(), jpegPdfConcat.getJobMetrics().getPageCount());
+                try (PDDocument document = PDDocument.load(pdfFile)) {
+                    assertEquals(pages.size() + 1, document.getNumberOfPages());
+                    assertEquals("Title", document.getDocumentInformation().getTitle());
+                    List<Object> parts = document.getDocumentCatalog().getStructureTreeRoot().getKids();
+                    assertEquals("cover part and pages part", 2, parts.size());
+                    List<Object> sections = ((PDStructureElement) parts.get(1)).getKids();
+                    assertEquals("one section per page", pages.size(), sections.size());
+                    for (int i = 0; i < pages.size(); i++) {
+                        PDPage page = document.getPage(i + 1);
+                        assertEquals("page " + i + " has its own image", 100 + i * 10, firstImage(page).getWidth());
+                        PDStructureElement figure = null;
+                        for (Object kid : ((PDStructureElement) sections.get(i)).getKids()) {
+                            if (kid instanceof PDStructureElement && ((PDStructureElement) kid).getStructureType().equals("Figure")) {
+                                figure = (PDStructureElement) kid;
+                            }
+                        }
+                        assertNotNull(figure);
+                        assertEquals("Image " + i, figure.getAlternateDescription());
+                        assertEquals("figure refers to its page", page.getCOSObject(), figure.getPage().getCOSObject());
+                        assertTrue("figure keeps its marked content id", figure.getKids().get(0) instanceof Integer);
+                    }
+                    String text = new PDFTextStripper().getText(document);
+                    assertTrue("captions are drawn with each chunk's subset fonts", text.contains("Image 6"));
+                }
+            }
+        } finally {
+            pdfFile.delete();
+            for (File file : files) file.delete();
+        }
+    }
+
+    public void testOutputProfiles() throws IOException {
+        File imageFile = createImageFile(400, 300, BufferedImage.TYPE_INT_RGB);
+        List<JpegPdfPage> pages = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            JpegPdfPage page = new JpegPdfPage();
+            page.setJpegSource(imageFile.getAbsolutePath());
+            page.setCaption("Image " + i);
+            page.setProperties(Collections.singletonList(new Property("Page", Integer.toString(i))));
+            pages.add(page);
+        }
+        File pdfFile = File.createTempFile("profile", ".pdf");
+        try {
+            for (boolean streaming : new boolean[] {false, true}) {
+                long[] imageBytes = new long[OutputProfile.values().length];
+                for (OutputProfile profile : OutputProfile.values()) {
+                    JpegPdfConcatImpl jpegPdfConcat = new JpegPdfConcatImpl();
+                    jpegPdfConcat.setOutputProfile(profile);
+                    jpegPdfConcat.setStreamingOutput(streaming);
+                    jpegPdfConcat.generatePdf("Header", "Title", new ArrayList<>(), null, pages, pdfFile, null);
+                    String pdf = new String(Files.readAllBytes(pdfFile.toPath()), "ISO-8859-1");
+                    assertEquals(profile.getName(), profile.isObjectStreams(), pdf.startsWith("%PDF-1.5"));
+                    assertEquals(profile.getName(), profile.isObjectStreams(), pdf.contains("/Type /ObjStm"));
+                    assertEquals(profile.getName(), profile.isObjectStreams(), pdf.contains("/Type /XRef"));
+                    try (PDDocument document = PDDocument.load(pdfFile)) {
+                        assertEquals(pages.size() + 1, document.getNumberOfPages());
+                        assertEquals("Title", document.getDocumentInformation().getTitle());
+                        assertEquals("cover part and pages part", 2, document.getDocumentCatalog().getStructureTreeRoot().getKids().size());
+                        assertTrue(new PDFTextStripper().getText(document).contains("Image 3"));
+                        imageBytes[profile.ordinal()] = firstImage(document.getPage(1)).getCOSObject().getLength();
+                    }
+                }
+                assertTrue("archive images are the largest", imageBytes[OutputProfile.ARCHIVE.ordinal()] > imageBytes[OutputProfile.WEB.ordinal()]);
+                assertTrue("small images are the smallest", imageBytes[OutputProfile.SMALL.ordinal()] < imageBytes[OutputProfile.WEB.ordinal()]);
+            }
+        } finally {
+            pdfFile.delete();
+            imageFile.delete();
+        }
+    }
+
+    public void testJpegPassthroughEmbedsSourceBytes() throws IOException {
+        File jpegFile = createImageFile(300, 200, BufferedImage.TYPE_INT_RGB, "jpg");
+        JpegPdfPage page = new JpegPdfPage();
+        page.setJpegSource(jpegFile.getAbsolutePath());
+        page.setCaption("JPEG");
+        page.setProperties(new ArrayList<>());
+        File pdfFile = File.createTempFile("passthrough", ".pdf");
+        new JpegPdfConcatImpl().generatePdf("Header", "Title", new ArrayList<>(), null, Collections.singletonList(page), pdfFile, null);
+        try (PDDocument document = PDDocument.load(pdfFile)) {
+            PDImageXObject image = firstImage(document.getPage(1));
+            assertEquals(COSName.DCT_DECODE, image.getCOSObject().getFilters());
+            assertEquals(300, image.getWidth());
+            assertEquals(200, image.getHeight());
+            try (InputStream in = image.getCOSObject().createRawInputStream()) {
+                assertTrue("source bytes are embedded unchanged", java.util.Arrays.equals(Files.readAllBytes(jpegFile.toPath()), IOUtils.toByteArray(in)));
+            }
+        } finally {
+            pdfFile.delete();
+            jpegFile.delete();
+        }
+    }
+
+    public void testMetricsReportAndPrometheusFile() throws IOException {
+        File pngFile = createImageFile(300, 200, BufferedImage.TYPE_INT_RGB, "png");
+        File jpegFile = createImageFile(300, 200, BufferedImage.TYPE_INT_RGB, "jpg");
+        List<JpegPdfPage> pages = new ArrayList<>();
+        for (File file : new File[] {pngFile, jpegFile}) {
+            JpegPdfPage page = new JpegPdfPage();
+            page.setJpegSource(file.getAbsolutePath());
+            page.setCaption("Metrics");
+            page.setProperties(new ArrayList<>());
+            pages.add(page);
+        }
+        File pdfFile = File.createTempFile("metrics", ".pdf");
+        File reportFile = new File(pdfFile.getPath() + ".metrics.json");
+        File prometheusFile = File.createTempFile("metrics", ".prom");
+        try {
+            JpegPdfConcatImpl pageConcat = new JpegPdfConcatImpl();
+            pageConcat.setMetricsReport(true);
+            pageConcat.setMetricsPrometheusFile(prometheusFile);
+            pageConcat.generatePdf("Header", "Title", new ArrayList<>(), null, pages, pdfFile, null);
+
+            JsonObject report;
+            try (JsonReader reader = Json.createReader(new FileInputStream(reportFile))) {
+                report = reader.readObject();
+            }
+            assertEquals("ok", report.getString("status"));
+            assertEquals(2, report.getInt("pages"));
+            assertEquals(pdfFile.length(), report.getJsonNumber("outputBytes").longValue());
+            assertEquals(pngFile.length() + jpegFile.length(), report.getJsonNumber("fetchedBytes").longValue());
+            assertTrue(report.getJsonNumber("peakHeapBytes").longValue() > 0);
+            assertTrue(report.getJsonObject("stageMillis").containsKey("encode"));
+            JsonObject png = report.getJsonArray("pageDetails").getJsonObject(0);
+            JsonObject jpeg = report.getJsonArray("pageDetails").getJsonObject(1);
+            assertFalse(png.getBoolean("passthrough"));
+            assertTrue(png.getJsonObject("millis").containsKey("decode"));
+            assertTrue(jpeg.getBoolean("passthrough"));
+            assertEquals(jpegFile.length(), jpeg.getJsonNumber("encodedBytes").longValue());
+
+            String prometheus = new String(Files.readAllBytes(prometheusFile.toPath()), "UTF-8");
+            assertTrue(prometheus.contains("# TYPE jpegs2pdf_pages_total counter"));
+            assertTrue(prometheus.contains("jpegs2pdf_stage_seconds_total{stage=\"encode\"}"));
+            assertTrue(prometheus.contains("jpegs2pdf_last_job_pages 2\n"));
+        } finally {
+            pdfFile.delete();
+            reportFile.delete();
+            prometheusFile.delete();
+            pngFile.delete();
+            jpegFile.delete();
+        }
+    }
+
+    public void testRepeatedImagesShareOneXObject() throws IOException {
+        File jpegFile = createImageFile(300, 200, BufferedImage.TYPE_INT_RGB, "jpg");
+        File pngFile = createImageFile(300, 200, BufferedImage.TYPE_INT_RGB, "png");
+        File copyFile = File.createTempFile("copy", ".png");
+        Files.copy(pngFile.toPath(), copyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        List<JpegPdfPage> pages = new ArrayList<>();
+        for (File file : new File[] {jpegFile, pngFile, jpegFile, copyFile, jpegFile}) {
+            JpegPdfPage page = new JpegPdfPage();
+            page.setJpegSource(file.getAbsolutePath());
+            page.setCaption("Image " + pages.size());
+            page.setProperties(new ArrayList<>());
+            pages.add(page);
+        }
+        File pdfFile = File.createTempFile("dedup", ".pdf");
+        try {
+            for (boolean streaming : new boolean[] {false, true}) {
+                JpegPdfConcatImpl jpegPdfConcat = new JpegPdfConcatImpl();
+                jpegPdfConcat.setStreamingOutput(streaming);
+                jpegPdfConcat.setPageLookAhead(5);
+                jpegPdfConcat.generatePdf("Header", "Title", new ArrayList<>(), null, pages, pdfFile, null);
+                try (PDDocument document = PDDocument.load(pdfFile)) {
+                    long jpeg = imageObjectNumber(document.getPage(1));
+                    long png = imageObjectNumber(document.getPage(2));
+                    assertTrue(jpeg != png);
+                    assertEquals(jpeg, imageObjectNumber(document.getPage(3)));
+                    assertEquals(jpeg, imageObjectNumber(document.getPage(5)));
+                    assertEquals("identical bytes from another file", png, imageObjectNumber(document.getPage(4)));
+                    String text = new PDFTextStripper().getText(document);
+                    assertTrue(text.contains("Image 4"));
+                    PDStructureElement pagesPart = (PDStructureElement) document.getDocumentCatalog().getStructureTreeRoot().getKids().get(1);
+                    assertEquals("each page keeps its own section", 5, pagesPart.getKids().size());
+                }
+            }
+        } finally {
+            pdfFile.delete();
+            jpegFile.delete();
+            pngFile.delete();
+            copyFile.delete();
+        }
+    }
+
+    private static long imageObjectNumber(PDPage page) {
+        COSDictionary xobjects = (COSDictionary) page.getResources().getCOSObject().getDictionaryObject(COSName.XOBJECT);
+        COSName name = xobjects.keySet().iterator().next();
+        return ((COSObject) xobjects.getItem(name)).getObjectNumber();
+    }
+
+    public void testImageTransformsAreApplied() throws IOException {
+        File jpegFile = createImageFile(300, 200, BufferedImage.TYPE_INT_RGB, "jpg");
+        JpegPdfPage page = new JpegPdfPage();
+        page.setJpegSource(jpegFile.getAbsolutePath());
+        page.setCaption("Rotated");
+        page.setProperties(new ArrayList<>());
+        page.setImageTransforms(Arrays.asList(new ImageTransform.Rotate(90), new ImageTransform.Grayscale()));
+        File pdfFile = File.createTempFile("transforms", ".pdf");
+        new JpegPdfConcatImpl().generatePdf("Header", "Title", new ArrayList<>(), null, Collections.singletonList(page), pdfFile, null);
+        try (PDDocument document = PDDocument.load(pdfFile)) {
+            PDImageXObject image = firstImage(document.getPage(1));
+            assertEquals(200, image.getWidth());
+            assertEquals(300, image.getHeight());
+            assertEquals(1, image.getColorSpace().getNumberOfComponents());
+        } finally {
+            pdfFile.delete();
+            jpegFile.delete();
+        }
+    }
+
+    public void testArabicFontOnlyLoadedWhenNeeded() throws IOException {
+        File imageFile = createImageFile(100, 80, BufferedImage.TYPE_INT_RGB);
+        try {
+            assertFalse("latin text", fontNames(generateWithCaption(imageFile, "Image 1")).contains("NotoNaskhArabic"));
+            // a character only the Arabic font has
+            String arabicOnly = null;
+            try (PDDocument document = new PDDocument()) {
+                GlyphCoverage latin = GlyphCoverage.forFont(FontCache.load(document, "/arialunicodems.ttf"));
+                GlyphCoverage arabic = GlyphCoverage.forFont(FontCache.load(document, "/NotoNaskhArabic-Regular.ttf"));
+                for (int codePoint = 0x600; codePoint < 0x700 && arabicOnly == null; codePoint++) {
+                    if (arabic.covers(codePoint) && !latin.covers(codePoint)) {
+                        arabicOnly = new String(Character.toChars(codePoint));
+                    }
+                }
+            }
+            if (arabicOnly != null) {
+                assertTrue("arabic text", fontNames(generateWithCaption(imageFile, "شمس" + arabicOnly)).contains("NotoNaskhArabic"));
+            }
+        } finally {
+            imageFile.delete();
+        }
+    }
+
+    public void testCoverLogoIsReused() throws IOException {
+        File imageFile = createImageFile(100, 80, BufferedImage.TYPE_INT_RGB);
+        try {
+            for (int i = 0; i < 2; i++) {
+                File pdfFile = generateWithCaption(imageFile, "Image");
+                try (PDDocument document = PDDocument.load(pdfFile)) {
+                    PDImageXObject logo = firstImage(document.getPage(0));
+                    assertEquals(120, logo.getWidth());
+                    assertNotNull("transparency is kept", logo.getCOSObject().getDictionaryObject(COSName.SMASK));
+                    assertEquals(120, logo.getImage().getHeight());
+                } finally {
+                    pdfFile.delete();
+                }
+            }
+        } finally {
+            imageFile.delete();
+        }
+    }
+
+    private static File generateWithCaption(File imageFile, String caption) throws IOException {
+        JpegPdfPage page = new JpegPdfPage();
+        page.setJpegSource(imageFile.getAbsolutePath());
+        page.setCaption(caption);
+        page.setProperties(new ArrayList<>());
+        File pdfFile = File.createTempFile("fonts", ".pdf");
+        new JpegPdfConcatImpl().generatePdf("Header", "Title", new ArrayList<>(), null, Collections.singletonList(page), pdfFile, null);
+        return pdfFile;
+    }
+
+    private static String fontNames(File pdfFile) throws IOException {
+        StringBuilder names = new StringBuilder();
+        try (PDDocument document = PDDocument.load(pdfFile)) {
+            for (PDPage page : document.getPages()) {
+                for (COSName name : page.getResources().getFontNames()) {
+                    names.append(page.getResources().getFont(name).getName()).append(' ');
+                }
+            }
+        } finally {
+            pdfFile.delete();
+        }
+        return names.toString();
+    }
+
+    public void testTargetDpiDownsamplesLargeImages() throws IOException {
+        File largeFile = createImageFile(2400, 1600, BufferedImage.TYPE_INT_RGB, "jpg");
+        File smallFile = createImageFile(300, 200, BufferedImage.TYPE_INT_RGB, "jpg");
+        List<JpegPdfPage> pages = new ArrayList<>();
+        for (File file : new File[] {largeFile, smallFile}) {
+            JpegPdfPage page = new JpegPdfPage();
+            page.setJpegSource(file.getAbsolutePath());
+            page.setCaption("Image");
+            page.setProperties(new ArrayList<>());
+            pages.add(page);
+        }
+        File pdfFile = File.createTempFile("dpi", ".pdf");
+        JpegPdfConcatImpl jpegPdfConcat = new JpegPdfConcatImpl();
+        jpegPdfConcat.setTargetDpi(150);
+        jpegPdfConcat.generatePdf("Header", "Title", new ArrayList<>(), null, pages, pdfFile, null);
+        try (PDDocument document = PDDocument.load(pdfFile)) {
+            // drawn 512pt wide between the margins, so 7.11in at 150dpi
+            PDImageXObject large = firstImage(document.getPage(1));
+            assertEquals(1067, large.getWidth());
+            assertEquals(711, large.getHeight());
+            PDImageXObject small = firstImage(document.getPage(2));
+            assertEquals("small enough images are passed through", 300, small.getWidth());
+            try (InputStream in = small.getCOSObject().createRawInputStream()) {
+                assertTrue(java.util.Arrays.equals(Files.readAllBytes(smallFile.toPath()), IOUtils.toByteArray(in)));
+            }
+        } finally {
+            pdfFile.delete();
+            largeFile.delete();
+            smallFile.delete();
+        }
+    }
+
+    public void testStreamingOutputMatchesSavedDocument() throws IOException {
+        File jpegFile = createImageFile(300, 200, BufferedImage.TYPE_INT_RGB, "jpg");
+        List<JpegPdfPage> pages = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            JpegPdfPage page = new JpegPdfPage();
+            page.setJpegSource(jpegFile.getAbsolutePath());
+            page.setCaption("Image " + i);
+            page.setProperties(Collections.singletonList(new Property("Page", Integer.toString(i))));
+            pages.add(page);
+        }
+        File pdfFile = File.createTempFile("streaming", ".pdf");
+        JpegPdfConcatImpl jpegPdfConcat = new JpegPdfConcatImpl();
+        jpegPdfConcat.setStreamingOutput(true);
+        jpegPdfConcat.generatePdf("Header", "Title", new ArrayList<>(), null, pages, pdfFile, null);
+        try (PDDocument document = PDDocument.load(pdfFile)) {
+            assertEquals(pages.size() + 1, document.getNumberOfPages());
+            assertEquals("Title", document.getDocumentInformation().getTitle());
+            assertEquals(300, firstImage(document.getPage(1)).getWidth());
+            assertEquals("cover part and pages part", 2, document.getDocumentCatalog().getStructureTreeRoot().getKids().size());
+            String text = new PDFTextStripper().getText(document);
+            assertTrue("captions are drawn with the subset fonts", text.contains("Image 4"));
+        } finally {
+            pdfFile.delete();
+            jpegFile.delete();
+        }
+    }
+
+    public void testStreamingOutputMemoryStaysFlat() throws IOException {
+        File jpegFile = createNoiseJpeg(300, 300);
+        File pdfFile = File.createTempFile("streaming", ".pdf");
+        int pageCount = 400;
+        int firstSample = 100;
+        long[] heap = new long[2];
+        long[] written = new long[2];
+        List<JpegPdfPage> pages = new ArrayList<>();
+        for (int i = 0; i < pageCount; i++) {
+            final int index = i;
+            JpegPdfPage page = new JpegPdfPage() {
+                @Override
+                public File getLocalFile() {
+                    // with one worker and no look ahead the previous page has been written when this one is loaded
+                    if (index == firstSample || index == pageCount - 1) {
+                        int sample = index == firstSample ? 0 : 1;
+                        heap[sample] = usedHeap();
+                        written[sample] = pdfFile.length();
+                    }
+                    return super.getLocalFile();
+                }
+            };
+            page.setJpegSource(jpegFile.getAbsolutePath());
+            page.setCaption("Image " + i);
+            page.setProperties(Collections.singletonList(new Property("Page", Integer.toString(i))));
+            pages.add(page);
+        }
+        JpegPdfConcatImpl jpegPdfConcat = new JpegPdfConcatImpl();
+        jpegPdfConcat.setStreamingOutput(true);
+        jpegPdfConcat.setPageWorkers(1);
+        jpegPdfConcat.setPageLookAhead(1);
+        // every page is the same image, which would otherwise be embedded once
+        jpegPdfConcat.setImageDeduplication(false);
+        try {
+            jpegPdfConcat.generatePdf("Header", "Title", new ArrayList<>(), null, pages, pdfFile, null);
+            long imageBytes = jpegFile.length() * (pageCount - 1 - firstSample);
+            assertTrue("pages are written as they are finished", written[1] - written[0] > imageBytes);
+            assertTrue("heap grew by " + (heap[1] - heap[0]) + " bytes over " + (pageCount - 1 - firstSample) + " pages",
+                    heap[1] - heap[0] < Math.min(4 * 1024 * 1024, imageBytes / 4));
+            try (PDDocument document = PDDocument.load(pdfFile)) {
+                assertEquals(pageCount + 1, document.getNumberOfPages());
+            }
+        } finally {
+            pdfFile.delete();
+            jpegFile.delete();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static File createNoiseJpeg(int width, int height) throws IOException {
+        Random random = new Random(1);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        File file = File.createTempFile("noise", ".jpg");
+        ImageIO.write(image, "jpg", file);
+        return file;
+    }
+
+    static File createImageFile(int width, int height, int type) throws IOException {
+        return createImageFile(width, height, type, "png");
+    }
+
+    static File createImageFile(int width, int height, int type, String format) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8);
+            }
+        }
+        File file = File.createTempFile("page", "." + format);
+        ImageIO.write(image, format, file);
+        return file;
+    }
+
+    static PDImageXObject firstImage(PDPage page) throws IOException {
+        for (COSName name : page.getResources().getXObjectNames()) {
+            return (PDImageXObject) page.getResources().getXObject(name);
+        }
+        return null;
+    }
 }
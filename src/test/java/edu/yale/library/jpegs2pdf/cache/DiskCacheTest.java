@@ -0,0 +1,90 @@
+package edu.yale.library.jpegs2pdf.cache;
+
+import junit.framework.TestCase;
+import org.apache.pdfbox.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class DiskCacheTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("diskcache").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<java.nio.file.Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    public void testPutAndGet() throws IOException {
+        DiskCache cache = new DiskCache(directory, 1024 * 1024);
+        assertNull(cache.get("http://example.org/a.jpg"));
+        cache.put("http://example.org/a.jpg", new ByteArrayInputStream(new byte[] {1, 2, 3}), Collections.singletonMap("etag", "\"a\""));
+        DiskCache.Entry entry = cache.get("http://example.org/a.jpg");
+        assertEquals("\"a\"", entry.getMetadata().get("etag"));
+        assertTrue(java.util.Arrays.equals(new byte[] {1, 2, 3}, read(entry)));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals("entries survive a new cache instance", "\"a\"",
+                new DiskCache(directory, 1024 * 1024).get("http://example.org/a.jpg").getMetadata().get("etag"));
+    }
+
+    public void testReplaceKeepsOneEntry() throws IOException {
+        DiskCache cache = new DiskCache(directory, 1024 * 1024);
+        Map<String, String> metadata = Collections.emptyMap();
+        cache.put("key", new ByteArrayInputStream(new byte[100]), metadata);
+        cache.put("key", new ByteArrayInputStream(new byte[] {7}), metadata);
+        assertTrue(java.util.Arrays.equals(new byte[] {7}, read(cache.get("key"))));
+        cache.trim();
+        assertTrue("old data no longer counted", cache.getSize() < 100);
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        DiskCache cache = new DiskCache(directory, 2500);
+        Map<String, String> metadata = Collections.emptyMap();
+        cache.put("a", new ByteArrayInputStream(new byte[1000]), metadata);
+        Thread.sleep(20);
+        cache.put("b", new ByteArrayInputStream(new byte[1000]), metadata);
+        Thread.sleep(20);
+        assertNotNull(cache.get("a"));
+        Thread.sleep(20);
+        cache.put("c", new ByteArrayInputStream(new byte[1000]), metadata);
+        assertNull("least recently used entry evicted", cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.getSize() <= 2500);
+    }
+
+    public void testEntryLargerThanCacheIsStillReadable() throws IOException {
+        DiskCache cache = new DiskCache(directory, 10);
+        DiskCache.Entry entry = cache.put("big", new ByteArrayInputStream(new byte[100]), Collections.emptyMap());
+        assertEquals(100, read(entry).length);
+    }
+
+    public void testIgnoresCorruptEntries() throws IOException {
+        DiskCache cache = new DiskCache(directory, 1024 * 1024);
+        DiskCache.Entry entry = cache.put("key", new ByteArrayInputStream(new byte[10]), Collections.emptyMap());
+        Files.write(entry.getFile().toPath(), new byte[] {(byte) 0xFF});
+        assertNull(cache.get("key"));
+    }
+
+    private static byte[] read(DiskCache.Entry entry) throws IOException {
+        try (InputStream in = entry.openStream()) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
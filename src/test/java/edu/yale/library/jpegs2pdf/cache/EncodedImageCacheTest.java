@@ -0,0 +1,93 @@
+package edu.yale.library.jpegs2pdf.cache;
+
+import edu.yale.library.jpegs2pdf.image.EncodedImage;
+import edu.yale.library.jpegs2pdf.image.JpegEncoder;
+import edu.yale.library.jpegs2pdf.image.PageImageLoader;
+import edu.yale.library.jpegs2pdf.model.JpegPdfPage;
+import junit.framework.TestCase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.stream.Stream;
+
+public class EncodedImageCacheTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("encodedcache").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<java.nio.file.Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    public void testRoundTripWithSoftMask() throws IOException {
+        BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 40; x++) {
+            image.setRGB(x, x % 30, 0x80336699);
+        }
+        EncodedImage encoded = JpegEncoder.encode(image).withContentKey("abc@40x30");
+        EncodedImageCache cache = new EncodedImageCache(new DiskCache(directory, 1024 * 1024));
+        assertNull(cache.get("key", false));
+        cache.put("key", encoded);
+
+        EncodedImage cached = cache.get("key", false);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(Arrays.equals(encoded.getData(), cached.getData()));
+        assertEquals(COSName.DCT_DECODE, cached.getFilter());
+        assertEquals(40, cached.getWidth());
+        assertEquals(30, cached.getHeight());
+        assertEquals(8, cached.getBitsPerComponent());
+        assertSame(PDDeviceRGB.INSTANCE, cached.getColorSpace());
+        assertEquals("abc@40x30", cached.getContentKey());
+        assertTrue(Arrays.equals(encoded.getSoftMask().getData(), cached.getSoftMask().getData()));
+        assertSame(PDDeviceGray.INSTANCE, cached.getSoftMask().getColorSpace());
+    }
+
+    public void testRemoteEntriesExpire() throws Exception {
+        EncodedImageCache cache = new EncodedImageCache(new DiskCache(directory, 1024 * 1024));
+        cache.put("http://example.org/a.jpg", JpegEncoder.encode(new BufferedImage(10, 10, BufferedImage.TYPE_BYTE_GRAY)));
+        assertNotNull(cache.get("http://example.org/a.jpg", true));
+        Thread.sleep(5);
+        cache.setRemoteMaxAge(1);
+        assertNull("remote entry has expired", cache.get("http://example.org/a.jpg", true));
+        assertNotNull("local entries don't expire", cache.get("http://example.org/a.jpg", false));
+    }
+
+    public void testLoaderUsesCacheUntilFileChanges() throws IOException {
+        File file = File.createTempFile("page", ".png", directory);
+        ImageIO.write(new BufferedImage(60, 40, BufferedImage.TYPE_INT_RGB), "png", file);
+        JpegPdfPage page = new JpegPdfPage();
+        page.setJpegSource(file.getAbsolutePath());
+        EncodedImageCache cache = new EncodedImageCache(new DiskCache(new File(directory, "cache"), 1024 * 1024));
+        PageImageLoader loader = new PageImageLoader(null);
+        loader.setEncodedImageCache(cache);
+        loader.setEmbeddedImages(new HashSet<>());
+
+        EncodedImage first = loader.load(page);
+        EncodedImage second = loader.load(page);
+        assertEquals(1, cache.getHits());
+        assertTrue(Arrays.equals(first.getData(), second.getData()));
+        assertEquals("content key is kept for deduplication", first.getContentKey(), second.getContentKey());
+
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        loader.load(page);
+        assertEquals("a changed file is loaded again", 1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+}
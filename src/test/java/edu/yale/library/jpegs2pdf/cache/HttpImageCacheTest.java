@@ -0,0 +1,117 @@
+package edu.yale.library.jpegs2pdf.cache;
+
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.pdfbox.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+public class HttpImageCacheTest extends TestCase {
+
+    private HttpServer server;
+    private File directory;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger bodies = new AtomicInteger();
+    private final AtomicReference<String> etag = new AtomicReference<>("\"v1\"");
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("imagecache").toFile();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/etag.jpg", exchange -> {
+            requests.incrementAndGet();
+            String current = etag.get();
+            exchange.getResponseHeaders().set("ETag", current);
+            if (current.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                respond(exchange, current.getBytes("UTF-8"));
+            }
+            exchange.close();
+        });
+        server.createContext("/modified.jpg", exchange -> {
+            requests.incrementAndGet();
+            String lastModified = "Tue, 15 Nov 1994 08:12:31 GMT";
+            exchange.getResponseHeaders().set("Last-Modified", lastModified);
+            if (lastModified.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                respond(exchange, new byte[] {1, 2, 3});
+            }
+            exchange.close();
+        });
+        server.createContext("/missing.jpg", exchange -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        server.stop(0);
+        try (Stream<java.nio.file.Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    public void testRevalidatesWithEtag() throws IOException {
+        HttpImageCache cache = new HttpImageCache(new DiskCache(directory, 1024 * 1024));
+        assertEquals("\"v1\"", read(cache.open(url("/etag.jpg"))));
+        assertEquals("\"v1\"", read(cache.open(url("/etag.jpg"))));
+        assertEquals(2, requests.get());
+        assertEquals("second request has no body", 1, bodies.get());
+        assertEquals(1, cache.getRevalidated());
+
+        etag.set("\"v2\"");
+        assertEquals("changed image is downloaded again", "\"v2\"", read(cache.open(url("/etag.jpg"))));
+        assertEquals(2, bodies.get());
+    }
+
+    public void testRevalidatesWithLastModified() throws IOException {
+        HttpImageCache cache = new HttpImageCache(new DiskCache(directory, 1024 * 1024));
+        read(cache.open(url("/modified.jpg")));
+        read(new HttpImageCache(new DiskCache(directory, 1024 * 1024)).open(url("/modified.jpg")));
+        assertEquals("cache is shared through the directory", 1, bodies.get());
+    }
+
+    public void testErrorStatusFails() throws IOException {
+        HttpImageCache cache = new HttpImageCache(new DiskCache(directory, 1024 * 1024));
+        try {
+            cache.open(url("/missing.jpg"));
+            fail("404 should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("404"));
+        }
+    }
+
+    private void respond(com.sun.net.httpserver.HttpExchange exchange, byte[] body) throws IOException {
+        bodies.incrementAndGet();
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            return new String(IOUtils.toByteArray(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package edu.yale.library.jpegs2pdf.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.pdfbox.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HttpFetcherTest extends TestCase {
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    @Override
+    protected void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/image.jpg", exchange -> {
+            requests.incrementAndGet();
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            respond(exchange, 200, new byte[1000]);
+        });
+        server.createContext("/flaky.jpg", exchange -> {
+            respond(exchange, requests.incrementAndGet() <= 2 ? 503 : 200, new byte[10]);
+        });
+        server.createContext("/missing.jpg", exchange -> {
+            requests.incrementAndGet();
+            respond(exchange, 404, new byte[0]);
+        });
+        server.createContext("/slow.jpg", exchange -> {
+            requests.incrementAndGet();
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            respond(exchange, 200, new byte[10]);
+        });
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop(0);
+    }
+
+    public void testCountsBytesAndReusesConnections() throws IOException {
+        HttpFetcher fetcher = new HttpFetcher();
+        for (int i = 0; i < 3; i++) {
+            try (InputStream in = fetcher.open(url("/image.jpg"))) {
+                assertEquals(1000, IOUtils.toByteArray(in).length);
+            }
+        }
+        assertEquals(3000, fetcher.getBytesRead());
+        assertEquals(3, fetcher.getRequestCount());
+        assertEquals("connection kept alive", 1, clientPorts.size());
+    }
+
+    public void testRetriesServerErrors() throws IOException {
+        HttpFetcher fetcher = new HttpFetcher();
+        fetcher.setBackoff(1, 5);
+        try (InputStream in = fetcher.open(url("/flaky.jpg"))) {
+            assertEquals(10, IOUtils.toByteArray(in).length);
+        }
+        assertEquals(3, requests.get());
+        assertEquals(2, fetcher.getRetryCount());
+        assertEquals(0, fetcher.getFailureCount());
+    }
+
+    public void testDoesNotRetryNotFound() throws IOException {
+        HttpFetcher fetcher = new HttpFetcher();
+        try {
+            fetcher.open(url("/missing.jpg"));
+            fail("404 should fail");
+        } catch (HttpStatusException e) {
+            assertEquals(404, e.getStatus());
+        }
+        assertEquals(1, requests.get());
+        assertEquals(1, fetcher.getFailureCount());
+    }
+
+    public void testGivesUpAfterMaxRetries() throws IOException {
+        HttpFetcher fetcher = new HttpFetcher();
+        fetcher.setBackoff(1, 5);
+        fetcher.setMaxRetries(1);
+        try {
+            fetcher.open(url("/flaky.jpg"));
+            fail("503 should fail once retries are used up");
+        } catch (HttpStatusException e) {
+            assertEquals(503, e.getStatus());
+        }
+        assertEquals(2, requests.get());
+    }
+
+    public void testReadTimeout() throws IOException {
+        HttpFetcher fetcher = new HttpFetcher();
+        fetcher.setReadTimeout(50);
+        fetcher.setMaxRetries(0);
+        long start = System.currentTimeMillis();
+        try {
+            fetcher.open(url("/slow.jpg"));
+            fail("slow response should time out");
+        } catch (SocketTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        }
+    }
+
+    public void testCapsRequestsPerHost() throws Exception {
+        HttpFetcher fetcher = new HttpFetcher();
+        fetcher.setMaxRequestsPerHost(2);
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(executor.submit(() -> {
+                    try (InputStream in = fetcher.open(url("/slow.jpg"))) {
+                        return IOUtils.toByteArray(in);
+                    }
+                }));
+            }
+            for (Future<byte[]> future : futures) {
+                assertEquals(10, future.get().length);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(6, requests.get());
+        assertEquals(2, maxInFlight.get());
+        assertTrue("waited for the host limit", fetcher.getHostWaitMillis() > 0);
+    }
+
+    public void testRetryableStatuses() {
+        for (int status : new int[] {408, 429, 500, 502, 503, 504}) {
+            assertTrue(Integer.toString(status), HttpFetcher.isRetryable(status));
+        }
+        for (int status : new int[] {400, 401, 403, 404, 410}) {
+            assertFalse(Integer.toString(status), HttpFetcher.isRetryable(status));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+}
@@ -0,0 +1,135 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import edu.yale.library.jpegs2pdf.model.JpegPdfPage;
+import junit.framework.TestCase;
+import org.apache.pdfbox.io.IOUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class ExternalImageConverterTest extends TestCase {
+
+    private final byte[] data = new byte[200000];
+    private final ExternalImageConverter converter = new ExternalImageConverter();
+
+    @Override
+    protected void setUp() {
+        Arrays.fill(data, (byte) 7);
+        converter.setMaxRetries(0);
+    }
+
+    private byte[] convert(String command) throws IOException {
+        try (InputStream in = converter.convert(command, new ByteArrayInputStream(data), "test")) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    public void testPipedWithoutPlaceholders() throws IOException {
+        assertTrue(Arrays.equals(data, convert("cat")));
+    }
+
+    public void testPipedPlaceholders() throws IOException {
+        converter.setPipes(true);
+        assertTrue(Arrays.equals(data, convert("cat %s")));
+    }
+
+    public void testTempFiles() throws IOException {
+        assertTrue(Arrays.equals(data, convert("cp %s %s")));
+        assertEquals(1, converter.getConversionCount());
+    }
+
+    public void testErrorOutputIsReported() {
+        try {
+            convert("ls /no-such-directory-for-converter-test");
+            fail("command fails");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("no-such-directory-for-converter-test"));
+        }
+        assertEquals(1, converter.getFailureCount());
+    }
+
+    public void testFailuresAreRetried() {
+        converter.setMaxRetries(2);
+        converter.setRetryBackoff(1);
+        try {
+            convert("false");
+            fail("command fails");
+        } catch (IOException e) {
+            assertEquals(3, converter.getConversionCount());
+        }
+    }
+
+    public void testHungCommandIsKilled() {
+        converter.setTimeout(200);
+        converter.setMaxRetries(2);
+        long start = System.currentTimeMillis();
+        try {
+            convert("sleep 30");
+            fail("command times out");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("timed out"));
+        }
+        assertTrue("not retried", System.currentTimeMillis() - start < 10000);
+        assertEquals(1, converter.getTimeoutCount());
+        assertEquals(1, converter.getConversionCount());
+    }
+
+    public void testLocalFileIsPassedByPath() throws IOException {
+        File file = File.createTempFile("master", ".tif");
+        try {
+            Files.write(file.toPath(), data);
+            try (InputStream in = converter.convert("cp %s %s", file, "test")) {
+                assertTrue(Arrays.equals(data, IOUtils.toByteArray(in)));
+            }
+            try {
+                converter.convert("false %s %s", file, "test");
+                fail("command fails");
+            } catch (IOException e) {
+                assertTrue("the command is given the file itself, not a copy", e.getMessage().contains(" " + file.getAbsolutePath() + " "));
+            }
+            assertTrue(file.exists());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testLocalFileIsStreamedToPipe() throws IOException {
+        File file = File.createTempFile("master", ".tif");
+        try {
+            Files.write(file.toPath(), data);
+            try (InputStream in = converter.convert("cat", file, "test")) {
+                assertTrue(Arrays.equals(data, IOUtils.toByteArray(in)));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testLoaderConvertsLocalFileInPlace() throws IOException {
+        File file = File.createTempFile("master", ".png");
+        try {
+            ImageIO.write(new BufferedImage(60, 40, BufferedImage.TYPE_INT_RGB), "png", file);
+            JpegPdfPage page = new JpegPdfPage();
+            page.setJpegSource(file.getAbsolutePath());
+            PageImageLoader loader = new PageImageLoader("cp %s %s");
+            loader.setImageConverter(converter);
+            HashSet<String> embeddedImages = new HashSet<>();
+            loader.setEmbeddedImages(embeddedImages);
+            EncodedImage first = loader.load(page);
+            assertEquals(60, first.getWidth());
+            assertFalse(first.isReference());
+            embeddedImages.add(first.getContentKey());
+            assertTrue("the same file is embedded once", loader.load(page).isReference());
+            assertEquals(2, converter.getConversionCount());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import junit.framework.TestCase;
+
+public class IiifImageUrlTest extends TestCase {
+
+    public void testParse() {
+        IiifImageUrl url = IiifImageUrl.parse("https://images.example.edu/iiif/2/1234/full/full/0/default.jpg");
+        assertNotNull(url);
+        assertEquals("1234", url.getIdentifier());
+        assertEquals("full", url.getRegion());
+        assertEquals("full", url.getSize());
+        assertEquals("0", url.getRotation());
+        assertEquals("https://images.example.edu/iiif/2/1234/full/!800,900/0/default.jpg", url.withSize("!800,900"));
+        assertEquals("https://images.example.edu/iiif/2/1234/info.json", url.getInfoUrl());
+    }
+
+    public void testParseKeepsRegionAndQuery() {
+        IiifImageUrl url = IiifImageUrl.parse("http://localhost:8182/iiif/3/abc/10,20,300,400/max/!90/gray.png?token=x");
+        assertNotNull(url);
+        assertEquals("10,20,300,400", url.getRegion());
+        assertTrue(url.isQuarterTurn());
+        assertEquals("http://localhost:8182/iiif/3/abc/10,20,300,400/500,/!90/gray.png?token=x", url.withSize("500,"));
+    }
+
+    public void testQuarterTurn() {
+        assertFalse(IiifImageUrl.parse("http://host/iiif/id/full/full/0/default.jpg").isQuarterTurn());
+        assertFalse(IiifImageUrl.parse("http://host/iiif/id/full/full/180/default.jpg").isQuarterTurn());
+        assertTrue(IiifImageUrl.parse("http://host/iiif/id/full/full/270/default.jpg").isQuarterTurn());
+    }
+
+    public void testNotIiif() {
+        assertNull(IiifImageUrl.parse(null));
+        assertNull(IiifImageUrl.parse("/data/images/1234.jpg"));
+        assertNull(IiifImageUrl.parse("https://images.example.edu/images/1234.jpg"));
+        assertNull(IiifImageUrl.parse("https://images.example.edu/iiif/2/1234/info.json"));
+    }
+}
@@ -0,0 +1,100 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import com.sun.net.httpserver.HttpServer;
+import edu.yale.library.jpegs2pdf.http.HttpFetcher;
+import junit.framework.TestCase;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IiifSizerTest extends TestCase {
+
+    private final ImagePlacement placement = new ImagePlacement(PDRectangle.LETTER, 100, 50);
+    private HttpServer server;
+    private String base;
+    private final AtomicInteger infoRequests = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/iiif/large/info.json", exchange -> {
+            infoRequests.incrementAndGet();
+            respond(exchange, "{\"@context\":\"http://iiif.io/api/image/2/context.json\",\"width\":6000,\"height\":4000}");
+        });
+        server.createContext("/iiif/small/info.json", exchange -> {
+            respond(exchange, "{\"@context\":\"http://iiif.io/api/image/3/context.json\",\"width\":400,\"height\":300}");
+        });
+        server.createContext("/iiif/limited/info.json", exchange -> {
+            respond(exchange, "{\"width\":4000,\"height\":6000,\"maxWidth\":500}");
+        });
+        server.createContext("/iiif/broken/info.json", exchange -> {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort() + "/iiif/";
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop(0);
+    }
+
+    private static void respond(com.sun.net.httpserver.HttpExchange exchange, String json) throws IOException {
+        byte[] body = json.getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private HttpFetcher fetcher() {
+        HttpFetcher fetcher = new HttpFetcher();
+        fetcher.setMaxRetries(0);
+        return fetcher;
+    }
+
+    public void testBoxWithoutInfo() {
+        IiifSizer sizer = new IiifSizer(fetcher(), false);
+        int width = (int) Math.ceil(placement.getMaxWidth() * 2);
+        int height = (int) Math.ceil(placement.getMaxHeight() * 2);
+        assertEquals(base + "large/full/!" + width + "," + height + "/0/default.jpg",
+                sizer.size(base + "large/full/full/0/default.jpg", placement, 144));
+        assertEquals(base + "large/full/!" + height + "," + width + "/90/default.jpg",
+                sizer.size(base + "large/full/full/90/default.jpg", placement, 144));
+        assertEquals(0, infoRequests.get());
+    }
+
+    public void testUnchanged() {
+        IiifSizer sizer = new IiifSizer(fetcher(), true);
+        assertEquals(base + "large/full/full/0/default.jpg", sizer.size(base + "large/full/full/0/default.jpg", placement, 0));
+        assertEquals(base + "large/full/full/0/default.jpg", sizer.size(base + "large/full/full/0/default.jpg", null, 144));
+        assertEquals("/data/1.jpg", sizer.size("/data/1.jpg", placement, 144));
+    }
+
+    public void testExactWidthFromInfo() {
+        IiifSizer sizer = new IiifSizer(fetcher(), true);
+        int width = placement.getPixelSize(6000, 4000, 144).width;
+        assertEquals(base + "large/full/" + width + ",/0/default.jpg", sizer.size(base + "large/full/full/0/default.jpg", placement, 144));
+        sizer.size(base + "large/full/full/0/default.jpg", placement, 144);
+        assertEquals(1, infoRequests.get());
+    }
+
+    public void testFullImageWhenSmallerThanTarget() {
+        IiifSizer sizer = new IiifSizer(fetcher(), true);
+        assertEquals(base + "small/full/max/0/default.jpg", sizer.size(base + "small/full/full/0/default.jpg", placement, 300));
+    }
+
+    public void testServerMaximum() {
+        IiifSizer sizer = new IiifSizer(fetcher(), true);
+        assertEquals(base + "limited/full/333,/0/default.jpg", sizer.size(base + "limited/full/full/0/default.jpg", placement, 300));
+    }
+
+    public void testBoxWhenInfoUnavailable() {
+        IiifSizer sizer = new IiifSizer(fetcher(), true);
+        assertTrue(sizer.size(base + "broken/full/full/0/default.jpg", placement, 144).startsWith(base + "broken/full/!"));
+    }
+}
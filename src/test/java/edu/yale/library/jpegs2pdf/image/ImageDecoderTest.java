@@ -0,0 +1,86 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import junit.framework.TestCase;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.Dimension;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ImageDecoderTest extends TestCase {
+
+    private final ImagePlacement placement = new ImagePlacement(PDRectangle.LETTER, 100, 50);
+
+    public void testJpegIsSubsampledToTheTargetSize() throws IOException {
+        byte[] jpeg = encode(4000, 2000, "jpg");
+        // drawn 512pt wide, so 512 pixels at 72dpi; subsampled by 3 stays above twice that
+        BufferedImage image = ImageDecoder.read(new ByteArrayInputStream(jpeg), placement, 72);
+        assertEquals(1334, image.getWidth());
+        assertEquals(667, image.getHeight());
+        assertEquals(4000, ImageDecoder.read(new ByteArrayInputStream(jpeg), placement, 0).getWidth());
+        assertEquals(4000, ImageDecoder.read(new ByteArrayInputStream(jpeg), null, 72).getWidth());
+    }
+
+    public void testTiffIsSubsampledToTheTargetSize() throws IOException {
+        byte[] tiff = encode(3000, 3000, "tif");
+        BufferedImage image = ImageDecoder.read(new ByteArrayInputStream(tiff), placement, 72);
+        Dimension target = placement.getPixelSize(3000, 3000, 72);
+        assertTrue(image.getWidth() >= target.width * 2 && image.getWidth() < target.width * 4);
+        assertEquals(image.getWidth(), image.getHeight());
+    }
+
+    public void testBufferIsReadFromItsPosition() throws IOException {
+        byte[] jpeg = encode(4000, 2000, "jpg");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(jpeg.length + 20);
+        buffer.position(10);
+        buffer.put(jpeg);
+        buffer.flip();
+        buffer.position(10);
+        BufferedImage image = ImageDecoder.read(buffer, placement, 72);
+        assertEquals(1334, image.getWidth());
+        assertEquals(10, buffer.position());
+        assertEquals(4000, JpegHeader.parse(buffer).getWidth());
+        assertNull(ImageDecoder.read(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}), placement, 72));
+    }
+
+    public void testMemoryEstimate() throws IOException {
+        assertEquals(60000, ImageDecoder.estimate(100, 100, ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_3BYTE_BGR)));
+        assertEquals(80000, ImageDecoder.estimate(100, 100, ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB)));
+        assertEquals(2500, ImageDecoder.estimate(100, 100, ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_BYTE_BINARY)));
+        ImageTypeSpecifier rgb16 = ImageTypeSpecifier.createInterleaved(ColorSpace.getInstance(ColorSpace.CS_sRGB), new int[] {0, 1, 2},
+                DataBuffer.TYPE_USHORT, false, false);
+        assertEquals(120000, ImageDecoder.estimate(100, 100, rgb16));
+        assertEquals("unknown types are taken as four bytes a pixel", 80000, ImageDecoder.estimate(100, 100, null));
+
+        MemoryGovernor governor = new MemoryGovernor();
+        try (MemoryGovernor.Reservation reservation = governor.reserve()) {
+            BufferedImage image = ImageDecoder.read(new ByteArrayInputStream(encode(4000, 2000, "jpg")), placement, 72, reservation);
+            assertEquals("estimated at the subsampled size", 2L * image.getWidth() * image.getHeight() * 3, reservation.getBytes());
+        }
+    }
+
+    public void testSubsampling() {
+        assertEquals(1, ImageDecoder.getSubsampling(1000, 1000, new Dimension(600, 600)));
+        assertEquals(1, ImageDecoder.getSubsampling(1000, 1000, new Dimension(500, 500)));
+        assertEquals(2, ImageDecoder.getSubsampling(2000, 1000, new Dimension(500, 250)));
+        assertEquals("limited by the smaller ratio", 2, ImageDecoder.getSubsampling(6000, 1000, new Dimension(1000, 250)));
+    }
+
+    public void testUnknownDataReturnsNull() throws IOException {
+        assertNull(ImageDecoder.read(new ByteArrayInputStream(new byte[] {1, 2, 3, 4}), placement, 72));
+    }
+
+    private static byte[] encode(int width, int height, String format) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(format + " writer available", ImageIO.write(image, format, out));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,56 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import junit.framework.TestCase;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+
+public class ImageScalerTest extends TestCase {
+
+    public void testSmallImageIsLeftAlone() {
+        BufferedImage image = new BufferedImage(100, 80, BufferedImage.TYPE_INT_RGB);
+        assertSame(image, ImageScaler.downscale(image, 100, 80));
+        assertSame(image, ImageScaler.downscale(image, 200, 160));
+    }
+
+    public void testDownscaleKeepsColour() {
+        BufferedImage image = new BufferedImage(1000, 700, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                // one pixel checkerboard of red and blue averages to purple
+                image.setRGB(x, y, (x + y) % 2 == 0 ? 0xFF0000 : 0x0000FF);
+            }
+        }
+        BufferedImage scaled = ImageScaler.downscale(image, 123, 86);
+        assertEquals(123, scaled.getWidth());
+        assertEquals(86, scaled.getHeight());
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, scaled.getType());
+        int rgb = scaled.getRGB(60, 40);
+        assertEquals(127, (rgb >> 16) & 0xFF, 8);
+        assertEquals(0, (rgb >> 8) & 0xFF, 8);
+        assertEquals(127, rgb & 0xFF, 8);
+    }
+
+    public void testGrayStaysGray() {
+        BufferedImage image = new BufferedImage(900, 900, BufferedImage.TYPE_BYTE_GRAY);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.getRaster().setSample(x, y, 0, 128);
+            }
+        }
+        BufferedImage scaled = ImageScaler.downscale(image, 100, 100);
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, scaled.getType());
+        assertEquals(128, scaled.getRaster().getSample(50, 50, 0), 2);
+    }
+
+    public void testPixelSizeFollowsDrawRectangle() {
+        ImagePlacement placement = new ImagePlacement(PDRectangle.LETTER, 100, 50);
+        // a wide image is drawn across the page between the margins: 512pt, so 7.11in
+        Dimension size = placement.getPixelSize(6000, 3000, 300);
+        assertEquals(2133, size.width);
+        assertEquals(1067, size.height);
+        assertEquals("already small enough", new Dimension(1000, 500), placement.getPixelSize(1000, 500, 300));
+        assertEquals("no target", new Dimension(6000, 3000), placement.getPixelSize(6000, 3000, 0));
+    }
+}
@@ -0,0 +1,110 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import junit.framework.TestCase;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+public class ImageTransformTest extends TestCase {
+
+    private static List<ImageTransform> parse(String json) throws IOException {
+        JsonArray array = Json.createReader(new StringReader(json)).readArray();
+        return ImageTransform.fromJson(array);
+    }
+
+    private static BufferedImage image(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        // red top left pixel to follow through rotations
+        image.setRGB(0, 0, 0xFF0000);
+        return image;
+    }
+
+    public void testChain() throws IOException {
+        List<ImageTransform> transforms = parse("[{\"op\":\"crop\",\"x\":10,\"y\":20,\"width\":400,\"height\":300},"
+                + "{\"op\":\"rotate\",\"degrees\":90},{\"op\":\"resize\",\"width\":150},{\"op\":\"grayscale\"},{\"op\":\"sharpen\"}]");
+        assertEquals(5, transforms.size());
+        BufferedImage result = ImageTransform.applyAll(transforms, image(1000, 800));
+        assertEquals(150, result.getWidth());
+        assertEquals(200, result.getHeight());
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, result.getType());
+    }
+
+    public void testCropSharesRasterAndClips() {
+        BufferedImage image = image(100, 80);
+        BufferedImage cropped = new ImageTransform.Crop(50, 40, 500, 500).apply(image);
+        assertEquals(50, cropped.getWidth());
+        assertEquals(40, cropped.getHeight());
+        cropped.setRGB(0, 0, 0x00FF00);
+        assertEquals(0x00FF00, image.getRGB(50, 40) & 0xFFFFFF);
+        assertSame(image, new ImageTransform.Crop(0, 0, 100, 80).apply(image));
+    }
+
+    public void testQuarterTurns() {
+        BufferedImage image = image(30, 20);
+        BufferedImage clockwise = new ImageTransform.Rotate(90).apply(image);
+        assertEquals(20, clockwise.getWidth());
+        assertEquals(30, clockwise.getHeight());
+        assertEquals(0xFF0000, clockwise.getRGB(19, 0) & 0xFFFFFF);
+        BufferedImage upsideDown = new ImageTransform.Rotate(180).apply(image);
+        assertEquals(0xFF0000, upsideDown.getRGB(29, 19) & 0xFFFFFF);
+        BufferedImage anticlockwise = new ImageTransform.Rotate(-90).apply(image);
+        assertEquals(0xFF0000, anticlockwise.getRGB(0, 29) & 0xFFFFFF);
+        assertSame(image, new ImageTransform.Rotate(360).apply(image));
+    }
+
+    public void testOtherAnglesGrowToFit() {
+        BufferedImage rotated = new ImageTransform.Rotate(45).apply(image(100, 100));
+        assertEquals(142, rotated.getWidth());
+        assertEquals(0xFFFFFF, rotated.getRGB(0, 0) & 0xFFFFFF);
+    }
+
+    public void testResizeNeverEnlarges() {
+        BufferedImage image = image(100, 80);
+        assertSame(image, new ImageTransform.Resize(200, 200).apply(image));
+        BufferedImage resized = new ImageTransform.Resize(50, 50).apply(image);
+        assertEquals(50, resized.getWidth());
+        assertEquals(40, resized.getHeight());
+    }
+
+    public void testGrayscaleLuminance() {
+        BufferedImage image = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, 0x00FF00);
+        image.setRGB(1, 0, 0xFFFFFF);
+        BufferedImage gray = new ImageTransform.Grayscale().apply(image);
+        assertEquals(150, gray.getRaster().getSample(0, 0, 0));
+        assertEquals(255, gray.getRaster().getSample(1, 0, 0));
+        assertSame(gray, new ImageTransform.Grayscale().apply(gray));
+    }
+
+    public void testSharpenIncreasesEdgeContrast() {
+        BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_BYTE_GRAY);
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                image.getRaster().setSample(x, y, 0, x < 5 ? 100 : 150);
+            }
+        }
+        BufferedImage sharpened = new ImageTransform.Sharpen(1).apply(image);
+        assertTrue(sharpened.getRaster().getSample(4, 5, 0) < 100);
+        assertTrue(sharpened.getRaster().getSample(5, 5, 0) > 150);
+        assertEquals(100, sharpened.getRaster().getSample(2, 5, 0));
+    }
+
+    public void testInvalidTransforms() {
+        try {
+            parse("[{\"op\":\"emboss\"}]");
+            fail("unknown op");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("emboss"));
+        }
+        try {
+            parse("[{\"op\":\"rotate\",\"degrees\":\"ninety\"}]");
+            fail("not a number");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("degrees"));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package edu.yale.library.jpegs2pdf.image;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class MemoryGovernorTest extends TestCase {
+
+    private final MemoryGovernor governor = new MemoryGovernor();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Override
+    protected void setUp() {
+        governor.setBudget(100);
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdownNow();
+    }
+
+    public void testImagesShareTheBudget() throws Exception {
+        MemoryGovernor.Reservation first = governor.reserve();
+        first.acquire(40);
+        try (MemoryGovernor.Reservation second = governor.reserve()) {
+            second.acquire(60);
+            assertEquals(100, governor.getAdmittedBytes());
+            Future<MemoryGovernor.Reservation> third = acquire(10);
+            awaitWaiting(1);
+            assertFalse("waits for room", third.isDone());
+            first.close();
+            third.get(5, TimeUnit.SECONDS).close();
+            assertEquals(1, governor.getWaitCount());
+        }
+        assertEquals(0, governor.getAdmittedBytes());
+        assertEquals(100, governor.getPeakAdmittedBytes());
+        assertEquals(3, governor.getAdmissionCount());
+    }
+
+    public void testLargeImageRunsAloneAndIsNotOvertaken() throws Exception {
+        MemoryGovernor.Reservation small = governor.reserve();
+        small.acquire(30);
+        Future<MemoryGovernor.Reservation> large = acquire(500);
+        awaitWaiting(1);
+        Future<MemoryGovernor.Reservation> later = acquire(10);
+        awaitWaiting(2);
+        assertFalse(large.isDone());
+        assertFalse("queued behind the large image", later.isDone());
+        small.close();
+        MemoryGovernor.Reservation admitted = large.get(5, TimeUnit.SECONDS);
+        assertTrue(admitted.isAlone());
+        assertEquals(500, admitted.getBytes());
+        assertTrue(admitted.getWaitNanos() > 0);
+        assertEquals(1, governor.getWaitingCount());
+        assertFalse("nothing runs with it", later.isDone());
+        admitted.close();
+        assertFalse(later.get(5, TimeUnit.SECONDS).isAlone());
+        assertEquals(1, governor.getAloneCount());
+    }
+
+    public void testZeroBudgetAdmitsEverything() throws Exception {
+        governor.setBudget(0);
+        try (MemoryGovernor.Reservation first = governor.reserve(); MemoryGovernor.Reservation second = governor.reserve()) {
+            first.acquire(1000);
+            second.acquire(1000);
+            assertFalse(second.isAlone());
+            assertEquals(0, governor.getWaitCount());
+        }
+    }
+
+    private void awaitWaiting(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (governor.getWaitingCount() != count) {
+            assertTrue("expected " + count + " waiting", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private Future<MemoryGovernor.Reservation> acquire(long bytes) {
+        return executor.submit(() -> {
+            MemoryGovernor.Reservation reservation = governor.reserve();
+            reservation.acquire(bytes);
+            return reservation;
+        });
+    }
+}
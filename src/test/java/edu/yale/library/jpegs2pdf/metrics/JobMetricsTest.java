@@ -0,0 +1,64 @@
+package edu.yale.library.jpegs2pdf.metrics;
+
+import junit.framework.TestCase;
+
+import javax.json.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+public class JobMetricsTest extends TestCase {
+
+    public void testStagesAddUpOverPages() {
+        JobMetrics job = new JobMetrics("test.pdf");
+        job.add(Stage.LAYOUT, 1000000);
+        PageMetrics first = job.newPage("first.jpg");
+        first.add(Stage.LAYOUT, 500000);
+        first.add(Stage.ENCODE, 2000000);
+        first.addFetchedBytes(100);
+        PageMetrics second = job.newPage("second.jpg");
+        second.add(Stage.ENCODE, 3000000);
+        second.addFetchedBytes(50);
+        second.setMemoryEstimate(4000000, true);
+        job.finish(null, null);
+
+        assertEquals(1, first.getIndex());
+        assertEquals(2, second.getIndex());
+        assertEquals(1500000, job.getNanos(Stage.LAYOUT));
+        assertEquals(5000000, job.getNanos(Stage.ENCODE));
+        assertEquals(150, job.getFetchedBytes());
+        assertEquals(4000000, job.getMaxMemoryEstimate());
+        assertEquals(1, job.getPagesRanAlone());
+
+        JsonObject json = job.toJson();
+        assertEquals("ok", json.getString("status"));
+        assertEquals(2, json.getInt("pages"));
+        assertEquals(5.0, json.getJsonObject("stageMillis").getJsonNumber("encode").doubleValue());
+        assertEquals(0.0, json.getJsonObject("stageMillis").getJsonNumber("fetch").doubleValue());
+        JsonObject page = json.getJsonArray("pageDetails").getJsonObject(0);
+        assertEquals("first.jpg", page.getString("source"));
+        assertEquals(0.5, page.getJsonObject("millis").getJsonNumber("layout").doubleValue());
+        assertFalse("stages with no time are left out of the page", page.getJsonObject("millis").containsKey("fetch"));
+        assertTrue(json.getJsonArray("pageDetails").getJsonObject(1).getBoolean("ranAlone"));
+        assertEquals(1, json.getInt("pagesRanAlone"));
+    }
+
+    public void testFailure() {
+        JobMetrics job = new JobMetrics("test.pdf");
+        job.finish(null, new IOException("Unable to read image"));
+        assertTrue(job.isFailed());
+        assertEquals("failed", job.toJson().getString("status"));
+        assertEquals("Unable to read image", job.toJson().getString("error"));
+        assertTrue(job.getPeakHeapBytes() > 0);
+    }
+
+    public void testTimedInputStreamCountsBytes() throws IOException {
+        TimedInputStream in = new TimedInputStream(new ByteArrayInputStream(new byte[1000]));
+        assertEquals(0, in.read());
+        assertEquals(500, in.read(new byte[500]));
+        assertEquals(100, in.skip(100));
+        while (in.read(new byte[64]) >= 0) {
+            // drain
+        }
+        assertEquals(1000, in.getBytes());
+    }
+}
@@ -0,0 +1,209 @@
+package edu.yale.library.jpegs2pdf.pdf;
+
+import edu.yale.library.jpegs2pdf.JpegPdfConcatImpl;
+import edu.yale.library.jpegs2pdf.model.JpegPdfPage;
+import junit.framework.TestCase;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class PdfLinearizerTest extends TestCase {
+
+    public void testLinearizationDictionaryAndHints() throws IOException {
+        File first = createImageFile(0x336699);
+        File repeated = createImageFile(0x993366);
+        List<JpegPdfPage> pages = new ArrayList<>();
+        for (File file : new File[] {first, repeated, repeated, first, repeated}) {
+            JpegPdfPage page = new JpegPdfPage();
+            page.setJpegSource(file.getAbsolutePath());
+            page.setCaption("Image " + pages.size());
+            page.setProperties(new ArrayList<>());
+            pages.add(page);
+        }
+        File pdfFile = File.createTempFile("linearized", ".pdf");
+        try {
+            for (boolean streaming : new boolean[] {false, true}) {
+                JpegPdfConcatImpl jpegPdfConcat = new JpegPdfConcatImpl();
+                jpegPdfConcat.setLinearizedOutput(true);
+                jpegPdfConcat.setStreamingOutput(streaming);
+                jpegPdfConcat.generatePdf("Header", "Title", new ArrayList<>(), null, pages, pdfFile, null);
+                checkLinearized(Files.readAllBytes(pdfFile.toPath()), pages.size() + 1);
+                try (PDDocument document = PDDocument.load(pdfFile)) {
+                    assertEquals(pages.size() + 1, document.getNumberOfPages());
+                    assertTrue(new PDFTextStripper().getText(document).contains("Image 4"));
+                }
+            }
+        } finally {
+            pdfFile.delete();
+            first.delete();
+            repeated.delete();
+        }
+    }
+
+    private static void checkLinearized(byte[] pdf, int pageCount) {
+        String text = new String(pdf, StandardCharsets.ISO_8859_1);
+        Matcher dictionary = Pattern.compile("^%PDF-1\\.\\d\n%\\S+\n(\\d+) 0 obj\n<< /Linearized 1 /L (\\d+) /H \\[ (\\d+) (\\d+) \\] /O (\\d+) /E (\\d+) /N (\\d+) /T (\\d+) >>")
+                .matcher(text);
+        assertTrue("linearization dictionary is the first object", dictionary.find());
+        int hintOffset = Integer.parseInt(dictionary.group(3));
+        int hintLength = Integer.parseInt(dictionary.group(4));
+        int firstPage = Integer.parseInt(dictionary.group(5));
+        int endOfFirstPage = Integer.parseInt(dictionary.group(6));
+        int mainXrefEntries = Integer.parseInt(dictionary.group(8));
+        assertEquals(pdf.length, Integer.parseInt(dictionary.group(2)));
+        assertEquals(pageCount, Integer.parseInt(dictionary.group(7)));
+        assertTrue(Character.isWhitespace(text.charAt(mainXrefEntries)));
+        assertTrue(text.startsWith("0000000000 65535 f", mainXrefEntries + 1));
+
+        Map<Integer, Integer> offsets = readXref(text);
+        assertEquals("first page trailer points to the main cross reference", text.lastIndexOf("\nxref\n0 ") + 1,
+                Integer.parseInt(find(text, "/Prev (\\d+)")));
+        assertObject(text, offsets, firstPage, "/Type /Page\n");
+        assertTrue(offsets.get(firstPage) > hintOffset);
+        assertTrue(endOfFirstPage > offsets.get(firstPage));
+        assertTrue("first page ends where an object starts", text.substring(endOfFirstPage).matches("(?s)^\\d+ 0 obj\n.*"));
+
+        assertTrue(text.startsWith(text.substring(hintOffset).split(" ")[0] + " 0 obj\n<< /Length ", hintOffset));
+        assertTrue(text.startsWith("endobj\n", hintOffset + hintLength - 7));
+        int split = Integer.parseInt(find(text.substring(hintOffset), "/S (\\d+)"));
+        int dataStart = text.indexOf("stream\r\n", hintOffset) + 8;
+
+        // page offset hint table, whose offsets leave out the hint stream
+        BitReader hints = new BitReader(pdf, dataStart);
+        long minObjects = hints.read(32);
+        long firstPageOffset = hints.read(32) + hintLength;
+        assertEquals((long) offsets.get(firstPage), firstPageOffset);
+        int objectBits = (int) hints.read(16);
+        long minLength = hints.read(32);
+        int lengthBits = (int) hints.read(16);
+        hints.read(32 + 16 + 32 + 16);
+        int sharedCountBits = (int) hints.read(16);
+        int identifierBits = (int) hints.read(16);
+        hints.read(16 + 16);
+        long[] objects = new long[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            objects[i] = minObjects + hints.read(objectBits);
+        }
+        hints.align();
+        long pageOffset = firstPageOffset;
+        for (int i = 0; i < pageCount; i++) {
+            assertTrue("page " + i + " starts with its page object", text.substring((int) pageOffset).matches("(?s)^\\d+ 0 obj\n<< ?/Type /Page\n.*"));
+            pageOffset += minLength + hints.read(lengthBits);
+            if (i == 0) {
+                assertEquals(endOfFirstPage, pageOffset);
+            }
+        }
+        hints.align();
+        long sharedReferences = 0;
+        for (int i = 0; i < pageCount; i++) {
+            long count = hints.read(sharedCountBits);
+            if (i == 0) {
+                assertEquals(0, count);
+            }
+            sharedReferences += count;
+        }
+        assertTrue("later pages share the fonts", sharedReferences >= pageCount - 1);
+        hints.align();
+        hints.read((int) sharedReferences * identifierBits);
+        hints.align();
+        assertTrue(hints.position() - dataStart <= split);
+
+        // shared object hint table
+        hints = new BitReader(pdf, dataStart + split);
+        long firstShared = hints.read(32);
+        long firstSharedOffset = hints.read(32);
+        assertTrue("the repeated image is shared by later pages", firstShared != 0);
+        assertFalse("shared objects follow the first page", offsets.containsKey((int) firstShared));
+        assertTrue(text.startsWith(firstShared + " 0 obj\n", (int) (firstSharedOffset + hintLength)));
+        long firstPageShared = hints.read(32);
+        assertEquals("every first page object is listed", objects[0], firstPageShared);
+        assertTrue(hints.read(32) >= firstPageShared);
+    }
+
+    private static void assertObject(String text, Map<Integer, Integer> offsets, int number, String contains) {
+        int offset = offsets.get(number);
+        assertTrue(text.startsWith(number + " 0 obj\n", offset));
+        assertTrue(text.substring(offset, text.indexOf("endobj", offset)).contains(contains));
+    }
+
+    /**
+     * @return offsets from the first page cross reference section
+     */
+    private static Map<Integer, Integer> readXref(String text) {
+        Matcher section = Pattern.compile("\nxref\n(\\d+) (\\d+)\n").matcher(text);
+        assertTrue(section.find());
+        int first = Integer.parseInt(section.group(1));
+        int count = Integer.parseInt(section.group(2));
+        Map<Integer, Integer> offsets = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String entry = text.substring(section.end() + i * 20, section.end() + i * 20 + 20);
+            assertTrue(entry.endsWith(" 00000 n\r\n"));
+            offsets.put(first + i, Integer.parseInt(entry.substring(0, 10)));
+        }
+        return offsets;
+    }
+
+    private static String find(String text, String regex) {
+        Matcher matcher = Pattern.compile(regex).matcher(text);
+        assertTrue(regex, matcher.find());
+        return matcher.group(1);
+    }
+
+    private static File createImageFile(int rgb) throws IOException {
+        BufferedImage image = new BufferedImage(200, 300, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 200; x++) {
+            for (int y = 0; y < 300; y++) {
+                image.setRGB(x, y, rgb ^ (x * y));
+            }
+        }
+        File file = File.createTempFile("page", ".jpg");
+        ImageIO.write(image, "jpg", file);
+        return file;
+    }
+
+    private static class BitReader {
+        private final byte[] data;
+        private int position;
+        private int bit;
+
+        BitReader(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        long read(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i++) {
+                value = (value << 1) | ((data[position] >> (7 - bit)) & 1);
+                if (++bit == 8) {
+                    bit = 0;
+                    position++;
+                }
+            }
+            return value;
+        }
+
+        void align() {
+            if (bit > 0) {
+                bit = 0;
+                position++;
+            }
+        }
+
+        int position() {
+            return position;
+        }
+    }
+}
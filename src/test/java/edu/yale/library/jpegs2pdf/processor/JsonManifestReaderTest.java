@@ -0,0 +1,86 @@
+package edu.yale.library.jpegs2pdf.processor;
+
+import edu.yale.library.jpegs2pdf.model.JpegPdfPage;
+import edu.yale.library.jpegs2pdf.model.Property;
+import junit.framework.TestCase;
+
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class JsonManifestReaderTest extends TestCase {
+
+    private static final String MANIFEST = "{\"title\":\"Before\",\"pages\":["
+            + "{\"caption\":\"Image 1\",\"file\":\"1.jpg\",\"properties\":[{\"name\":\"n\",\"value\":\"v\"}]},"
+            + "{\"caption\":\"Image 2\",\"file\":\"2.jpg\",\"properties\":[],\"imageTransforms\":[{\"op\":\"rotate\",\"degrees\":90}]}"
+            + "],\"header\":\"After\",\"properties\":[{\"name\":\"Title:\",\"value\":\"After pages\"}],"
+            + "\"nested\":{\"list\":[1,2.5,true,null,[\"x\"]]},\"imageTransforms\":[{\"op\":\"grayscale\"}]}";
+
+    private static JsonManifestReader reader(String json) {
+        return new JsonManifestReader(JsonManifestReader.fromBytes(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public void testDocumentFieldsAfterPages() throws IOException {
+        JsonObject document = reader(MANIFEST).getDocument();
+        assertEquals("Before", document.getString("title"));
+        assertEquals("After", document.getString("header"));
+        assertFalse(document.containsKey("pages"));
+        assertEquals("[1,2.5,true,null,[\"x\"]]", document.getJsonObject("nested").getJsonArray("list").toString());
+    }
+
+    public void testPagesAreIterated() throws IOException {
+        try (JsonManifestReader reader = reader(MANIFEST)) {
+            Iterator<JsonObject> pages = reader.pages();
+            assertTrue(pages.hasNext());
+            assertEquals("1.jpg", pages.next().getString("file"));
+            JsonObject second = pages.next();
+            assertEquals("Image 2", second.getString("caption"));
+            assertEquals(1, second.getJsonArray("imageTransforms").size());
+            assertFalse(pages.hasNext());
+        }
+    }
+
+    public void testNoPages() throws IOException {
+        try (JsonManifestReader reader = reader("{\"title\":\"Empty\"}")) {
+            assertFalse(reader.pages().hasNext());
+        }
+    }
+
+    public void testMalformed() throws IOException {
+        try (JsonManifestReader reader = reader("{\"pages\":[\"1.jpg\"]}")) {
+            reader.pages().hasNext();
+            fail("page is not an object");
+        } catch (JsonException e) {
+            // expected
+        }
+        try {
+            reader("[]").getDocument();
+            fail("manifest is not an object");
+        } catch (JsonException e) {
+            // expected
+        }
+    }
+
+    public void testProcessorPassesFieldsAfterPages() throws IOException {
+        List<JpegPdfPage> generated = new ArrayList<>();
+        List<Property> documentProperties = new ArrayList<>();
+        JpegPdfConcat jpegPdfConcat = (header, documentTitle, properties, addressLines, jpegPdfPages, destinationFile, imageProcessingCommand) -> {
+            assertEquals("After", header);
+            assertEquals("Before", documentTitle);
+            assertNull(addressLines);
+            documentProperties.addAll(properties);
+            generated.addAll(jpegPdfPages);
+        };
+        new JsonToPdfProcessorImpl(reader(MANIFEST), jpegPdfConcat).generatePdf(new File("unused.pdf").getPath());
+        assertEquals("After pages", documentProperties.get(0).getValue());
+        assertEquals(2, generated.size());
+        assertEquals("v", generated.get(0).getProperties().get(0).getValue());
+        assertEquals("document transforms apply to pages without their own", 1, generated.get(0).getImageTransforms().size());
+        assertEquals(1, generated.get(1).getImageTransforms().size());
+    }
+}
@@ -0,0 +1,293 @@
+package edu.yale.library.jpegs2pdf.server;
+
+import edu.yale.library.jpegs2pdf.JpegPdfConcatImpl;
+import edu.yale.library.jpegs2pdf.processor.JpegPdfConcat;
+import junit.framework.TestCase;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.ImageIO;
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class PdfServerTest extends TestCase {
+    private PdfServer pdfServer;
+
+    @After
+    public void stopServer() {
+        if (pdfServer != null) {
+            pdfServer.stop();
+        }
+    }
+
+    @Test
+    public void testStreamsPdf() throws Exception {
+        pdfServer = startServer(JpegPdfConcatImpl::new, 1, 1);
+        HttpURLConnection connection = post("/pdf", fixture());
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/pdf", connection.getContentType());
+        try (InputStream in = connection.getInputStream(); PDDocument document = PDDocument.load(in)) {
+            assertEquals("cover page only", 1, document.getNumberOfPages());
+        }
+        assertEquals(1, health().getInt("completed"));
+    }
+
+    @Test
+    public void testWritesPdfToTarget() throws Exception {
+        pdfServer = startServer(JpegPdfConcatImpl::new, 1, 1);
+        File root = Files.createTempDirectory("serverroot").toFile();
+        pdfServer.setOutputRoot(root);
+        File target = new File(root, "out/server.pdf");
+        assertTrue(target.getParentFile().mkdir());
+        try {
+            HttpURLConnection connection = post("/pdf?target=" + URLEncoder.encode("out/server.pdf", "UTF-8"), fixture());
+            assertEquals(200, connection.getResponseCode());
+            JsonObject status = Json.createReader(connection.getInputStream()).readObject();
+            assertEquals("success", status.getString("status"));
+            assertTrue("pdf written", target.length() > 500);
+            assertEquals("absolute paths inside the root are allowed", 200,
+                    post("/pdf?target=" + URLEncoder.encode(target.getAbsolutePath(), "UTF-8"), fixture()).getResponseCode());
+        } finally {
+            target.delete();
+            target.getParentFile().delete();
+            root.delete();
+        }
+    }
+
+    @Test
+    public void testRefusesTargetOutsideOutputRoot() throws Exception {
+        pdfServer = startServer(JpegPdfConcatImpl::new, 1, 1);
+        File outside = File.createTempFile("server", ".pdf");
+        outside.delete();
+        assertEquals("no output root", 403, post("/pdf?target=" + URLEncoder.encode(outside.getAbsolutePath(), "UTF-8"), fixture()).getResponseCode());
+        File root = Files.createTempDirectory("serverroot").toFile();
+        File link = new File(root, "link");
+        try {
+            pdfServer.setOutputRoot(root);
+            assertEquals(403, post("/pdf?target=" + URLEncoder.encode(outside.getAbsolutePath(), "UTF-8"), fixture()).getResponseCode());
+            assertEquals(403, post("/pdf?target=" + URLEncoder.encode("../" + outside.getName(), "UTF-8"), fixture()).getResponseCode());
+            Files.createSymbolicLink(link.toPath(), outside.getParentFile().toPath());
+            assertEquals("links out of the root are followed", 403,
+                    post("/pdf?target=" + URLEncoder.encode("link/" + outside.getName(), "UTF-8"), fixture()).getResponseCode());
+            assertFalse(outside.exists());
+            assertEquals(0, health().getInt("completed"));
+        } finally {
+            link.delete();
+            root.delete();
+        }
+    }
+
+    @Test
+    public void testRefusesLinkAtTarget() throws Exception {
+        pdfServer = startServer(JpegPdfConcatImpl::new, 1, 1);
+        File outside = File.createTempFile("server", ".pdf");
+        File root = Files.createTempDirectory("serverroot").toFile();
+        File link = new File(root, "server.pdf");
+        File dangling = new File(root, "dangling.pdf");
+        File inside = new File(root, "inside.pdf");
+        File insideLink = new File(root, "inside-link.pdf");
+        try {
+            pdfServer.setOutputRoot(root);
+            Files.createSymbolicLink(link.toPath(), outside.toPath());
+            assertEquals("a link at the target is followed", 403, post("/pdf?target=server.pdf", fixture()).getResponseCode());
+            assertEquals(0, outside.length());
+            Files.createSymbolicLink(dangling.toPath(), new File(outside.getParentFile(), outside.getName() + ".missing").toPath());
+            assertEquals(403, post("/pdf?target=dangling.pdf", fixture()).getResponseCode());
+            assertTrue(inside.createNewFile());
+            Files.createSymbolicLink(insideLink.toPath(), inside.toPath());
+            assertEquals("links inside the root are allowed", 200, post("/pdf?target=inside-link.pdf", fixture()).getResponseCode());
+            assertTrue(inside.length() > 500);
+        } finally {
+            link.delete();
+            dangling.delete();
+            insideLink.delete();
+            inside.delete();
+            outside.delete();
+            root.delete();
+        }
+    }
+
+    @Test
+    public void testRefusesImageProcessingCommand() throws Exception {
+        pdfServer = startServer(JpegPdfConcatImpl::new, 1, 1);
+        String manifest = new String(fixture(), "UTF-8").replaceFirst("\\{", "{\"imageProcessingCommand\": \"touch /tmp/owned %s %s\",");
+        HttpURLConnection connection = post("/pdf", manifest.getBytes("UTF-8"));
+        assertEquals(403, connection.getResponseCode());
+        assertFalse(errorMessage(connection).contains("touch"));
+        pdfServer.setAllowImageProcessingCommands(true);
+        assertEquals("allowed, and there are no pages to run it on", 200, post("/pdf", manifest.getBytes("UTF-8")).getResponseCode());
+    }
+
+    @Test
+    public void testRefusesLocalFileOutsideInputRoot() throws Exception {
+        pdfServer = startServer(JpegPdfConcatImpl::new, 1, 1);
+        File root = Files.createTempDirectory("serverinput").toFile();
+        File inside = new File(root, "page.jpg");
+        File outside = File.createTempFile("server", ".jpg");
+        File link = new File(root, "link.jpg");
+        try {
+            BufferedImage image = new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
+            ImageIO.write(image, "jpg", inside);
+            ImageIO.write(image, "jpg", outside);
+            assertEquals("no input root", 403, post("/pdf", manifestWithPage(inside)).getResponseCode());
+            pdfServer.setInputRoot(root);
+            assertEquals(403, post("/pdf", manifestWithPage(outside)).getResponseCode());
+            assertEquals(403, post("/pdf", manifestWithPage(new File(root, "../" + outside.getName()))).getResponseCode());
+            Files.createSymbolicLink(link.toPath(), outside.toPath());
+            assertEquals("links out of the root are followed", 403, post("/pdf", manifestWithPage(link)).getResponseCode());
+            HttpURLConnection connection = post("/pdf", manifestWithPage(inside));
+            assertEquals(200, connection.getResponseCode());
+            try (InputStream in = connection.getInputStream(); PDDocument document = PDDocument.load(in)) {
+                assertEquals("cover page and the image", 2, document.getNumberOfPages());
+            }
+            assertEquals(4, health().getInt("failed"));
+        } finally {
+            link.delete();
+            inside.delete();
+            outside.delete();
+            root.delete();
+        }
+    }
+
+    @Test
+    public void testInvalidJson() throws Exception {
+        pdfServer = startServer(JpegPdfConcatImpl::new, 1, 1);
+        assertEquals(400, post("/pdf", "{ not json".getBytes("UTF-8")).getResponseCode());
+        assertEquals(1, health().getInt("failed"));
+    }
+
+    @Test
+    public void testMissingPageFieldIsBadRequest() throws Exception {
+        pdfServer = startServer(JpegPdfConcatImpl::new, 1, 1);
+        HttpURLConnection connection = post("/pdf", "{\"pages\": [{\"caption\": \"no file\"}]}".getBytes("UTF-8"));
+        assertEquals(400, connection.getResponseCode());
+        assertTrue(errorMessage(connection).contains("\"file\""));
+        assertEquals(400, post("/pdf", "{\"pages\": [{\"file\": \"https://images.invalid/page.jpg\"}]}".getBytes("UTF-8")).getResponseCode());
+    }
+
+    @Test
+    public void testErrorDoesNotLeakDetails() throws Exception {
+        JpegPdfConcat failing = (header, documentTitle, documentProperties, documentAddressLines, jpegPdfPages, destinationFile, imageProcessingCommand) -> {
+            throw new IOException("convert failed for /secret/images/page.jpg");
+        };
+        pdfServer = startServer(() -> failing, 1, 1);
+        HttpURLConnection connection = post("/pdf", fixture());
+        assertEquals(500, connection.getResponseCode());
+        String message = errorMessage(connection);
+        assertFalse(message, message.contains("secret"));
+        assertEquals(1, health().getInt("failed"));
+    }
+
+    @Test
+    public void testRejectsLargeBody() throws Exception {
+        pdfServer = startServer(JpegPdfConcatImpl::new, 1, 1);
+        pdfServer.setMaxRequestBytes(100);
+        assertEquals(413, post("/pdf", fixture()).getResponseCode());
+        HttpURLConnection chunked = (HttpURLConnection) new URL("http://127.0.0.1:" + pdfServer.getPort() + "/pdf").openConnection();
+        chunked.setRequestMethod("POST");
+        chunked.setDoOutput(true);
+        chunked.setChunkedStreamingMode(16);
+        try (OutputStream out = chunked.getOutputStream()) {
+            out.write(fixture());
+        }
+        assertEquals("without a Content-Length", 413, chunked.getResponseCode());
+        assertEquals(0, health().getInt("failed"));
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        JpegPdfConcat blocking = (header, documentTitle, documentProperties, documentAddressLines, jpegPdfPages, destinationFile, imageProcessingCommand) -> {
+            try {
+                release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            new JpegPdfConcatImpl().generatePdf(header, documentTitle, documentProperties, documentAddressLines, jpegPdfPages, destinationFile, imageProcessingCommand);
+        };
+        pdfServer = startServer(() -> blocking, 1, 1);
+        Thread running = postInBackground();
+        Thread queued = postInBackground();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            JsonObject stats = health();
+            if (stats.getInt("active") == 1 && stats.getInt("queued") == 1) break;
+            Thread.sleep(20);
+        }
+        HttpURLConnection connection = post("/pdf", fixture());
+        assertEquals(429, connection.getResponseCode());
+        assertEquals("1", connection.getHeaderField("Retry-After"));
+        release.countDown();
+        running.join(30000);
+        queued.join(30000);
+        JsonObject stats = health();
+        assertEquals(2, stats.getInt("completed"));
+        assertEquals(1, stats.getInt("rejected"));
+    }
+
+    private Thread postInBackground() {
+        Thread thread = new Thread(() -> {
+            try {
+                post("/pdf", fixture()).getResponseCode();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static PdfServer startServer(java.util.function.Supplier<JpegPdfConcat> factory, int maxJobs, int queue) throws IOException {
+        PdfServer server = new PdfServer(new InetSocketAddress("127.0.0.1", 0), factory, maxJobs, queue);
+        server.start();
+        return server;
+    }
+
+    private byte[] fixture() throws IOException {
+        return IOUtils.toByteArray(getClass().getResourceAsStream("/fixturepdf.json"));
+    }
+
+    private HttpURLConnection post(String path, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + pdfServer.getPort() + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            IOUtils.copy(new ByteArrayInputStream(body), out);
+        }
+        return connection;
+    }
+
+    private static String errorMessage(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getErrorStream()) {
+            return Json.createReader(in).readObject().getString("error");
+        }
+    }
+
+    private byte[] manifestWithPage(File file) throws IOException {
+        JsonObject page = Json.createObjectBuilder().add("file", file.getPath()).add("caption", "Page").build();
+        return new String(fixture(), "UTF-8").replaceFirst("\"pages\": \\[", "\"pages\": [" + page.toString()).getBytes("UTF-8");
+    }
+
+    private JsonObject health() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + pdfServer.getPort() + "/health").openConnection();
+        return Json.createReader(connection.getInputStream()).readObject();
+    }
+}
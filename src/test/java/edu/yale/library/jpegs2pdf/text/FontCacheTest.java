@@ -0,0 +1,85 @@
+package edu.yale.library.jpegs2pdf.text;
+
+import junit.framework.TestCase;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class FontCacheTest extends TestCase {
+
+    public void testParsedOnce() throws IOException {
+        assertSame(FontCache.get("/FreeSans.ttf"), FontCache.get("/FreeSans.ttf"));
+        try {
+            FontCache.get("/no-such-font.ttf");
+            fail("missing font");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testSharedAcrossDocuments() throws IOException {
+        byte[] first;
+        try (PDDocument document = new PDDocument()) {
+            first = save(document, FontCache.load(document, "/FreeSans.ttf"), "First document");
+        }
+        // the first document is closed, the shared font must still work
+        byte[] second;
+        try (PDDocument document = new PDDocument()) {
+            second = save(document, FontCache.load(document, "/FreeSans.ttf"), "Second document");
+        }
+        assertEquals("First document", text(first));
+        assertEquals("Second document", text(second));
+    }
+
+    public void testGlyphDataSharedAcrossDocuments() throws IOException {
+        String arabicText = "\u0634\u0645\u0633 \u0627\u0644\u0645\u0639\u0627\u0631\u0641";
+        try (PDDocument document = new PDDocument()) {
+            PDFont font = FontCache.load(document, "/NotoNaskhArabic-Regular.ttf");
+            GlyphCoverage.forFont(font).coversAll(arabicText);
+            GlyphWidths.forFont(font).getStringWidth(arabicText);
+        }
+        int coverage = GlyphCoverage.getCachedFontCount();
+        int widths = GlyphWidths.getCachedFontCount();
+        try (PDDocument document = new PDDocument()) {
+            PDFont font = FontCache.load(document, "/NotoNaskhArabic-Regular.ttf");
+            assertTrue(GlyphCoverage.forFont(font).coversAll(arabicText));
+            assertEquals(font.getStringWidth(arabicText), GlyphWidths.forFont(font).getStringWidth(arabicText), 0.001);
+        }
+        assertEquals(coverage, GlyphCoverage.getCachedFontCount());
+        assertEquals(widths, GlyphWidths.getCachedFontCount());
+    }
+
+    public void testCapHeightMatchesLoadedFont() throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDFont font = PDType0Font.load(document, getClass().getResourceAsStream("/NotoNaskhArabic-Regular.ttf"));
+            assertEquals(font.getFontDescriptor().getCapHeight(), FontCache.getCapHeight("/NotoNaskhArabic-Regular.ttf"), 0.001);
+        }
+    }
+
+    private static byte[] save(PDDocument document, PDFont font, String text) throws IOException {
+        PDPage page = new PDPage();
+        document.addPage(page);
+        try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+            contentStream.beginText();
+            contentStream.setFont(font, 12);
+            contentStream.newLineAtOffset(50, 700);
+            contentStream.showText(text);
+            contentStream.endText();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        document.save(out);
+        return out.toByteArray();
+    }
+
+    private static String text(byte[] pdf) throws IOException {
+        try (PDDocument document = PDDocument.load(pdf)) {
+            return new PDFTextStripper().getText(document).trim();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package edu.yale.library.jpegs2pdf.text;
+
+import junit.framework.TestCase;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+
+import java.io.IOException;
+
+public class GlyphCoverageTest extends TestCase {
+
+    public void testMatchesEncode() throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            for (String resource : new String[] {"/FreeSans.ttf", "/NotoNaskhArabic-Regular.ttf"}) {
+                PDFont font = PDType0Font.load(document, getClass().getResourceAsStream(resource));
+                GlyphCoverage coverage = GlyphCoverage.forFont(font);
+                for (int codePoint = 0; codePoint < 0x10000; codePoint += 7) {
+                    assertEquals(resource + " U+" + Integer.toHexString(codePoint), canEncode(font, codePoint), coverage.covers(codePoint));
+                }
+                for (int codePoint : new int[] {0x1F600, 0x20000, 0x10FFFF}) {
+                    assertEquals(resource + " U+" + Integer.toHexString(codePoint), canEncode(font, codePoint), coverage.covers(codePoint));
+                }
+            }
+        }
+    }
+
+    public void testCoversAll() throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDFont latin = PDType0Font.load(document, getClass().getResourceAsStream("/FreeSansBold.ttf"));
+            PDFont arabic = PDType0Font.load(document, getClass().getResourceAsStream("/NotoNaskhArabic-Regular.ttf"));
+            String arabicText = "شمس المعارف";
+            assertTrue(GlyphCoverage.forFont(latin).coversAll("Call Number: WA Photos 27"));
+            assertFalse(GlyphCoverage.forFont(latin).coversAll(arabicText));
+            assertTrue(GlyphCoverage.forFont(arabic).coversAll(arabicText));
+        }
+    }
+
+    public void testCoverageIsNotKeptPerDocument() throws IOException {
+        String[] resources = {"/FreeSans.ttf", "/NotoNaskhArabic-Regular.ttf"};
+        int cached = -1;
+        for (int i = 0; i < 5; i++) {
+            try (PDDocument document = new PDDocument()) {
+                for (String resource : resources) {
+                    assertTrue(GlyphCoverage.forFont(FontCache.load(document, resource)).covers(resource.startsWith("/Noto") ? 0x0627 : 'a'));
+                }
+            }
+            if (cached < 0) {
+                cached = GlyphCoverage.getCachedFontCount();
+            }
+            assertEquals("coverage is built once per shared font, not once per document", cached, GlyphCoverage.getCachedFontCount());
+        }
+    }
+
+    private static boolean canEncode(PDFont font, int codePoint) {
+        try {
+            font.encode(new String(Character.toChars(codePoint)));
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
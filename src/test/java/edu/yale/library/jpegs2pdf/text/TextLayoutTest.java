@@ -0,0 +1,147 @@
+package edu.yale.library.jpegs2pdf.text;
+
+import junit.framework.TestCase;
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TextLayoutTest extends TestCase {
+
+    private static final String RIGHTS = "The use of this image may be subject to the copyright law of the United States (Title 17, United States Code) " +
+            "or to site license or other rights management terms and conditions. The person using the image is liable for any infringement. " +
+            "شمس المعارف ول◌ٔطائف العوارف، and more text after it.";
+
+    public void testFixTextMatchesRegexVersion() {
+        StringBuilder sb = new StringBuilder("plain text stays the same");
+        for (char c = 0; c < 0x3000; c++) {
+            sb.append(c);
+        }
+        sb.append("\u202A\u200F\u00a0tail");
+        for (String text : new String[] {"", "plain text", "tab\there\r\nand\u00a0nbsp", sb.toString()}) {
+            assertEquals(regexFixText(text), TextLayout.fixText(text));
+        }
+        String unchanged = "nothing to fix";
+        assertSame(unchanged, TextLayout.fixText(unchanged));
+    }
+
+    public void testPossibleWrapPointsMatchesSplit() {
+        for (String text : new String[] {"", "a", "word", "two words", "ends with space ", " leading", "a,b;c", "x  y", "ab\uD800\uDF80cd", "\uD800\uDF80 \uD800\uDF80", RIGHTS}) {
+            assertTrue(text, Arrays.equals(splitWrapPoints(text), TextLayout.possibleWrapPoints(text)));
+        }
+    }
+
+    public void testSupplementaryCharacterIsKeptWhole() throws IOException {
+        String text = "ab\uD800\uDF80cd";
+        assertTrue(Arrays.equals(new int[] {4, 6}, TextLayout.possibleWrapPoints(text)));
+        try (PDDocument document = new PDDocument()) {
+            PDFont[] fonts = fonts(document);
+            assertTrue(GlyphCoverage.forFont(fonts[0]).covers(0x10380));
+            TextLayout.Paragraph paragraph = TextLayout.layout(text, fonts, 9, 400);
+            assertEquals(1, paragraph.getLineCount());
+            assertEquals("drawn, not replaced with boxes", text, lineText(paragraph.getLines().get(0)));
+            assertEquals("one box for an uncovered character", "\u0627" + TextLayout.UNRENDERABLE_CHARACTER,
+                    TextLayout.pickFont("\u0627\uD83D\uDE00", new PDFont[] {fonts[1]}).getText());
+        }
+    }
+
+    public void testWidthsAreNotKeptPerDocument() throws IOException {
+        int cached = -1;
+        for (int i = 0; i < 5; i++) {
+            try (PDDocument document = new PDDocument()) {
+                PDFont[] fonts = {FontCache.load(document, "/FreeSans.ttf"), FontCache.load(document, "/NotoNaskhArabic-Regular.ttf")};
+                TextLayout.Paragraph paragraph = TextLayout.layout(TextLayout.fixText(RIGHTS), fonts, 10, 200);
+                assertEquals(fonts[0].getStringWidth("The"), GlyphWidths.forFont(fonts[0]).getStringWidth("The"), 0.001);
+                assertTrue(paragraph.getLineCount() > 3);
+            }
+            if (cached < 0) {
+                cached = GlyphWidths.getCachedFontCount();
+            }
+            assertEquals("widths are kept once per shared font, not once per document", cached, GlyphWidths.getCachedFontCount());
+        }
+    }
+
+    public void testWrapsBeforeOverflowing() throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDFont[] fonts = fonts(document);
+            float width = 200;
+            TextLayout.Paragraph paragraph = TextLayout.layout(TextLayout.fixText(RIGHTS), fonts, 10, width);
+            assertTrue("wraps", paragraph.getLineCount() > 3);
+            for (TextLayout.Line line : paragraph.getLines()) {
+                String text = lineText(line);
+                float visible = 0;
+                for (TextLayout.Run run : line.getRuns()) {
+                    visible += run.getFont().getStringWidth(run.getText()) / 1000 * 10;
+                }
+                PDFont lastFont = line.getRuns().get(line.getRuns().size() - 1).getFont();
+                float trailing = (text.length() - text.replaceAll(" +$", "").length()) * lastFont.getStringWidth(" ") / 1000 * 10;
+                assertTrue("line fits: " + text, visible - trailing <= width);
+                assertEquals("cached widths match the font", visible, line.getWidth(), 0.01f);
+            }
+        }
+    }
+
+    public void testOneShowTextPerRun() throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDFont[] fonts = fonts(document);
+            PDPage page = new PDPage();
+            document.addPage(page);
+            TextLayout.Paragraph paragraph = TextLayout.layout(TextLayout.fixText(RIGHTS), fonts, 10, 300);
+            int runs = 0;
+            for (TextLayout.Line line : paragraph.getLines()) {
+                runs += line.getRuns().size();
+            }
+            try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                content.beginText();
+                float height = TextLayout.draw(content, paragraph, 10, 15);
+                content.endText();
+                assertEquals(15f * (paragraph.getLineCount() - 1), height);
+            }
+            PDFStreamParser parser = new PDFStreamParser(page);
+            parser.parse();
+            int showText = 0;
+            for (Object token : parser.getTokens()) {
+                if (token instanceof Operator && ((Operator) token).getName().equals("Tj")) showText++;
+            }
+            assertEquals("one text operator per line and font", runs, showText);
+            assertTrue("far fewer text operators than wrap points", showText < TextLayout.possibleWrapPoints(RIGHTS).length / 3);
+        }
+    }
+
+    private PDFont[] fonts(PDDocument document) throws IOException {
+        return new PDFont[] {
+                PDType0Font.load(document, getClass().getResourceAsStream("/FreeSans.ttf")),
+                PDType0Font.load(document, getClass().getResourceAsStream("/NotoNaskhArabic-Regular.ttf"))};
+    }
+
+    private static String lineText(TextLayout.Line line) {
+        StringBuilder sb = new StringBuilder();
+        for (TextLayout.Run run : line.getRuns()) sb.append(run.getText());
+        return sb.toString();
+    }
+
+    private static String regexFixText(String text) {
+        return text.replace("\u00a0", " ")
+                .replace('\n', ' ')
+                .replace('\r', ' ')
+                .replace('\t', ' ')
+                .replaceAll("\\p{Cc}", "")
+                .replace("\u202A", "")
+                .replace("\u200F", "");
+    }
+
+    private static int[] splitWrapPoints(String text) {
+        String[] split = text.split("(?<=\\W)");
+        int[] ret = new int[split.length];
+        ret[0] = split[0].length();
+        for (int i = 1; i < split.length; i++)
+            ret[i] = ret[i - 1] + split[i].length();
+        return ret;
+    }
+}